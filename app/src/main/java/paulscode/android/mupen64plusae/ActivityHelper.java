@@ -80,6 +80,7 @@ public class ActivityHelper
         public static final String ROM_PATH             = NAMESPACE + "ROM_PATH";
         public static final String ZIP_PATH             = NAMESPACE + "ZIP_PATH";
         public static final String EXTRACT_ZIP_PATH     = NAMESPACE + "EXTRACT_ZIP_PATH";
+        public static final String EXTRACT_CACHE_SIZE   = NAMESPACE + "EXTRACT_CACHE_SIZE";
         public static final String ROM_MD5              = NAMESPACE + "ROM_MD5";
         public static final String ROM_CRC              = NAMESPACE + "ROM_CRC";
         public static final String ROM_HEADER_NAME      = NAMESPACE + "ROM_HEADER_NAME";
@@ -501,11 +502,12 @@ public class ActivityHelper
     }
 
     static void startExtractRomService(Context context, ServiceConnection serviceConnection,
-       String zipPath, String extractRomPath, String romPath, String romMd5)
+       String zipPath, String extractRomPath, long extractCacheSize, String romPath, String romMd5)
     {
         Intent intent = new Intent(context, ExtractRomService.class);
         intent.putExtra(Keys.ZIP_PATH, zipPath);
         intent.putExtra(Keys.EXTRACT_ZIP_PATH, extractRomPath);
+        intent.putExtra(Keys.EXTRACT_CACHE_SIZE, extractCacheSize);
         intent.putExtra(Keys.ROM_PATH, romPath);
         intent.putExtra(Keys.ROM_MD5, romMd5);
 
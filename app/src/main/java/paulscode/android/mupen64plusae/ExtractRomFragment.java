@@ -28,10 +28,13 @@ import android.os.Bundle;
 import android.os.IBinder;
 import androidx.fragment.app.Fragment;
 
+import java.io.File;
+
 import es.jdbc.n64retroplus.R;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog;
 import paulscode.android.mupen64plusae.task.ExtractRomService;
 import paulscode.android.mupen64plusae.task.ExtractRomService.LocalBinder;
+import paulscode.android.mupen64plusae.util.Notifier;
 
 @SuppressWarnings("unused")
 public class ExtractRomFragment extends Fragment implements ExtractRomService.ExtractRomsListener
@@ -48,6 +51,7 @@ public class ExtractRomFragment extends Fragment implements ExtractRomService.Ex
     
     private String mRomZipPath = null;
     private String mRomExtractPath = null;
+    private long mExtractCacheSize = 0;
     private String mRomPath = null;
     private String mMd5 = null;
     private String mRomCrc = null;
@@ -61,6 +65,9 @@ public class ExtractRomFragment extends Fragment implements ExtractRomService.Ex
     
     private boolean mInProgress = false;
 
+    //Set by the extraction thread, null if there is no ROM to play
+    private volatile File mExtractedRomFile = null;
+
     // this method is only called once for this fragment
     @Override
     public void onCreate(Bundle savedInstanceState)
@@ -121,16 +128,23 @@ public class ExtractRomFragment extends Fragment implements ExtractRomService.Ex
     }
 
     @Override
-    public void onExtractRomFinished()
+    public void onExtractRomFinished(File romFile)
     {
-
+        mExtractedRomFile = romFile;
     }
 
     private void launchGame()
     {
+        // Only ROMs found in the cache or completely extracted are launched
+        if (mExtractedRomFile == null)
+        {
+            Notifier.showToast(getActivity(), R.string.toast_nativeMainFailure07);
+            return;
+        }
+
         // Launch the game activity
-        ActivityHelper.startGameActivity(getActivity(), mRomPath, mMd5, mRomCrc, mRomHeaderName, mRomCountryCode,
-                mRomArtPath, mRomGoodName, mRomDisplayName, mRomLegacySaveFileName, mIsRestarting);
+        ActivityHelper.startGameActivity(getActivity(), mExtractedRomFile.getPath(), mMd5, mRomCrc, mRomHeaderName,
+                mRomCountryCode, mRomArtPath, mRomGoodName, mRomDisplayName, mRomLegacySaveFileName, mIsRestarting);
     }
     
     @Override
@@ -155,13 +169,15 @@ public class ExtractRomFragment extends Fragment implements ExtractRomService.Ex
         return mProgress;
     }
 
-    void ExtractRom( String romZipPath, String romExtractPath, String romPath, String md5,
-       String romCrc, String romHeaderName, byte romCountryCode, String romArtPath, String romGoodName,
+    void ExtractRom( String romZipPath, String romExtractPath, long extractCacheSize, String romPath,
+       String md5, String romCrc, String romHeaderName, byte romCountryCode, String romArtPath, String romGoodName,
        String romDisplayName, String romLegacySaveFileName, boolean isRestarting)
     {
         mRomZipPath = romZipPath;
         mRomExtractPath = romExtractPath;
+        mExtractCacheSize = extractCacheSize;
         mRomPath = romPath;
+        mExtractedRomFile = null;
         mMd5 = md5;
         mRomCrc = romCrc;
         mRomHeaderName = romHeaderName;
@@ -211,7 +227,7 @@ public class ExtractRomFragment extends Fragment implements ExtractRomService.Ex
 
         // Asynchronously extract ROM image
         ActivityHelper.startExtractRomService(activity.getApplicationContext(), mServiceConnection,
-                mRomZipPath, mRomExtractPath, mRomPath, mMd5);
+                mRomZipPath, mRomExtractPath, mExtractCacheSize, mRomPath, mMd5);
     }
     
     public boolean IsInProgress()
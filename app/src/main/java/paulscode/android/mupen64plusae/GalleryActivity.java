@@ -27,8 +27,10 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.ThumbnailUtils;
+import android.os.AsyncTask;
 import android.os.Bundle;
 
+import androidx.annotation.NonNull;
 import androidx.core.content.pm.ShortcutInfoCompat;
 import androidx.core.content.pm.ShortcutManagerCompat;
 import androidx.core.graphics.drawable.IconCompat;
@@ -63,15 +65,17 @@ import paulscode.android.mupen64plusae.dialog.ConfirmationDialog;
 import paulscode.android.mupen64plusae.dialog.ConfirmationDialog.PromptConfirmListener;
 import paulscode.android.mupen64plusae.jni.CoreService;
 import paulscode.android.mupen64plusae.persistent.AppData;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.persistent.GamePrefs;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
+import paulscode.android.mupen64plusae.persistent.RomLibrary;
 import paulscode.android.mupen64plusae.task.ComputeMd5Task;
 import paulscode.android.mupen64plusae.task.ExtractAssetsTask;
 import paulscode.android.mupen64plusae.task.GalleryRefreshTask;
 import paulscode.android.mupen64plusae.task.GalleryRefreshTask.GalleryRefreshFinishedListener;
 import paulscode.android.mupen64plusae.task.UpdateLeanbackProgramsTask;
 import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.util.CoverArtCache;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.LocaleContextWrapper;
 import paulscode.android.mupen64plusae.util.Notifier;
@@ -101,6 +105,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
 
     // Widgets
     private RecyclerView mGridView;
+    private GalleryPrefetcher mPrefetcher;
     private DrawerLayout mDrawerLayout = null;
     private ActionBarDrawerToggle mDrawerToggle;
     private MenuListView mDrawerList;
@@ -131,7 +136,21 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
 
     String mPathToDelete = null;
 
-    private ConfigFile mConfig;
+    private RomLibrary mLibrary;
+
+    // Every game in the library, searched as the query is typed
+    private GallerySearchUpdater mSearchUpdater;
+
+    // Games loaded so far, a page at a time. Null until the library has been loaded.
+    private List<GalleryItem> mItems = null;
+    private List<GalleryItem> mRecentItems = null;
+    private boolean mIsComplete = false;
+
+    // MD5 of the games matching the search query that weren't loaded yet, null when there is no query
+    private List<String> mSearchResults = null;
+
+    // Load in progress, a new load cancels it
+    private GalleryRefreshTask mLoadTask = null;
 
     private void loadGameFromExtras( Bundle extras) {
 
@@ -248,18 +267,51 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         // Get app data and user preferences
         mAppData = new AppData( this );
         mGlobalPrefs = new GlobalPrefs( this, mAppData );
-        mConfig = new ConfigFile(mGlobalPrefs.romInfoCache_cfg);
+        mLibrary = RomLibrary.getInstance(mGlobalPrefs.romLibrary_db, mGlobalPrefs.romInfoCache_cfg);
+
+        // Scans update the search index as they write the library
+        mSearchUpdater = new GallerySearchUpdater(mLibrary);
+        mLibrary.addChangeListener(mSearchUpdater);
 
         // Lay out the content
         setContentView( R.layout.gallery_activity );
         mGridView = findViewById( R.id.gridview );
 
-        // Do empty initialization of the GridView
-        List<GalleryItem> items = new ArrayList<>();
-        mGridView.setAdapter( new GalleryItem.Adapter(this, items));
+        // Do empty initialization of the GridView, refreshes only update the cells that changed
+        final GalleryItem.Adapter adapter = new GalleryItem.Adapter( this, new ArrayList<GalleryItem>() );
+        mGridView.setAdapter( adapter );
+
+        // Allow the headings to take up the entire width of the layout
         final GridLayoutManager layoutManager = new GridLayoutManagerBetterScrolling( this, galleryColumns );
+        layoutManager.setSpanSizeLookup( new GridLayoutManager.SpanSizeLookup()
+        {
+            @Override
+            public int getSpanSize( int position )
+            {
+                // Headings will take up every span (column) in the grid
+                if( adapter.getItem( position ).isHeading )
+                    return galleryColumns;
+
+                // Games will fit in a single column
+                return 1;
+            }
+        } );
         mGridView.setLayoutManager( layoutManager );
 
+        // Load the cover art closest to the screen first, and the rows being scrolled to ahead
+        mPrefetcher = new GalleryPrefetcher( this );
+        mGridView.addOnScrollListener( mPrefetcher );
+
+        // Load the next page of games before scrolling to the end of those loaded
+        mGridView.addOnScrollListener( new RecyclerView.OnScrollListener()
+        {
+            @Override
+            public void onScrolled( @NonNull RecyclerView recyclerView, int dx, int dy )
+            {
+                loadMoreIfNeeded();
+            }
+        } );
+
         refreshGridAsync();
 
         // Add the toolbar to the activity (which supports the fancy menu/arrow animation)
@@ -434,6 +486,29 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         }
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        // Recycle the cells, so they give their cover art back to the cache that outlives this activity
+        mGridView.setAdapter( null );
+
+        mLibrary.removeChangeListener( mSearchUpdater );
+        if( mLoadTask != null )
+            mLoadTask.cancel( false );
+
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory( int level )
+    {
+        super.onTrimMemory( level );
+
+        CoverArtCache.getInstance( this ).trimMemory( level );
+        if( mPrefetcher != null )
+            mPrefetcher.onTrimMemory( level );
+    }
+
     @Override
     public void onSaveInstanceState( Bundle savedInstanceState )
     {
@@ -489,7 +564,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             public boolean onMenuItemActionCollapse( MenuItem item )
             {
                 mSearchQuery = "";
-                refreshGridAsync();
+                refreshSearch();
                 return true;
             }
 
@@ -515,7 +590,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             {
                 if (!mSearchView.isIconified()) {
                     mSearchQuery = query;
-                    refreshGridAsync();
+                    refreshSearch();
                 }
 
                 return false;
@@ -780,8 +855,15 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         {
             if(id == REMOVE_FROM_LIBRARY_DIALOG_ID && mSelectedItem != null)
             {
-                mConfig.remove(mSelectedItem.md5);
-                mConfig.save();
+                // Removed on the executor of the refresh task, so the refresh runs after it
+                final RomLibrary library = mLibrary;
+                final String md5 = mSelectedItem.md5;
+                AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        library.remove(md5);
+                    }
+                });
                 mDrawerLayout.closeDrawer( GravityCompat.START, false );
                 refreshGridAsync();
             }
@@ -958,58 +1040,99 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         mAppData = new AppData( this );
         mGlobalPrefs = new GlobalPrefs( this, mAppData );
 
-        GalleryRefreshTask galleryRefreshTask = new GalleryRefreshTask(this, this, mGlobalPrefs, mSearchQuery, mConfig);
-        galleryRefreshTask.execute();
+        // Loads as many games as were shown, so the grid doesn't scroll back
+        int count = mItems == null ? 0 : mItems.size();
+        startLoad(new GalleryRefreshTask(this, this, mGlobalPrefs, mSearchUpdater, mLibrary, mSearchQuery, true,
+                Math.max(GalleryRefreshTask.PAGE_SIZE, count)));
     }
 
-    void reloadCacheAndRefreshGrid()
+    private void startLoad(GalleryRefreshTask task)
     {
-        mConfig = new ConfigFile(mGlobalPrefs.romInfoCache_cfg);
+        // Only the last load is shown
+        if (mLoadTask != null)
+            mLoadTask.cancel(false);
 
+        mLoadTask = task;
+        mLoadTask.execute();
+    }
+
+    /**
+     * Loads the next page of games once the grid is scrolled close to the last game loaded
+     */
+    void loadMoreIfNeeded()
+    {
+        if (mItems == null || mIsComplete || mLoadTask != null)
+            return;
+
+        GridLayoutManager layoutManager = (GridLayoutManager) mGridView.getLayoutManager();
+        RecyclerView.Adapter adapter = mGridView.getAdapter();
+        if (layoutManager == null || adapter == null ||
+                layoutManager.findLastVisibleItemPosition() < adapter.getItemCount() - GalleryRefreshTask.PAGE_SIZE / 2)
+            return;
+
+        GalleryItem last = mItems.isEmpty() ? null : mItems.get(mItems.size() - 1);
+        startLoad(new GalleryRefreshTask(this, this, mGlobalPrefs, mSearchUpdater, mLibrary, last, mSearchResults,
+                GalleryRefreshTask.PAGE_SIZE));
+    }
+
+    void reloadCacheAndRefreshGrid()
+    {
+        // The scan wrote to the same library, there is nothing to reload
         refreshGridAsync();
     }
 
     @Override
-    public void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> recentItems) {
-        refreshGrid(items, recentItems);
+    public void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> recentItems,
+                                         List<String> searchResults, boolean isComplete) {
+        mLoadTask = null;
+        mItems = items;
+        if (recentItems != null)
+            mRecentItems = recentItems;
+        mSearchResults = searchResults;
+        mIsComplete = isComplete;
+        refreshGrid(mItems, mRecentItems);
+        loadMoreIfNeeded();
     }
 
-    synchronized void refreshGrid(List<GalleryItem> items, List<GalleryItem> recentItems){
+    @Override
+    public void onGalleryPageLoaded(List<GalleryItem> items, List<String> searchResults, boolean isComplete) {
+        mLoadTask = null;
+        List<GalleryItem> loaded = new ArrayList<>(mItems);
+        loaded.addAll(items);
+        mItems = loaded;
+        mSearchResults = searchResults;
+        mIsComplete = isComplete;
+
+        // The layout and the selected game stay as they are
+        GalleryItem.Adapter adapter = (GalleryItem.Adapter) mGridView.getAdapter();
+        if (adapter != null)
+            adapter.submitList(getGridItems(mItems, mRecentItems));
+        loadMoreIfNeeded();
+    }
 
-        if( mGlobalPrefs.isRecentShown && TextUtils.isEmpty(mSearchQuery) && recentItems.size() > 0 )
-        {
-            List<GalleryItem> combinedItems = new ArrayList<>();
+    /**
+     * Shows the games matching the search query
+     */
+    void refreshSearch()
+    {
+        // Only the first page of results is read, the recently played games don't change while typing
+        startLoad(new GalleryRefreshTask(this, this, mGlobalPrefs, mSearchUpdater, mLibrary, mSearchQuery,
+                mRecentItems == null, GalleryRefreshTask.PAGE_SIZE));
+    }
 
-            combinedItems.add( new GalleryItem( this, getString( R.string.galleryRecentlyPlayed ) ) );
-            combinedItems.addAll( recentItems );
+    synchronized void refreshGrid(List<GalleryItem> items, List<GalleryItem> recentItems){
 
-            combinedItems.add( new GalleryItem( this, getString( R.string.galleryLibrary ) ) );
-            combinedItems.addAll( items );
+        // The activity was destroyed while the library was loading
+        GalleryItem.Adapter adapter = (GalleryItem.Adapter) mGridView.getAdapter();
+        if( adapter == null )
+            return;
 
-            items = combinedItems;
-        }
+        items = getGridItems( items, recentItems );
 
         List<GalleryItem> galleryItems = items;
-        mGridView.setAdapter( new GalleryItem.Adapter( this, items ) );
-
-        // Allow the headings to take up the entire width of the layout
-        final List<GalleryItem> finalItems = items;
-        final GridLayoutManager layoutManager = new GridLayoutManagerBetterScrolling( this, galleryColumns );
-        layoutManager.setSpanSizeLookup( new GridLayoutManager.SpanSizeLookup()
-        {
-            @Override
-            public int getSpanSize( int position )
-            {
-                // Headings will take up every span (column) in the grid
-                if( finalItems.get( position ).isHeading )
-                    return galleryColumns;
-
-                // Games will fit in a single column
-                return 1;
-            }
-        } );
-
-        mGridView.setLayoutManager( layoutManager );
+        GridLayoutManager layoutManager = (GridLayoutManager) mGridView.getLayoutManager();
+        int previousWidth = galleryWidth;
+        int previousColumns = layoutManager.getSpanCount();
 
         // Update the grid layout
         galleryMaxWidth = (int) (getResources().getDimension( R.dimen.galleryImageWidth ) * mGlobalPrefs.coverArtScale);
@@ -1026,9 +1149,12 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         galleryWidth = width / galleryColumns - galleryHalfSpacing * 2;
 
         layoutManager.setSpanCount( galleryColumns );
-        if (mGridView.getAdapter() != null) {
-            mGridView.getAdapter().notifyDataSetChanged();
-        }
+
+        // Every cell has to be laid out again if the cover art scale changed
+        if( galleryWidth != previousWidth || galleryColumns != previousColumns )
+            adapter.notifyDataSetChanged();
+        adapter.submitList( items );
+
         mGridView.setFocusable(false);
         mGridView.setFocusableInTouchMode(false);
 
@@ -1049,7 +1175,27 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         }
     }
 
-    public void launchGameActivity( String romPath, String zipPath, String romMd5, String romCrc,
+    /**
+     * @return The items of the grid, with the recently played games first if they are shown.
+     */
+    private List<GalleryItem> getGridItems(List<GalleryItem> items, List<GalleryItem> recentItems)
+    {
+        if( mGlobalPrefs.isRecentShown && TextUtils.isEmpty(mSearchQuery) && recentItems.size() > 0 )
+        {
+            List<GalleryItem> combinedItems = new ArrayList<>();
+
+            combinedItems.add( new GalleryItem( this, getString( R.string.galleryRecentlyPlayed ) ) );
+            combinedItems.addAll( recentItems );
+
+            combinedItems.add( new GalleryItem( this, getString( R.string.galleryLibrary ) ) );
+            combinedItems.addAll( items );
+
+            items = combinedItems;
+        }
+        return items;
+    }
+
+    public void launchGameActivity( String romPath, String zipPath, final String romMd5, String romCrc,
             String romHeaderName, byte romCountryCode, String romArtPath, String romGoodName, String romDisplayName,
             boolean isRestarting)
     {
@@ -1075,8 +1221,8 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             return;
         }
 
-        // Update the ConfigSection with the new value for lastPlayed
-        final String lastPlayed = Integer.toString( (int) ( new Date().getTime() / 1000 ) );
+        // Update the library with the new value for lastPlayed
+        final int lastPlayed = (int) ( new Date().getTime() / 1000 );
         File romFileName = new File(romPath);
 
         String romLegacySaveFileName;
@@ -1093,8 +1239,14 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             romLegacySaveFileName = romFile.getName();
         }
 
-        mConfig.put(romMd5, "lastPlayed", lastPlayed);
-        mConfig.save();
+        // Write the library off the UI thread, the game is starting
+        final RomLibrary library = mLibrary;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                library.markPlayed(romMd5, lastPlayed);
+            }
+        });
 
         ///Drawer layout can be null if this method is called from onCreate
         if (mDrawerLayout != null) {
@@ -1111,6 +1263,22 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
 
         mSelectedItem = null;
 
+        // ROMs inside archives are played from the extraction cache, the extraction service only
+        // extracts them on a miss
+        if (!TextUtils.isEmpty(zipPath))
+        {
+            File extractedRomFile = new File(ExtractedRomCache.getDirectory(mGlobalPrefs.unzippedRomsDir, romMd5),
+                    romFileName.getName());
+
+            if (new File(zipPath).exists() || extractedRomFile.exists())
+            {
+                mExtractRomFragment.ExtractRom(zipPath, mGlobalPrefs.unzippedRomsDir,
+                        mGlobalPrefs.extractedRomCacheSize, extractedRomFile.getPath(), romMd5, romCrc, romHeaderName,
+                        romCountryCode, romArtPath, romGoodName, romDisplayName, romLegacySaveFileName, isRestarting);
+                return;
+            }
+        }
+
         if (romFileName.exists())
         {
             // Launch the game activity
@@ -1119,14 +1287,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         }
         else
         {
-            if ((!TextUtils.isEmpty(zipPath) && !new File(zipPath).exists()) || TextUtils.isEmpty(zipPath)) {
-                Notifier.showToast(this, R.string.toast_nativeMainFailure07);
-                return;
-            }
-
-            mExtractRomFragment.ExtractRom(zipPath, mGlobalPrefs.unzippedRomsDir, romPath, romMd5, romCrc,
-                    romHeaderName, romCountryCode, romArtPath, romGoodName, romDisplayName, romLegacySaveFileName,
-                    isRestarting);
+            Notifier.showToast(this, R.string.toast_nativeMainFailure07);
         }
     }
 
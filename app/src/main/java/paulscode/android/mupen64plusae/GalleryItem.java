@@ -22,8 +22,10 @@ package paulscode.android.mupen64plusae;
 
 import android.content.Context;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.AsyncTask;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import android.text.TextUtils;
 import android.util.TypedValue;
@@ -38,12 +40,12 @@ import android.widget.TextView;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
 import es.jdbc.n64retroplus.R;
-import paulscode.android.mupen64plusae.task.LoadBitmapTask;
 import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.util.CoverArtLoader;
 
 @SuppressWarnings("WeakerAccess")
 public class GalleryItem
@@ -128,42 +130,11 @@ public class GalleryItem
             return "unknown file";
     }
     
-    public static class NameComparator implements Comparator<GalleryItem>
-    {
-        @Override
-        public int compare( GalleryItem item1, GalleryItem item2 )
-        {
-            return item1.toString().compareToIgnoreCase( item2.toString() );
-        }
-    }
-
-    public static class RomFileComparator implements Comparator<GalleryItem>
-    {
-        @Override
-        public int compare( GalleryItem item1, GalleryItem item2 )
-        {
-            String romFileName1 = item1.romFile != null ? item1.romFile.getName() : "";
-            String romFileName2 = item2.romFile != null ? item2.romFile.getName() : "";
-
-            return romFileName1.compareToIgnoreCase( romFileName2);
-        }
-    }
-    
-    public static class RecentlyPlayedComparator implements Comparator<GalleryItem>
-    {
-        @Override
-        public int compare( GalleryItem item1, GalleryItem item2 )
-        {
-            return item2.lastPlayed - item1.lastPlayed;
-        }
-    }
-    
     public static class ViewHolder extends RecyclerView.ViewHolder implements OnClickListener,
             OnLongClickListener
     {
         public GalleryItem item;
         private WeakReference<Context> mContext;
-        LoadBitmapTask mLoadBitmapTask = null;
         
         ViewHolder( WeakReference<Context> context, View view )
         {
@@ -207,13 +178,239 @@ public class GalleryItem
     
     public static class Adapter extends RecyclerView.Adapter<ViewHolder>
     {
+        /** Payload of items that changed without changing how their cell looks */
+        private static final Object PAYLOAD_ITEM = new Object();
+        
+        /** Lists where more than this share of the items moved are shown without a diff */
+        private static final int REORDERED_DIVISOR = 4;
+        
         private final WeakReference<Context> mContext;
-        private final List<GalleryItem> mObjects;
+        private List<GalleryItem> mObjects;
+        private long[] mIds;
+        
+        // Incremented by every submitted list, only the last one is shown
+        private int mGeneration = 0;
         
         public Adapter( Context context, List<GalleryItem> objects )
         {
             mContext = new WeakReference<>(context);
             mObjects = objects;
+            mIds = getIds( objects );
+            setHasStableIds( true );
+        }
+        
+        /**
+         * Shows new items, only updating the cells that changed. The changes are found in the
+         * background, the items are shown once they are known.
+         */
+        public void submitList( List<GalleryItem> objects )
+        {
+            int generation = ++mGeneration;
+            long[] ids = getIds( objects );
+            
+            // Nothing to compare
+            if( mObjects.isEmpty() || objects.isEmpty() )
+            {
+                int oldCount = mObjects.size();
+                mObjects = objects;
+                mIds = ids;
+                if( oldCount > 0 )
+                    notifyItemRangeRemoved( 0, oldCount );
+                if( !objects.isEmpty() )
+                    notifyItemRangeInserted( 0, objects.size() );
+                return;
+            }
+            
+            new DiffTask( this, generation, new DiffCallback( mObjects, mIds, objects, ids ) )
+                    .executeOnExecutor( AsyncTask.THREAD_POOL_EXECUTOR );
+        }
+        
+        private void onDiffFinished( int generation, DiffCallback callback, DiffUtil.DiffResult result )
+        {
+            // A newer list was submitted in the meantime
+            if( generation != mGeneration )
+                return;
+            
+            mObjects = callback.mNewObjects;
+            mIds = callback.mNewIds;
+            
+            // Not diffed because most of the order changed
+            if( result == null )
+                notifyDataSetChanged();
+            else
+                result.dispatchUpdatesTo( this );
+        }
+        
+        /**
+         * Identifies the items by MD5. The recently played games are also in the library, so the
+         * games before the last heading are told apart by their section.
+         */
+        private static long[] getIds( List<GalleryItem> objects )
+        {
+            int lastHeading = -1;
+            for( int i = 0; i < objects.size(); ++i )
+            {
+                if( objects.get( i ).isHeading )
+                    lastHeading = i;
+            }
+            
+            long[] ids = new long[objects.size()];
+            int section = 0;
+            for( int i = 0; i < objects.size(); ++i )
+            {
+                GalleryItem item = objects.get( i );
+                if( item.isHeading )
+                    ids[i] = hash( "heading:" + item.displayName );
+                else if( i < lastHeading )
+                    ids[i] = hash( section + ":" + item.md5 );
+                else
+                    ids[i] = hash( item.md5 );
+                
+                if( item.isHeading )
+                    section++;
+            }
+            return ids;
+        }
+        
+        /**
+         * @return The 64-bit FNV-1a hash of a string.
+         */
+        private static long hash( String key )
+        {
+            long hash = 0xcbf29ce484222325L;
+            for( int i = 0; i < key.length(); ++i )
+            {
+                hash ^= key.charAt( i );
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+        
+        private static class DiffCallback extends DiffUtil.Callback
+        {
+            private final List<GalleryItem> mOldObjects;
+            private final long[] mOldIds;
+            private final List<GalleryItem> mNewObjects;
+            private final long[] mNewIds;
+            
+            DiffCallback( List<GalleryItem> oldObjects, long[] oldIds, List<GalleryItem> newObjects, long[] newIds )
+            {
+                mOldObjects = oldObjects;
+                mOldIds = oldIds;
+                mNewObjects = newObjects;
+                mNewIds = newIds;
+            }
+            
+            @Override
+            public int getOldListSize()
+            {
+                return mOldObjects.size();
+            }
+            
+            @Override
+            public int getNewListSize()
+            {
+                return mNewObjects.size();
+            }
+            
+            @Override
+            public boolean areItemsTheSame( int oldItemPosition, int newItemPosition )
+            {
+                return mOldIds[oldItemPosition] == mNewIds[newItemPosition];
+            }
+            
+            @Override
+            public boolean areContentsTheSame( int oldItemPosition, int newItemPosition )
+            {
+                // Items that aren't dispatched keep the old item in their view holder, so the fields
+                // used when the cell is clicked count as well
+                GalleryItem oldItem = mOldObjects.get( oldItemPosition );
+                GalleryItem newItem = mNewObjects.get( newItemPosition );
+                return looksTheSame( oldItem, newItem ) && TextUtils.equals( oldItem.md5, newItem.md5 ) &&
+                        TextUtils.equals( oldItem.crc, newItem.crc ) &&
+                        TextUtils.equals( oldItem.headerName, newItem.headerName ) &&
+                        TextUtils.equals( oldItem.goodName, newItem.goodName ) &&
+                        oldItem.countryCode == newItem.countryCode && oldItem.lastPlayed == newItem.lastPlayed &&
+                        sameFile( oldItem.romFile, newItem.romFile ) && sameFile( oldItem.zipFile, newItem.zipFile );
+            }
+            
+            @Override
+            public Object getChangePayload( int oldItemPosition, int newItemPosition )
+            {
+                return looksTheSame( mOldObjects.get( oldItemPosition ), mNewObjects.get( newItemPosition ) ) ?
+                        PAYLOAD_ITEM : null;
+            }
+            
+            /**
+             * @return True if most of the items in both lists changed order. The diff would then
+             *         take time quadratic in the size of the lists.
+             */
+            boolean isMostlyReordered()
+            {
+                HashMap<Long, Integer> oldPositions = new HashMap<>( mOldIds.length * 2 );
+                for( int i = 0; i < mOldIds.length; ++i )
+                    oldPositions.put( mOldIds[i], i );
+                
+                // Items still in order only go forward in the old list
+                int kept = 0;
+                int reordered = 0;
+                int previous = -1;
+                for( long id : mNewIds )
+                {
+                    Integer position = oldPositions.get( id );
+                    if( position == null )
+                        continue;
+                    
+                    kept++;
+                    if( position < previous )
+                        reordered++;
+                    previous = position;
+                }
+                return reordered > kept / REORDERED_DIVISOR;
+            }
+            
+            private static boolean looksTheSame( GalleryItem oldItem, GalleryItem newItem )
+            {
+                return oldItem.isHeading == newItem.isHeading && oldItem.toString().equals( newItem.toString() ) &&
+                        TextUtils.equals( oldItem.artPath, newItem.artPath ) && oldItem.scale == newItem.scale;
+            }
+            
+            private static boolean sameFile( File oldFile, File newFile )
+            {
+                return oldFile == null ? newFile == null : oldFile.equals( newFile );
+            }
+        }
+        
+        private static class DiffTask extends AsyncTask<Void, Void, DiffUtil.DiffResult>
+        {
+            private final WeakReference<Adapter> mAdapter;
+            private final int mGeneration;
+            private final DiffCallback mCallback;
+            
+            DiffTask( Adapter adapter, int generation, DiffCallback callback )
+            {
+                mAdapter = new WeakReference<>( adapter );
+                mGeneration = generation;
+                mCallback = callback;
+            }
+            
+            @Override
+            protected DiffUtil.DiffResult doInBackground( Void... params )
+            {
+                if( mCallback.isMostlyReordered() )
+                    return null;
+                
+                // Moves are dispatched as removals and insertions, detecting them is quadratic
+                return DiffUtil.calculateDiff( mCallback, false );
+            }
+            
+            @Override
+            protected void onPostExecute( DiffUtil.DiffResult result )
+            {
+                Adapter adapter = mAdapter.get();
+                if( adapter != null )
+                    adapter.onDiffFinished( mGeneration, mCallback, result );
+            }
         }
         
         @Override
@@ -222,10 +419,15 @@ public class GalleryItem
             return mObjects.size();
         }
         
+        GalleryItem getItem( int position )
+        {
+            return mObjects.get( position );
+        }
+        
         @Override
         public long getItemId( int position )
         {
-            return 0;
+            return mIds[position];
         }
         
         @Override
@@ -234,18 +436,24 @@ public class GalleryItem
             return mObjects.get( position ).isHeading ? 1 : 0;
         }
         
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads )
+        {
+            // Only the item behind the cell changed, keep the cell and its art as they are
+            if( !payloads.isEmpty() && holder.item != null )
+            {
+                holder.item = mObjects.get( position );
+                return;
+            }
+            
+            onBindViewHolder( holder, position );
+        }
+        
         public void onBindViewHolder(@NonNull ViewHolder holder, int position )
         {
-            // Clear the now-offscreen bitmap to conserve memory, also cancel any tasks reading the bitmap
+            // Clear the now-offscreen bitmap to conserve memory
             if( holder.item != null )
-            {
-                if(holder.mLoadBitmapTask != null)
-                {
-                    holder.mLoadBitmapTask.cancel(true);
-                    holder.mLoadBitmapTask = null;
-                }
                 holder.item.clearBitmap();
-            }
             
             // Called by RecyclerView to display the data at the specified position.
             View view = holder.itemView;
@@ -273,6 +481,7 @@ public class GalleryItem
                         tv1.setPadding( 5, 10, 0, 0 );
                         tv1.setTextSize( TypedValue.COMPLEX_UNIT_DIP, 18.0f );
                         artView.setVisibility( View.GONE );
+                        CoverArtLoader.getInstance( tempContext ).cancel( artView );
                     }
                     else
                     {
@@ -285,11 +494,9 @@ public class GalleryItem
                         tv1.setTextSize( TypedValue.COMPLEX_UNIT_DIP, 13.0f*item.scale );
                         artView.setVisibility( View.VISIBLE );
 
-                        artView.setImageResource( R.drawable.default_coverart );
-
-                        //Load the real cover art in a background task
-                        holder.mLoadBitmapTask = new LoadBitmapTask(tempContext, item.artPath, artView);
-                        holder.mLoadBitmapTask.execute((String) null);
+                        // Show the cover art, loading it in the background if it isn't decoded yet
+                        CoverArtLoader.getInstance( tempContext ).load( artView, item.artPath,
+                                activity.galleryWidth, position );
 
                         artView.getLayoutParams().width = activity.galleryWidth;
                         artView.getLayoutParams().height = (int) ( activity.galleryWidth / activity.galleryAspectRatio );
@@ -302,6 +509,15 @@ public class GalleryItem
             }
         }
         
+        @Override
+        public void onViewRecycled(@NonNull ViewHolder holder )
+        {
+            // Give the now-offscreen bitmap back to the cache, also drop any load of the bitmap
+            ImageView artView = holder.itemView.findViewById( R.id.imageArt );
+            if( artView != null )
+                CoverArtLoader.getInstance( artView.getContext() ).cancel( artView );
+        }
+        
         @NonNull
         public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType )
         {
@@ -0,0 +1,199 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import paulscode.android.mupen64plusae.util.CoverArtCache;
+import paulscode.android.mupen64plusae.util.CoverArtLoader;
+
+/**
+ * Follows the scrolling of the gallery grid and loads the cover art of the rows it is heading
+ * to, so the art is already decoded when their cells are shown.
+ * <p>
+ * The faster the grid scrolls, the more rows are loaded ahead. The art on screen and the art
+ * loaded ahead are kept within a share of the cover art cache, so loading ahead never evicts art
+ * that is about to be shown. Loading ahead is cut back for a while when the system runs low on
+ * memory.
+ */
+class GalleryPrefetcher extends RecyclerView.OnScrollListener
+{
+    /** Rows loaded ahead even when the grid doesn't move */
+    private static final int MIN_ROWS_AHEAD = 2;
+
+    private static final int MAX_ROWS_AHEAD = 12;
+
+    /** Art is loaded as far ahead as the grid scrolls in this time, in milliseconds */
+    private static final int LOOKAHEAD_MS = 500;
+
+    /** Scroll events further apart than this start a new gesture, in milliseconds */
+    private static final int MAX_FRAME_MS = 100;
+
+    /** Share of the cover art cache the art on screen and ahead can take */
+    private static final int CACHE_BUDGET_DIVISOR = 2;
+
+    /** How long loading ahead is cut back after the system runs low on memory, in milliseconds */
+    private static final long MEMORY_PRESSURE_MS = 30 * 1000;
+
+    private final GalleryActivity mActivity;
+    private final CoverArtLoader mLoader;
+    private final CoverArtCache mCache;
+
+    // Scroll velocity in pixels per millisecond, and whether the grid last scrolled down
+    private float mVelocity = 0;
+    private boolean mScrollingDown = true;
+    private long mLastScrollTime = 0;
+
+    // Last memory pressure reported by the system, and until when it is taken into account
+    private int mTrimLevel = 0;
+    private long mTrimEndTime = 0;
+
+    // Positions loaded ahead
+    private int mFirstPrefetched = 0;
+    private int mLastPrefetched = -1;
+
+    GalleryPrefetcher( GalleryActivity activity )
+    {
+        mActivity = activity;
+        mLoader = CoverArtLoader.getInstance( activity );
+        mCache = CoverArtCache.getInstance( activity );
+    }
+
+    @Override
+    public void onScrollStateChanged( @NonNull RecyclerView recyclerView, int newState )
+    {
+        if( newState == RecyclerView.SCROLL_STATE_IDLE )
+            mVelocity = 0;
+    }
+
+    @Override
+    public void onScrolled( @NonNull RecyclerView recyclerView, int dx, int dy )
+    {
+        if( dy != 0 )
+        {
+            long now = SystemClock.uptimeMillis();
+            long elapsed = now - mLastScrollTime;
+            float velocity = Math.abs( dy ) / (float) Math.max( 1, Math.min( elapsed, MAX_FRAME_MS ) );
+
+            // A new gesture doesn't carry over the velocity of the previous one
+            mVelocity = elapsed > MAX_FRAME_MS ? velocity : ( mVelocity + velocity ) / 2;
+            mScrollingDown = dy > 0;
+            mLastScrollTime = now;
+        }
+
+        GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+        RecyclerView.Adapter adapter = recyclerView.getAdapter();
+        if( layoutManager == null || !( adapter instanceof GalleryItem.Adapter ) )
+            return;
+
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if( first == RecyclerView.NO_POSITION )
+            return;
+
+        mLoader.setViewport( first, last );
+        prefetch( (GalleryItem.Adapter) adapter, layoutManager, first, last );
+    }
+
+    /**
+     * Cuts back loading ahead when the system runs low on memory.
+     *
+     * @param level Level passed to {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    void onTrimMemory( int level )
+    {
+        if( level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW || level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN )
+            return;
+
+        mTrimLevel = level;
+        mTrimEndTime = SystemClock.uptimeMillis() + MEMORY_PRESSURE_MS;
+
+        // Loaded again on the next scroll, within the smaller budget
+        mLoader.cancelPrefetches( 0, -1 );
+        mFirstPrefetched = 0;
+        mLastPrefetched = -1;
+    }
+
+    private void prefetch( GalleryItem.Adapter adapter, GridLayoutManager layoutManager, int first, int last )
+    {
+        int rows = MIN_ROWS_AHEAD;
+        View firstView = layoutManager.findViewByPosition( first );
+        if( firstView != null && firstView.getHeight() > 0 )
+            rows += (int) Math.ceil( mVelocity * LOOKAHEAD_MS / firstView.getHeight() );
+
+        int count = Math.min( Math.min( rows, MAX_ROWS_AHEAD ) * layoutManager.getSpanCount(),
+                getBudget( last - first + 1 ) );
+
+        int from;
+        int to;
+        if( mScrollingDown )
+        {
+            from = last + 1;
+            to = Math.min( last + count, adapter.getItemCount() - 1 );
+        }
+        else
+        {
+            from = Math.max( first - count, 0 );
+            to = first - 1;
+        }
+
+        if( from == mFirstPrefetched && to == mLastPrefetched )
+            return;
+
+        mLoader.cancelPrefetches( from, to );
+        mFirstPrefetched = from;
+        mLastPrefetched = to;
+
+        for( int position = from; position <= to; ++position )
+        {
+            GalleryItem item = adapter.getItem( position );
+            if( item != null && !item.isHeading )
+                mLoader.prefetch( item.artPath, mActivity.galleryWidth, position );
+        }
+    }
+
+    /**
+     * @return How much art can be loaded ahead without evicting any art on screen or ahead.
+     */
+    private int getBudget( int visibleCount )
+    {
+        long budget = mCache.getMaxMemoryBytes() / CACHE_BUDGET_DIVISOR;
+        if( SystemClock.uptimeMillis() < mTrimEndTime )
+        {
+            if( mTrimLevel >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL )
+                return 0;
+            budget /= 2;
+        }
+
+        int width = mActivity.galleryWidth;
+        long artBytes = (long) width * (long) ( width / mActivity.galleryAspectRatio ) * 4;
+        if( artBytes <= 0 )
+            return 0;
+
+        return (int) Math.max( 0, budget / artBytes - visibleCount );
+    }
+}
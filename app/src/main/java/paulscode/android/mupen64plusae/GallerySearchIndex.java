@@ -0,0 +1,480 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory trigram index of the gallery, so searches don't have to go through the whole library.
+ * <p>
+ * Every game is a {@link Document} indexed by the trigrams of its good name, base name, file name
+ * and header name, and found by its key. A search looks up the games having every trigram of the
+ * words typed, then checks that each word really appears in one of the names. When a query only
+ * extends the previous one, as it does while typing, the previous results are narrowed down
+ * instead.
+ * <p>
+ * Matches are ranked by where the words appear in the display name of the game: at its start, at
+ * the start of one of its words, anywhere in it, or only in one of the other names. Games with the
+ * same rank are sorted by display name, like the gallery.
+ * <p>
+ * Only the games that were added, removed or renamed are indexed again by an update. An update
+ * builds the new index on the side and swaps it in when done, so searches never wait for it.
+ */
+public class GallerySearchIndex
+{
+    private static final int MIN_REMOVED_DOCUMENTS = 64;
+
+    private static final int RANK_START = 3;
+    private static final int RANK_WORD_START = 2;
+    private static final int RANK_DISPLAY_NAME = 1;
+
+    /** Games whose trigrams contain a document id, in increasing order */
+    private static class Postings
+    {
+        int[] ids = new int[4];
+        int size = 0;
+
+        // Searched by a published snapshot, an update must copy it before adding to it
+        boolean shared = false;
+
+        Postings copy()
+        {
+            Postings copy = new Postings();
+            copy.ids = Arrays.copyOf( ids, Math.max( 4, size * 2 ) );
+            copy.size = size;
+            return copy;
+        }
+
+        void add( int id )
+        {
+            if( size == ids.length )
+                ids = Arrays.copyOf( ids, size * 2 );
+            ids[size++] = id;
+        }
+
+        boolean contains( int id )
+        {
+            return Arrays.binarySearch( ids, 0, size, id ) >= 0;
+        }
+    }
+
+    /**
+     * A game as seen by the index.
+     */
+    public static class Document
+    {
+        public final String key;
+        public final String text;
+        public final String displayName;
+
+        /**
+         * @param key Identifies the game in search results, such as its MD5.
+         * @param text Names the game is searched by, from {@link #getSearchText}.
+         * @param displayName Name shown in the gallery, which ranks and sorts the results.
+         */
+        public Document( String key, String text, String displayName )
+        {
+            this.key = key;
+            this.text = text;
+            this.displayName = displayName;
+        }
+    }
+
+    /** State of the index searched between two updates, never changed once published */
+    private static class Snapshot
+    {
+        final String[] keys;
+        final String[] texts;
+        final String[] displayNames;
+        final int documentCount;
+        final Map<Long, Postings> postings;
+
+        Snapshot( String[] keys, String[] texts, String[] displayNames, int documentCount,
+                Map<Long, Postings> postings )
+        {
+            this.keys = keys;
+            this.texts = texts;
+            this.displayNames = displayNames;
+            this.documentCount = documentCount;
+            this.postings = postings;
+        }
+    }
+
+    /** Results of a search, narrowed down while the query keeps being extended */
+    private static class LastSearch
+    {
+        final Snapshot snapshot;
+        final String query;
+        final int[] results;
+
+        LastSearch( Snapshot snapshot, String query, int[] results )
+        {
+            this.snapshot = snapshot;
+            this.query = query;
+            this.results = results;
+        }
+    }
+
+    // Index being updated, only used while holding the lock of the update. Documents are never
+    // renumbered until the index is compacted, so postings stay sorted.
+    private String[] mKeys = new String[0];
+    private String[] mTexts = new String[0];
+    private String[] mDisplayNames = new String[0];
+    private int mDocumentCount = 0;
+    private int mRemovedCount = 0;
+
+    private final Map<String, Integer> mDocuments = new HashMap<>();
+    private final Map<Long, Postings> mPostings = new HashMap<>();
+
+    // Index searched, swapped in at the end of each update
+    private volatile Snapshot mSnapshot = new Snapshot( new String[0], new String[0], new String[0], 0,
+            new HashMap<Long, Postings>() );
+
+    private volatile LastSearch mLastSearch = null;
+
+    /**
+     * Builds the text a game is searched by.
+     *
+     * @param goodName Name of the game in the ROM database.
+     * @param baseName Name without region and dump tags, or null.
+     * @param fileName Name of the ROM file, or null.
+     * @param headerName Name in the ROM header, or null.
+     *
+     * @return The lowercase names, one per line.
+     */
+    public static String getSearchText( String goodName, String baseName, String fileName, String headerName )
+    {
+        StringBuilder text = new StringBuilder();
+        for( String name : new String[]{ goodName, baseName, fileName, headerName } )
+        {
+            if( name != null )
+                text.append( name.toLowerCase( Locale.US ) ).append( '\n' );
+        }
+        return text.toString();
+    }
+
+    /**
+     * Adds, renames and removes games.
+     *
+     * @param documents Games that were added or changed.
+     * @param removedKeys Keys of the games that were removed.
+     */
+    public synchronized void update( Collection<Document> documents, Collection<String> removedKeys )
+    {
+        for( String key : removedKeys )
+        {
+            Integer id = mDocuments.remove( key );
+            if( id != null )
+                remove( id );
+        }
+
+        for( Document document : documents )
+        {
+            Integer id = mDocuments.get( document.key );
+            String displayName = document.displayName == null ? "" : document.displayName.toLowerCase( Locale.US );
+            if( id != null && document.text.equals( mTexts[id] ) )
+            {
+                // Same names, the postings are still valid
+                mDisplayNames[id] = displayName;
+            }
+            else
+            {
+                if( id != null )
+                    remove( id );
+                mDocuments.put( document.key, add( document.key, document.text, displayName ) );
+            }
+        }
+
+        if( mRemovedCount > MIN_REMOVED_DOCUMENTS && mRemovedCount > mDocumentCount / 2 )
+            compact();
+
+        // The postings published are copied before the next update adds to them
+        for( Postings postings : mPostings.values() )
+            postings.shared = true;
+
+        mSnapshot = new Snapshot( Arrays.copyOf( mKeys, mDocumentCount ), Arrays.copyOf( mTexts, mDocumentCount ),
+                Arrays.copyOf( mDisplayNames, mDocumentCount ), mDocumentCount, new HashMap<>( mPostings ) );
+        mLastSearch = null;
+    }
+
+    /**
+     * Replaces every game in the index. Games that didn't change aren't indexed again.
+     *
+     * @param documents Every game.
+     */
+    public synchronized void replace( Collection<Document> documents )
+    {
+        Set<String> removedKeys = new HashSet<>( mDocuments.keySet() );
+        for( Document document : documents )
+            removedKeys.remove( document.key );
+
+        update( documents, removedKeys );
+    }
+
+    /**
+     * Finds the games containing every word of a query in one of their names.
+     *
+     * @param query Words separated by spaces, case is ignored.
+     *
+     * @return The keys of the matching games, best matches first.
+     */
+    public List<String> search( String query )
+    {
+        query = query.toLowerCase( Locale.US );
+        List<String> words = new ArrayList<>();
+        for( String word : query.split( " " ) )
+        {
+            if( word.length() > 0 )
+                words.add( word );
+        }
+
+        Snapshot snapshot = mSnapshot;
+        LastSearch lastSearch = mLastSearch;
+        int[] candidates;
+        if( lastSearch != null && lastSearch.snapshot == snapshot && query.startsWith( lastSearch.query ) )
+        {
+            // Extending a query can only remove matches
+            candidates = lastSearch.results;
+        }
+        else
+        {
+            candidates = findCandidates( snapshot, words );
+        }
+
+        int[] results = new int[candidates.length];
+        int count = 0;
+        for( int id : candidates )
+        {
+            if( matches( snapshot, id, words ) )
+                results[count++] = id;
+        }
+        results = Arrays.copyOf( results, count );
+        mLastSearch = new LastSearch( snapshot, query, results );
+
+        return rank( snapshot, results, words );
+    }
+
+    /**
+     * @return Number of games in the index, including removed games that weren't compacted yet.
+     */
+    @VisibleForTesting
+    int getDocumentCount()
+    {
+        return mSnapshot.documentCount;
+    }
+
+    private int add( String key, String text, String displayName )
+    {
+        if( mDocumentCount == mKeys.length )
+        {
+            int capacity = Math.max( 16, mDocumentCount * 2 );
+            mKeys = Arrays.copyOf( mKeys, capacity );
+            mTexts = Arrays.copyOf( mTexts, capacity );
+            mDisplayNames = Arrays.copyOf( mDisplayNames, capacity );
+        }
+
+        int id = mDocumentCount++;
+        mKeys[id] = key;
+        mTexts[id] = text;
+        mDisplayNames[id] = displayName;
+
+        for( int i = 0; i + 3 <= text.length(); ++i )
+        {
+            long trigram = trigram( text, i );
+            Postings postings = mPostings.get( trigram );
+            if( postings == null || postings.shared )
+            {
+                postings = postings == null ? new Postings() : postings.copy();
+                mPostings.put( trigram, postings );
+            }
+
+            // A trigram can appear several times in the same game
+            if( postings.size == 0 || postings.ids[postings.size - 1] != id )
+                postings.add( id );
+        }
+        return id;
+    }
+
+    private void remove( int id )
+    {
+        // The id stays in the postings, removed games are skipped when searching
+        mKeys[id] = null;
+        mTexts[id] = null;
+        mDisplayNames[id] = null;
+        mRemovedCount++;
+    }
+
+    private void compact()
+    {
+        String[] keys = mKeys;
+        String[] texts = mTexts;
+        String[] displayNames = mDisplayNames;
+        int count = mDocumentCount;
+
+        mKeys = new String[0];
+        mTexts = new String[0];
+        mDisplayNames = new String[0];
+        mDocumentCount = 0;
+        mRemovedCount = 0;
+        mDocuments.clear();
+        mPostings.clear();
+
+        for( int id = 0; id < count; ++id )
+        {
+            if( keys[id] != null )
+                mDocuments.put( keys[id], add( keys[id], texts[id], displayNames[id] ) );
+        }
+    }
+
+    private static int[] findCandidates( Snapshot snapshot, List<String> words )
+    {
+        // Intersect the postings of every trigram, starting with the rarest
+        List<Postings> lists = new ArrayList<>();
+        for( String word : words )
+        {
+            for( int i = 0; i + 3 <= word.length(); ++i )
+            {
+                Postings postings = snapshot.postings.get( trigram( word, i ) );
+                if( postings == null )
+                    return new int[0];
+                lists.add( postings );
+            }
+        }
+
+        if( lists.isEmpty() )
+        {
+            // Words too short for trigrams are checked against every game
+            int[] all = new int[snapshot.documentCount];
+            for( int id = 0; id < snapshot.documentCount; ++id )
+                all[id] = id;
+            return all;
+        }
+
+        Postings rarest = lists.get( 0 );
+        for( Postings postings : lists )
+        {
+            if( postings.size < rarest.size )
+                rarest = postings;
+        }
+
+        int[] candidates = new int[rarest.size];
+        int count = 0;
+        for( int i = 0; i < rarest.size; ++i )
+        {
+            int id = rarest.ids[i];
+            boolean found = true;
+            for( int j = 0; j < lists.size() && found; ++j )
+                found = lists.get( j ) == rarest || lists.get( j ).contains( id );
+
+            if( found )
+                candidates[count++] = id;
+        }
+        return Arrays.copyOf( candidates, count );
+    }
+
+    private static boolean matches( Snapshot snapshot, int id, List<String> words )
+    {
+        String text = snapshot.texts[id];
+        if( text == null )
+            return false;
+
+        for( String word : words )
+        {
+            if( !text.contains( word ) )
+                return false;
+        }
+        return true;
+    }
+
+    private static List<String> rank( final Snapshot snapshot, int[] results, List<String> words )
+    {
+        final int[] ranks = new int[snapshot.documentCount];
+        List<Integer> ids = new ArrayList<>( results.length );
+        for( int id : results )
+        {
+            ranks[id] = rank( snapshot.displayNames[id], words );
+            ids.add( id );
+        }
+
+        Collections.sort( ids, new Comparator<Integer>()
+        {
+            @Override
+            public int compare( Integer lhs, Integer rhs )
+            {
+                int result = ranks[rhs] - ranks[lhs];
+                if( result == 0 )
+                    result = snapshot.displayNames[lhs].compareTo( snapshot.displayNames[rhs] );
+                if( result == 0 )
+                    result = snapshot.keys[lhs].compareTo( snapshot.keys[rhs] );
+                return result;
+            }
+        } );
+
+        List<String> keys = new ArrayList<>( ids.size() );
+        for( int id : ids )
+            keys.add( snapshot.keys[id] );
+        return keys;
+    }
+
+    private static int rank( String displayName, List<String> words )
+    {
+        int rank = 0;
+        for( String word : words )
+        {
+            int index = displayName.indexOf( word );
+            if( index == 0 )
+                rank += RANK_START;
+            else if( index > 0 && startsWord( displayName, word, index ) )
+                rank += RANK_WORD_START;
+            else if( index > 0 )
+                rank += RANK_DISPLAY_NAME;
+        }
+        return rank;
+    }
+
+    private static boolean startsWord( String name, String word, int index )
+    {
+        for( ; index > 0; index = name.indexOf( word, index + 1 ) )
+        {
+            if( !Character.isLetterOrDigit( name.charAt( index - 1 ) ) )
+                return true;
+        }
+        return false;
+    }
+
+    private static long trigram( String text, int start )
+    {
+        return ( (long) text.charAt( start ) << 32 ) | ( (long) text.charAt( start + 1 ) << 16 ) |
+                text.charAt( start + 2 );
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import paulscode.android.mupen64plusae.persistent.RomLibrary;
+
+/**
+ * Keeps the search index of the gallery in step with the library.
+ * <p>
+ * The index is built once from the search text stored with each ROM, and again only when the
+ * name the games are shown by changes. After that only the ROMs that scans and the user add,
+ * change or remove are indexed again, as the library tells about them.
+ */
+public class GallerySearchUpdater implements RomLibrary.ChangeListener
+{
+    private final GallerySearchIndex mIndex = new GallerySearchIndex();
+    private final RomLibrary mLibrary;
+
+    // Name the index was built with, null until it is built
+    private RomLibrary.DisplayName mDisplayName = null;
+
+    public GallerySearchUpdater( RomLibrary library )
+    {
+        mLibrary = library;
+    }
+
+    /**
+     * Builds the index, unless it was already built for the same name. Must not be called on the
+     * UI thread.
+     *
+     * @param displayName Name the games are shown by.
+     */
+    public synchronized void build( RomLibrary.DisplayName displayName )
+    {
+        if( displayName == mDisplayName )
+            return;
+
+        mIndex.replace( mLibrary.getSearchDocuments( displayName, null ) );
+        mDisplayName = displayName;
+    }
+
+    /**
+     * @see GallerySearchIndex#search
+     */
+    public List<String> search( String query )
+    {
+        return mIndex.search( query );
+    }
+
+    @Override
+    public synchronized void onRomsChanged( Collection<String> changedMd5s, Collection<String> removedMd5s )
+    {
+        // Changes made before the index is built are read when building it
+        if( mDisplayName == null )
+            return;
+
+        List<GallerySearchIndex.Document> documents = changedMd5s.isEmpty() ?
+                Collections.<GallerySearchIndex.Document>emptyList() :
+                mLibrary.getSearchDocuments( mDisplayName, new ArrayList<>( changedMd5s ) );
+
+        // ROMs written without what the gallery needs to show them can't be found any more
+        Set<String> removed = new HashSet<>( changedMd5s );
+        for( GallerySearchIndex.Document document : documents )
+            removed.remove( document.key );
+        removed.addAll( removedMd5s );
+
+        mIndex.update( documents, removed );
+    }
+
+    @Override
+    public synchronized void onRomsCleared()
+    {
+        if( mDisplayName != null )
+            mIndex.replace( Collections.<GallerySearchIndex.Document>emptyList() );
+    }
+}
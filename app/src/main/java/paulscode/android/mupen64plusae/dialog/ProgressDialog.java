@@ -7,6 +7,7 @@ import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -20,6 +21,9 @@ public class ProgressDialog implements OnClickListener
     }
     
     private static final float PROGRESS_PRECISION = 1000f;
+
+    /** A tracked job is sampled once every this many frames, about 10 times per second */
+    private static final int FRAMES_PER_SAMPLE = 6;
     
     private final Activity mActivity;
     private final TextView mTextProgress;
@@ -32,6 +36,27 @@ public class ProgressDialog implements OnClickListener
     private long mMaxProgress = -1;
     private long mProgress = 0;
     private OnCancelListener mOnCancelListener = null;
+
+    private volatile ProgressTracker mTracker = null;
+    private ProgressTracker.Snapshot mLastSnapshot = null;
+    private long mLastSampleTime = 0;
+    private long mLastSampleBytes = 0;
+    private int mFrameCount = 0;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback()
+    {
+        @Override
+        public void doFrame( long frameTimeNanos )
+        {
+            ProgressTracker tracker = mTracker;
+            if( tracker == null )
+                return;
+
+            if( ++mFrameCount % FRAMES_PER_SAMPLE == 0 )
+                applySnapshot( tracker.getSnapshot(), frameTimeNanos );
+
+            Choreographer.getInstance().postFrameCallback( this );
+        }
+    };
     
     public ProgressDialog( Activity activity, CharSequence title,
             CharSequence subtitle, CharSequence message, boolean cancelable )
@@ -75,6 +100,11 @@ public class ProgressDialog implements OnClickListener
             mTextProgress.setText(original.mTextProgress.getText());
             mTextSubprogress.setText(original.mTextSubprogress.getText());
             mTextMessage.setText(original.mTextMessage.getText());
+
+            if(original.mTracker != null)
+            {
+                track(original.mTracker);
+            }
         }
     }
     
@@ -86,6 +116,7 @@ public class ProgressDialog implements OnClickListener
     
     public void dismiss()
     {
+        mTracker = null;
         mAbortDialog.dismiss();
         mDialog.dismiss();
     }
@@ -201,4 +232,69 @@ public class ProgressDialog implements OnClickListener
             }
         } );
     }
+    
+    /**
+     * Displays the progress of a job from now on, instead of waiting for the set and increment
+     * calls of this dialog. The tracker is sampled at a fixed rate on the UI thread until the
+     * dialog is dismissed.
+     *
+     * @param tracker Progress published by the job
+     */
+    public void track( final ProgressTracker tracker )
+    {
+        mActivity.runOnUiThread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean wasTracking = mTracker != null;
+                mTracker = tracker;
+                mLastSnapshot = null;
+
+                if( !wasTracking )
+                    Choreographer.getInstance().postFrameCallback( mFrameCallback );
+            }
+        } );
+    }
+    
+    private void applySnapshot( ProgressTracker.Snapshot snapshot, long frameTimeNanos )
+    {
+        ProgressTracker.Snapshot last = mLastSnapshot;
+        if( snapshot == last )
+            return;
+
+        if( snapshot.text != null && ( last == null || snapshot.text != last.text ) )
+            mTextProgress.setText( snapshot.text );
+
+        if( snapshot.subtext != null && ( last == null || snapshot.subtext != last.subtext ) )
+            mTextSubprogress.setText( snapshot.subtext );
+
+        // Show the throughput next to the message while bytes are being processed
+        CharSequence message = snapshot.message;
+        if( mLastSampleTime != 0 && snapshot.bytes > mLastSampleBytes )
+        {
+            float megabytesPerSecond = ( snapshot.bytes - mLastSampleBytes ) * 1000f /
+                    ( frameTimeNanos - mLastSampleTime );
+            message = ( message == null ? "" : message + " " ) +
+                    String.format( "(%.1f MB/s)", megabytesPerSecond );
+        }
+        if( message != null )
+            mTextMessage.setText( message );
+        mLastSampleTime = frameTimeNanos;
+        mLastSampleBytes = snapshot.bytes;
+
+        if( last == null || snapshot.maxProgress != last.maxProgress )
+        {
+            mMaxProgress = snapshot.maxProgress;
+            mProgressTotal.setVisibility( mMaxProgress > 0 ? View.VISIBLE : View.GONE );
+        }
+
+        if( mMaxProgress > 0 )
+        {
+            mProgress = snapshot.progress;
+            mProgressTotal.setProgress( Math.round( ( PROGRESS_PRECISION * mProgress ) / mMaxProgress ) );
+        }
+
+        mLastSnapshot = snapshot;
+    }
 }
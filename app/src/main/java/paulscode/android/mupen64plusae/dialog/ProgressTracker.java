@@ -0,0 +1,148 @@
+package paulscode.android.mupen64plusae.dialog;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Progress of a long running job, published by worker threads without locking and sampled by
+ * {@link ProgressDialog} at a fixed rate. Workers can report progress as often as they like, the
+ * cost on the UI thread doesn't depend on it.
+ */
+public class ProgressTracker
+{
+    /**
+     * Immutable state of the job at one point in time. Null texts haven't been set yet.
+     */
+    public static final class Snapshot
+    {
+        public final CharSequence text;
+        public final CharSequence subtext;
+        public final CharSequence message;
+        public final long progress;
+        public final long maxProgress;
+        /** Bytes processed so far, used to display the throughput */
+        public final long bytes;
+
+        Snapshot( CharSequence text, CharSequence subtext, CharSequence message, long progress,
+                  long maxProgress, long bytes )
+        {
+            this.text = text;
+            this.subtext = subtext;
+            this.message = message;
+            this.progress = progress;
+            this.maxProgress = maxProgress;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Change to the state, applied to the latest snapshot until no other thread interferes */
+    private interface Change
+    {
+        Snapshot apply( Snapshot current );
+    }
+
+    private final AtomicReference<Snapshot> mSnapshot =
+            new AtomicReference<>( new Snapshot( null, null, null, 0, -1, 0 ) );
+
+    public Snapshot getSnapshot()
+    {
+        return mSnapshot.get();
+    }
+
+    public void setText( final CharSequence text )
+    {
+        update( new Change()
+        {
+            @Override
+            public Snapshot apply( Snapshot current )
+            {
+                return new Snapshot( text, current.subtext, current.message, current.progress,
+                        current.maxProgress, current.bytes );
+            }
+        } );
+    }
+
+    public void setSubtext( final CharSequence subtext )
+    {
+        update( new Change()
+        {
+            @Override
+            public Snapshot apply( Snapshot current )
+            {
+                return new Snapshot( current.text, subtext, current.message, current.progress,
+                        current.maxProgress, current.bytes );
+            }
+        } );
+    }
+
+    public void setMessage( final CharSequence message )
+    {
+        update( new Change()
+        {
+            @Override
+            public Snapshot apply( Snapshot current )
+            {
+                return new Snapshot( current.text, current.subtext, message, current.progress,
+                        current.maxProgress, current.bytes );
+            }
+        } );
+    }
+
+    /**
+     * Sets the total amount of work and resets the progress, like
+     * {@link ProgressDialog#setMaxProgress(long)}.
+     */
+    public void setMaxProgress( final long maxProgress )
+    {
+        update( new Change()
+        {
+            @Override
+            public Snapshot apply( Snapshot current )
+            {
+                return new Snapshot( current.text, current.subtext, current.message, 0, maxProgress,
+                        current.bytes );
+            }
+        } );
+    }
+
+    public void incrementProgress( final long inc )
+    {
+        update( new Change()
+        {
+            @Override
+            public Snapshot apply( Snapshot current )
+            {
+                return new Snapshot( current.text, current.subtext, current.message, current.progress + inc,
+                        current.maxProgress, current.bytes );
+            }
+        } );
+    }
+
+    /**
+     * Reports the total number of bytes processed so far.
+     */
+    public void setBytes( final long bytes )
+    {
+        update( new Change()
+        {
+            @Override
+            public Snapshot apply( Snapshot current )
+            {
+                return new Snapshot( current.text, current.subtext, current.message, current.progress,
+                        current.maxProgress, bytes );
+            }
+        } );
+    }
+
+    /**
+     * Applies a change to the current state, retrying if another thread changed it meanwhile.
+     */
+    private void update( Change change )
+    {
+        Snapshot current;
+        do
+        {
+            current = mSnapshot.get();
+        }
+        while( !mSnapshot.compareAndSet( current, change.apply( current ) ) );
+    }
+}
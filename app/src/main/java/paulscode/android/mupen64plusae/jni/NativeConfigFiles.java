@@ -256,8 +256,8 @@ class NativeConfigFiles
 
         readHiResSettings(game, global);
 
-        // gln64 config file
-        final ConfigFile glideN64_conf = new ConfigFile( appData.glideN64_conf );
+        // GLideN64 per game settings, only the section of this game is needed
+        final ConfigFile glideN64_conf = new ConfigFile( appData.glideN64_conf, true );
 
         mupen64plus_cfg.put( "Video-GLideN64", "configVersion", String.valueOf(GLideN64Prefs.VERSION) );
 
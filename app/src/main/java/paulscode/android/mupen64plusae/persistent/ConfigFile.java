@@ -20,23 +20,40 @@
  */
 package paulscode.android.mupen64plusae.persistent;
 
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.lang3.StringUtils;
 
 import paulscode.android.mupen64plusae.util.FileUtil;
 
@@ -55,6 +72,21 @@ import paulscode.android.mupen64plusae.util.FileUtil;
  * <li>Leading and trailing whitespace in lines, param names, and values is discarded.
  * <li>Whitespace inside brackets or double-quotes is not discarded.
  * </ul>
+ * Files are read and written as UTF-8.
+ * <p>
+ * Large files that are mostly read from can be loaded lazily: sections are then only parsed the
+ * first time they are accessed. The position of each section in the file is kept in an index next
+ * to it, so that later loads of the same file don't even have to scan it.
+ * <p>
+ * Parameters can be indexed with {@link #addIndex(String)} to find the sections having a given
+ * value without looking at every section. Indexes are kept up to date by {@link #put}, {@link
+ * #remove}, {@link #clear()} and {@link #reload()}, changes made directly on a {@link
+ * ConfigSection} are not seen by them.
+ * <p>
+ * Saving only writes the file if something changed since it was loaded or last saved. The new
+ * contents are written to a temporary file that replaces the old one once it is safely on disk,
+ * so a crash while saving never leaves a truncated file behind. Bursts of changes can be written
+ * once in the background with {@link #saveLater(long)}.
  * 
  * @author Paul Lamb
  */
@@ -63,20 +95,78 @@ public class ConfigFile
     /** The name we use for the untitled section (preamble) of the config file. */
     public static final String SECTIONLESS_NAME = "[<sectionless!>]";
     
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    /** Extension of the section index kept next to lazily loaded files. */
+    private static final String INDEX_EXTENSION = ".index";
+
+    /** Version of the section index format, bump when it changes. */
+    private static final int INDEX_VERSION = 1;
+
     /** Name of the config file. */
     private final String mFilename;
     
+    /** True if sections are only parsed when they are first accessed. */
+    private final boolean mLazy;
+    
     /** Sections mapped by title for easy lookup, with insertion order retained. */
     private final LinkedHashMap<String, ConfigSection> mConfigMap;
     
+    /** Indexed parameters, each mapping a value to the titles of the sections having it. */
+    private final HashMap<String, HashMap<String, LinkedHashSet<String>>> mIndexes = new HashMap<>();
+    
+    /**
+     * Guards the sections and indexes. Sections guard their own contents, so getting and putting
+     * parameters only needs to read the section map.
+     */
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    
+    /** Serializes saves and guards {@link #mPendingSave}. */
+    private final Object mSaveLock = new Object();
+    
+    /** Section titles as returned by {@link #keySet()}, null once sections are added or removed. */
+    private volatile Set<String> mKeySnapshot = null;
+    
+    /** True if sections were added or removed since the file was loaded or saved. */
+    private volatile boolean mDirty = false;
+    
+    /** Save scheduled by {@link #saveLater(long)}, or null. */
+    private ScheduledFuture<?> mPendingSave = null;
+    
+    /** Thread writing files for {@link #saveLater(long)}, shared by all config files. */
+    private static final ScheduledExecutorService sSaveExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "ConfigFileSave" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+    
     /**
      * Reads the entire config file, and saves the data to internal collections for manipulation.
      * 
      * @param filename The config file to read from.
      */
     public ConfigFile( String filename )
+    {
+        this( filename, false );
+    }
+    
+    /**
+     * Reads the config file, and saves the data to internal collections for manipulation.
+     * 
+     * @param filename The config file to read from.
+     * @param lazy True to only locate the sections now and parse each one when it is first
+     *            accessed.
+     */
+    public ConfigFile( String filename, boolean lazy )
     {
         mFilename = filename;
+        mLazy = lazy;
         mConfigMap = new LinkedHashMap<>();
         reload();
     }
@@ -88,9 +178,17 @@ public class ConfigFile
      * 
      * @return A ConfigSection containing parameters, or null if not found.
      */
-    public synchronized ConfigSection get( String sectionTitle )
+    public ConfigSection get( String sectionTitle )
     {
-        return mConfigMap.get( sectionTitle );
+        mLock.readLock().lock();
+        try
+        {
+            return mConfigMap.get( sectionTitle );
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
     }
     
     /**
@@ -99,9 +197,25 @@ public class ConfigFile
      * 
      * @param sectionTitle Title of the section containing the parameter.
      */
-    public synchronized void remove( String sectionTitle )
+    public void remove( String sectionTitle )
     {
-        mConfigMap.remove( sectionTitle );
+        mLock.writeLock().lock();
+        try
+        {
+            ConfigSection section = mConfigMap.remove( sectionTitle );
+            if( section == null )
+                return;
+            
+            mDirty = true;
+            mKeySnapshot = null;
+            
+            for( String parameter : mIndexes.keySet() )
+                unindex( parameter, section.get( parameter ), sectionTitle );
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
     }
     
     /**
@@ -112,22 +226,15 @@ public class ConfigFile
      * 
      * @return The value of the specified parameter, or null if not found.
      */
-    public synchronized String get( String sectionTitle, String parameter )
+    public String get( String sectionTitle, String parameter )
     {
-        ConfigSection section = mConfigMap.get( sectionTitle );
-        
-        // The specified section doesn't exist or is empty.. quit
-        if( section == null || section.parameters == null )
-            return null;
-        
-        ConfigParameter confParam = section.parameters.get( parameter );
+        ConfigSection section = get( sectionTitle );
         
-        // The specified parameter doesn't exist.. quit
-        if( confParam == null )
+        // The specified section doesn't exist.. quit
+        if( section == null )
             return null;
         
-        // Got it
-        return confParam.value;
+        return section.get( parameter );
     }
     
     /**
@@ -137,24 +244,157 @@ public class ConfigFile
      * @param parameter The name of the parameter.
      * @param value The value to give the parameter.
      */
-    public synchronized void put( String sectionTitle, String parameter, String value )
+    public void put( String sectionTitle, String parameter, String value )
     {
-        ConfigSection section = mConfigMap.get( sectionTitle );
-        if( section == null )
+        mLock.writeLock().lock();
+        try
+        {
+            ConfigSection section = mConfigMap.get( sectionTitle );
+            if( section == null )
+            {
+                // Add a new section
+                section = new ConfigSection( sectionTitle );
+                mConfigMap.put( sectionTitle, section );
+                mDirty = true;
+                mKeySnapshot = null;
+            }
+            
+            if( mIndexes.containsKey( parameter ) )
+            {
+                unindex( parameter, section.get( parameter ), sectionTitle );
+                index( parameter, value, sectionTitle );
+            }
+            section.put( parameter, value );
+        }
+        finally
         {
-            // Add a new section
-            section = new ConfigSection( sectionTitle );
-            mConfigMap.put( sectionTitle, section );
+            mLock.writeLock().unlock();
         }
-        section.put( parameter, value );
     }
     
     /**
      * Erases any previously loaded data.
      */
-    public synchronized void clear()
+    public void clear()
+    {
+        mLock.writeLock().lock();
+        try
+        {
+            mConfigMap.clear();
+            mDirty = true;
+            mKeySnapshot = null;
+            
+            for( HashMap<String, LinkedHashSet<String>> index : mIndexes.values() )
+                index.clear();
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Indexes a parameter, so that the sections having a given value for it can be found without
+     * looking at every section. Does nothing if the parameter is already indexed.
+     * 
+     * @param parameter The name of the parameter.
+     */
+    public void addIndex( String parameter )
     {
-        mConfigMap.clear();
+        mLock.writeLock().lock();
+        try
+        {
+            if( mIndexes.containsKey( parameter ) )
+                return;
+            
+            mIndexes.put( parameter, new HashMap<String, LinkedHashSet<String>>() );
+            for( ConfigSection section : mConfigMap.values() )
+                index( parameter, section.get( parameter ), section.name );
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds the sections having a value for an indexed parameter.
+     * 
+     * @param parameter The name of the parameter, which must have been indexed.
+     * @param value The value to look for.
+     * 
+     * @return The titles of the matching sections, in the order they were indexed. The set is a
+     *         copy, so sections can be removed while going through it.
+     * @see #addIndex(String)
+     */
+    public Set<String> findSections( String parameter, String value )
+    {
+        mLock.readLock().lock();
+        try
+        {
+            LinkedHashSet<String> titles = getIndex( parameter ).get( value );
+            return titles == null ? new LinkedHashSet<String>() : new LinkedHashSet<>( titles );
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Lists the values an indexed parameter has in at least one section.
+     * 
+     * @param parameter The name of the parameter, which must have been indexed.
+     * 
+     * @return A copy of the distinct values of the parameter.
+     * @see #addIndex(String)
+     */
+    public Set<String> getIndexedValues( String parameter )
+    {
+        mLock.readLock().lock();
+        try
+        {
+            return new HashSet<>( getIndex( parameter ).keySet() );
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+    
+    private HashMap<String, LinkedHashSet<String>> getIndex( String parameter )
+    {
+        HashMap<String, LinkedHashSet<String>> index = mIndexes.get( parameter );
+        if( index == null )
+            throw new IllegalArgumentException( "Parameter " + parameter + " is not indexed" );
+        return index;
+    }
+    
+    private void index( String parameter, String value, String sectionTitle )
+    {
+        // Empty values aren't stored, see ConfigSection.put
+        if( StringUtils.isEmpty( value ) )
+            return;
+        
+        HashMap<String, LinkedHashSet<String>> index = mIndexes.get( parameter );
+        LinkedHashSet<String> titles = index.get( value );
+        if( titles == null )
+        {
+            titles = new LinkedHashSet<>();
+            index.put( value, titles );
+        }
+        titles.add( sectionTitle );
+    }
+    
+    private void unindex( String parameter, String value, String sectionTitle )
+    {
+        if( value == null )
+            return;
+        
+        HashMap<String, LinkedHashSet<String>> index = mIndexes.get( parameter );
+        LinkedHashSet<String> titles = index.get( value );
+        if( titles != null && titles.remove( sectionTitle ) && titles.isEmpty() )
+            index.remove( value );
     }
     
     /**
@@ -164,86 +404,170 @@ public class ConfigFile
      * @return True if successful.
      * @see #save()
      */
-    public synchronized boolean reload()
+    public boolean reload()
+    {
+        mLock.writeLock().lock();
+        try
+        {
+            boolean result = reloadSections();
+            mDirty = false;
+            
+            // Sections were replaced, index them again
+            for( String parameter : mIndexes.keySet() )
+            {
+                for( ConfigSection section : mConfigMap.values() )
+                    index( parameter, section.get( parameter ), section.name );
+            }
+            
+            return result;
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+    
+    private boolean reloadSections()
     {
         // Make sure a file was actually specified
-        if( TextUtils.isEmpty( mFilename ) )
+        if( StringUtils.isEmpty( mFilename ) )
             return false;
         
         // Free any previously loaded data
         clear();
         
-        FileInputStream fstream;
-        try
+        List<SectionRange> ranges = mLazy ? readIndex() : null;
+        byte[] data = null;
+        
+        if( ranges == null )
         {
-            fstream = new FileInputStream( mFilename );
+            try
+            {
+                data = readFile( mFilename );
+            }
+            catch( FileNotFoundException fnfe )
+            {
+                // File not found... we can't continue
+                return false;
+            }
+            catch( IOException ioe )
+            {
+                Log.e( "ConfigFile", "IOException reading file " + mFilename + ", error message: "
+                        + ioe.getMessage() );
+                return false;
+            }
+            
+            if( mLazy )
+            {
+                ranges = indexSections( data );
+                writeIndex( ranges );
+            }
         }
-        catch( FileNotFoundException fnfe )
+        
+        if( mLazy )
         {
-            // File not found... we can't continue
-            return false;
+            // Sections are read from the file when they are first accessed
+            for( SectionRange range : ranges )
+                mConfigMap.put( range.name, new ConfigSection( range.name, mFilename, range.start, range.end ) );
+            
+            return true;
         }
         
-        DataInputStream in = new DataInputStream( fstream );
-        BufferedReader br = new BufferedReader( new InputStreamReader( in ) );
+        ConfigReader reader = new ConfigReader( data, 0, data.length );
         
         String sectionName = SECTIONLESS_NAME;
-        ConfigSection section = new ConfigSection( sectionName, br ); // Read the 'sectionless'
-                                                                      // section
+        ConfigSection section = new ConfigSection( sectionName, reader ); // Read the 'sectionless'
+                                                                          // section
         mConfigMap.put( sectionName, section ); // Save the data to 'configMap'
         
         // Loop through reading the remaining sections
-        while( !TextUtils.isEmpty( section.nextName ) )
+        while( !StringUtils.isEmpty( section.nextName ) )
         {
             // Get the next section name
             sectionName = section.nextName;
             
             // Load the next section
-            section = new ConfigSection( sectionName, br );
+            section = new ConfigSection( sectionName, reader );
             mConfigMap.put( sectionName, section ); // Save the data to 'configMap'
         }
         
-        try
-        {
-            // Finished. Close the file.
-            in.close();
-            br.close();
-        }
-        catch( IOException ioe )
-        {
-            // (Don't care)
-        }
-        
         // Success
         return true;
     }
     
     /**
-     * Saves the data from 'configMap' back to the config file.
+     * Saves the data from 'configMap' back to the config file, if it changed since it was loaded
+     * or last saved.
      * 
      * @return True if successful. False otherwise.
      * @see #reload()
      */
-    public synchronized boolean save()
+    public boolean save()
+    {
+        synchronized( mSaveLock )
+        {
+            cancelSave();
+            
+            // Writers wait while the file is written, readers don't
+            mLock.readLock().lock();
+            try
+            {
+                return saveSections();
+            }
+            finally
+            {
+                mLock.readLock().unlock();
+            }
+        }
+    }
+    
+    private boolean saveSections()
     {
         // No filename was specified.
-        if( TextUtils.isEmpty( mFilename ) )
+        if( StringUtils.isEmpty( mFilename ) )
         {
             Log.e( "ConfigFile", "Filename not specified in method save()" );
             return false; // Quit
         }
         
+        File file = new File( mFilename );
+        if( !isDirty() && file.exists() )
+            return true;
+        
+        // Lazily loaded sections are read from the file that is about to be replaced
+        for( ConfigSection section : mConfigMap.values() )
+        {
+            if( section != null )
+                section.load();
+        }
+        
         // Ensure parent directories exist before writing file
-        FileUtil.makeDirs(new File( mFilename ).getParentFile().getPath());
+        FileUtil.makeDirs(file.getParentFile().getPath());
         
-        // Write data to file
-        try(FileWriter fw = new FileWriter( mFilename ))
+        // Write data to a temporary file, the config file is only replaced once it is complete
+        File tempFile = null;
+        try
         {
-            // Loop through the sections
-            for( ConfigSection section : mConfigMap.values() )
+            tempFile = File.createTempFile( file.getName() + ".save", ".tmp", file.getParentFile() );
+            
+            try( FileOutputStream stream = new FileOutputStream( tempFile );
+                 Writer fw = new BufferedWriter( new OutputStreamWriter( stream, UTF_8 ) ) )
             {
-                if( section != null )
-                    section.save( fw );
+                // Loop through the sections
+                for( ConfigSection section : mConfigMap.values() )
+                {
+                    if( section != null )
+                        section.write( fw );
+                }
+                
+                fw.flush();
+                stream.getFD().sync();
+            }
+            
+            if( !tempFile.renameTo( file ) )
+            {
+                Log.e( "ConfigFile", "Unable to replace file " + mFilename );
+                return false;
             }
         }
         catch( IOException ioe )
@@ -252,19 +576,239 @@ public class ConfigFile
                     + ioe.getMessage() );
             return false; // Some problem creating the file.. quit
         }
+        finally
+        {
+            if( tempFile != null && tempFile.exists() && !tempFile.delete() )
+                Log.w( "ConfigFile", "Unable to delete " + tempFile.getPath() );
+        }
+        
+        // Sections can be changed directly while the file is written, those stay dirty
+        mDirty = false;
+        for( ConfigSection section : mConfigMap.values() )
+        {
+            if( section != null )
+                section.markSaved();
+        }
         
         // Success
         return true;
     }
     
     /**
-     * Returns a handle to the configMap keyset.
+     * Saves the file in the background once it hasn't been changed for a while. Every call
+     * postpones the save, so a burst of changes is written once.
+     * 
+     * @param delayMs How long to wait for more changes, in milliseconds.
+     */
+    public void saveLater( long delayMs )
+    {
+        synchronized( mSaveLock )
+        {
+            cancelSave();
+            mPendingSave = sSaveExecutor.schedule( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    save();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS );
+        }
+    }
+    
+    /**
+     * Cancels the save scheduled by {@link #saveLater(long)}, if it hasn't started yet. Changes
+     * stay in memory until the next save.
+     */
+    public void cancelSave()
+    {
+        synchronized( mSaveLock )
+        {
+            if( mPendingSave != null )
+            {
+                mPendingSave.cancel( false );
+                mPendingSave = null;
+            }
+        }
+    }
+    
+    /**
+     * @return True if the contents changed since the file was loaded or last saved.
+     */
+    public boolean isDirty()
+    {
+        mLock.readLock().lock();
+        try
+        {
+            if( mDirty )
+                return true;
+            
+            for( ConfigSection section : mConfigMap.values() )
+            {
+                if( section != null && section.dirty )
+                    return true;
+            }
+            return false;
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the config section titles. The set is a read-only snapshot, it can be iterated
+     * while sections are added or removed by any thread. Snapshots are shared until the next
+     * section is added or removed, so this is cheap to call repeatedly.
      * 
      * @return keyset containing all the config section titles.
      */
-    public synchronized Set<String> keySet()
+    public Set<String> keySet()
+    {
+        Set<String> keys = mKeySnapshot;
+        if( keys != null )
+            return keys;
+        
+        mLock.readLock().lock();
+        try
+        {
+            // Published while writers are locked out, so a newer change can't be missed
+            keys = Collections.unmodifiableSet( new LinkedHashSet<>( mConfigMap.keySet() ) );
+            mKeySnapshot = keys;
+            return keys;
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Reads a whole file in one go.
+     */
+    private static byte[] readFile( String filename ) throws IOException
     {
-        return mConfigMap.keySet();
+        try( FileInputStream stream = new FileInputStream( filename ) )
+        {
+            byte[] bytes = new byte[(int) stream.getChannel().size()];
+            int total = 0;
+            int count;
+            while( total < bytes.length && ( count = stream.read( bytes, total, bytes.length - total ) ) > 0 )
+                total += count;
+            
+            return total == bytes.length ? bytes : Arrays.copyOf( bytes, total );
+        }
+    }
+    
+    /**
+     * Finds where each section starts and ends without parsing any of them. Sections end where
+     * the eager parser would stop reading them.
+     */
+    private static List<SectionRange> indexSections( byte[] data )
+    {
+        List<SectionRange> ranges = new ArrayList<>();
+        ConfigReader reader = new ConfigReader( data, 0, data.length );
+        
+        String sectionName = SECTIONLESS_NAME;
+        int sectionStart = 0;
+        int sectionEnd = data.length;
+        
+        while( reader.nextLine() )
+        {
+            int lineType = reader.getLineType();
+            if( lineType == ConfigLine.LINE_GARBAGE || lineType == ConfigLine.LINE_PARAM )
+                continue;
+            
+            sectionEnd = reader.getLineStart();
+            if( lineType != ConfigLine.LINE_SECTION )
+                break;
+            
+            String nextName = reader.getSectionName();
+            if( StringUtils.isEmpty( nextName ) )
+                break;
+            
+            ranges.add( new SectionRange( sectionName, sectionStart, sectionEnd ) );
+            sectionName = nextName;
+            sectionStart = reader.getNextLineStart();
+            sectionEnd = data.length;
+        }
+        
+        ranges.add( new SectionRange( sectionName, sectionStart, sectionEnd ) );
+        return ranges;
+    }
+    
+    /**
+     * Reads the section index of the file.
+     * 
+     * @return The sections of the file, or null if there is no index or the file has changed
+     *         since it was written.
+     */
+    private List<SectionRange> readIndex()
+    {
+        File file = new File( mFilename );
+        File indexFile = new File( mFilename + INDEX_EXTENSION );
+        if( !indexFile.exists() )
+            return null;
+        
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) ) )
+        {
+            if( in.readInt() != INDEX_VERSION || in.readLong() != file.length() ||
+                    in.readLong() != file.lastModified() )
+                return null;
+            
+            int count = in.readInt();
+            List<SectionRange> ranges = new ArrayList<>( count );
+            for( int i = 0; i < count; i++ )
+                ranges.add( new SectionRange( in.readUTF(), in.readInt(), in.readInt() ) );
+            
+            return ranges;
+        }
+        catch( IOException e )
+        {
+            // Damaged index, the file will be scanned again
+            return null;
+        }
+    }
+    
+    private void writeIndex( List<SectionRange> ranges )
+    {
+        File file = new File( mFilename );
+        
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                new FileOutputStream( mFilename + INDEX_EXTENSION ) ) ) )
+        {
+            out.writeInt( INDEX_VERSION );
+            out.writeLong( file.length() );
+            out.writeLong( file.lastModified() );
+            out.writeInt( ranges.size() );
+            for( SectionRange range : ranges )
+            {
+                out.writeUTF( range.name );
+                out.writeInt( range.start );
+                out.writeInt( range.end );
+            }
+        }
+        catch( IOException e )
+        {
+            Log.w( "ConfigFile", "Unable to write section index of " + mFilename + ": " + e.getMessage() );
+        }
+    }
+    
+    /**
+     * Position of a section in the file, excluding its title.
+     */
+    private static class SectionRange
+    {
+        final String name;
+        final int start;
+        final int end;
+        
+        SectionRange( String name, int start, int end )
+        {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
     }
     
     /**
@@ -274,14 +818,36 @@ public class ConfigFile
      */
     public static class ConfigSection
     {
+        // Removed lines are kept at least up to this many, small sections are never compacted:
+        private static final int MIN_REMOVED_LINES = 16;
+        
         public String name; // Section name
-        private HashMap<String, ConfigParameter> parameters; // Parameters sorted by name for easy
-                                                             // lookup
-        private LinkedList<ConfigLine> lines; // All the lines in this section, including comments
+        private HashMap<String, ConfigLine> parameters; // Parameters sorted by name for easy
+                                                        // lookup
+        private ArrayList<ConfigLine> lines; // All the lines in this section, including comments
+        
+        // Parameter lines by name ignoring case, each chaining the lines whose names only differ
+        // by case through ConfigLine.nextVariant:
+        private TreeMap<String, ConfigLine> variants;
+        
+        // Lines removed from 'lines' lazily, they are skipped until the list is compacted:
+        private int removedLines = 0;
         
         // Name of the next section, or null if there are no sections left to read in the file:
         private String nextName = null;
         
+        // True if the section changed since the file was loaded or saved:
+        private volatile boolean dirty = false;
+        
+        // Number of changes made to the section, and how many of them were last written:
+        private int changes = 0;
+        private int writtenChanges = 0;
+        
+        // Where the section is in the file, if it hasn't been read yet:
+        private String sourceFile = null;
+        private int sourceStart;
+        private int sourceEnd;
+        
         /**
          * Constructor: Creates an empty config section
          * 
@@ -289,130 +855,149 @@ public class ConfigFile
          */
         public ConfigSection( String sectionName )
         {
-            parameters = new HashMap<>();
-            lines = new LinkedList<>();
-            
-            if( !TextUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
-                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + sectionName + "]\n", null ) );
-            
-            name = sectionName;
+            this( sectionName, (ConfigReader) null );
         }
         
         /**
          * Constructor: Reads the next section of the config file, and saves it in 'parameters'.
          * 
          * @param sectionName The section title.
-         * @param br The config file to read from.
+         * @param reader The config file to read from, positioned after the section title.
          */
-        public ConfigSection( String sectionName, BufferedReader br )
+        private ConfigSection( String sectionName, ConfigReader reader )
         {
-            String fullLine, strLine, p, v;
-            ConfigParameter confParam;
-            int x, y;
-            
             parameters = new HashMap<>();
-            lines = new LinkedList<>();
+            lines = new ArrayList<>();
+            variants = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
             
-            if( !TextUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
-                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + sectionName + "]\n", null ) );
+            if( !StringUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
+                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, null, null, null ) );
             
             name = sectionName;
             
             // No file to read from. Quit.
-            if( br == null )
+            if( reader == null )
                 return;
             
-            try
+            read( reader );
+        }
+        
+        /**
+         * Constructor: Creates a section that is read from the config file when first accessed.
+         * 
+         * @param sectionName The section title.
+         * @param filename The config file.
+         * @param start Position of the first line after the section title in the file.
+         * @param end Position of the end of the section in the file.
+         */
+        private ConfigSection( String sectionName, String filename, int start, int end )
+        {
+            this( sectionName, (ConfigReader) null );
+            sourceFile = filename;
+            sourceStart = start;
+            sourceEnd = end;
+        }
+        
+        /**
+         * Reads the section from the config file if it hasn't been yet.
+         */
+        private synchronized void load()
+        {
+            if( sourceFile == null )
+                return;
+            
+            byte[] data = new byte[sourceEnd - sourceStart];
+            try( RandomAccessFile file = new RandomAccessFile( sourceFile, "r" ) )
             {
-                while( ( fullLine = br.readLine() ) != null )
+                file.seek( sourceStart );
+                file.readFully( data );
+                read( new ConfigReader( data, 0, data.length ) );
+            }
+            catch( IOException ioe )
+            {
+                Log.e( "ConfigFile", "IOException reading section " + name + " of " + sourceFile
+                        + ", error message: " + ioe.getMessage() );
+            }
+            sourceFile = null;
+        }
+        
+        /**
+         * Reads parameters until the next section title, and saves them in 'parameters'.
+         * 
+         * @param reader The config file to read from, positioned after the section title.
+         */
+        private void read( ConfigReader reader )
+        {
+            while( reader.nextLine() )
+            {
+                switch( reader.getLineType() )
                 {
-                    strLine = fullLine.trim();
-                    if( ( strLine.length() < 1 )
-                            || ( strLine.substring( 0, 1 ).equals( "#" ) )
-                            || ( strLine.substring( 0, 1 ).equals( ";" ) )
-                            || ( ( strLine.length() > 1 ) && ( strLine.substring( 0, 2 )
-                                    .equals( "//" ) ) ) )
-                    
-                    { // A comment or blank line.
-                        lines.add( new ConfigLine( ConfigLine.LINE_GARBAGE, fullLine + "\n", null ) );
-                    }
-                    else if( strLine.contains( "=" ) )
-                    {
+                    case ConfigLine.LINE_GARBAGE:
+                        // A comment or blank line.
+                        lines.add( new ConfigLine( ConfigLine.LINE_GARBAGE, reader.getLine(), null, null ) );
+                        break;
+                        
+                    case ConfigLine.LINE_PARAM:
                         // This should be a "parameter=value" pair:
-                        x = strLine.indexOf( '=' );
+                        int x = reader.indexOf( '=' );
                         
-                        if( x < 1 )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        if( x < ( strLine.length() - 1 ) )
+                        // It's ok to have an empty assignment (such as "param=")
+                        if( !reader.isBlank( x + 1, reader.end() ) )
                         {
-                            p = strLine.substring( 0, x ).trim();
-                            if( p.length() < 1 )
-                                return; // This shouldn't happen (bad syntax). Quit.
-                                
-                            v = strLine.substring( x + 1, strLine.length() ).trim();
-                            // v = v.replace( "\"", "" ); // I'm doing this later, so I can save
-                            // back without losing them
+                            // Save the parameter=value pair
+                            String p = reader.getTrimmed( reader.start(), x );
+                            String v = reader.getTrimmed( x + 1, reader.end() );
                             
-                            if( v.length() > 0 )
+                            ConfigLine line = parameters.get( p );
+                            if( line != null )
+                            {
+                                line.value = v;
+                            }
+                            else
                             {
-                                // Save the parameter=value pair
-                                confParam = parameters.get( p );
-                                if( confParam != null )
+                                line = new ConfigLine( ConfigLine.LINE_PARAM, reader.getPrefix( x, p ), p, v );
+                                lines.add( line );
+                                parameters.put( p, line ); // Save the pair.
+                                
+                                ConfigLine variant = variants.get( p );
+                                if( variant == null )
                                 {
-                                    confParam.value = v;
+                                    variants.put( p, line );
                                 }
                                 else
                                 {
-                                    confParam = new ConfigParameter( p, v );
-                                    lines.add( new ConfigLine( ConfigLine.LINE_PARAM, fullLine
-                                            + "\n", confParam ) );
-                                    parameters.put( p, confParam ); // Save the pair.
+                                    line.nextVariant = variant.nextVariant;
+                                    variant.nextVariant = line;
                                 }
                             }
-                        } // It's ok to have an empty assignment (such as "param=")
-                    }
-                    else if( strLine.contains( "[" ) )
-                    {
-                        // This should be the beginning of the next section
-                        if( ( strLine.length() < 3 ) || ( !strLine.contains( "]" ) ) )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        x = strLine.indexOf( '[' );
-                        y = strLine.indexOf( ']' );
-                        
-                        if( ( x == -1 ) || ( y == -1 ) || ( y <= x + 1 )  )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        p = strLine.substring( x + 1, y ).trim();
+                        }
+                        break;
                         
+                    case ConfigLine.LINE_SECTION:
                         // Save the name of the next section.
-                        nextName = p;
+                        nextName = reader.getSectionName();
                         
                         // Done reading parameters. Return.
                         return;
-                    }
-                    else
-                    {
+                        
+                    default:
                         // This shouldn't happen (bad syntax). Quit.
                         return;
-                    }
                 }
             }
-            catch( IOException ioe )
-            {
-                // (Don't care)
-            }
         }
         
         /**
-         * Returns a handle to the parameter keyset.
+         * Returns a snapshot of the parameter keyset, which can be iterated while the section
+         * is modified.
          * 
          * @return keyset containing all the parameters.
          */
         public synchronized Set<String> keySet()
         {
-            return parameters.keySet();
+            load();
+
+            return new LinkedHashSet<>( parameters.keySet() );
         }
         
         /**
@@ -424,51 +1009,55 @@ public class ConfigFile
          */
         public synchronized String get( String parameter )
         {
+            load();
+
             // Error: no parameters, or parameter was null
-            if( parameters == null || TextUtils.isEmpty( parameter ) )
+            if( parameters == null || StringUtils.isEmpty( parameter ) )
                 return null;
             
-            ConfigParameter confParam = parameters.get( parameter );
+            ConfigLine line = parameters.get( parameter );
             
             // Parameter not found
-            if( confParam == null )
+            if( line == null )
                 return null;
             
             // Got it
-            return confParam.value;
+            return line.value;
         }
 
         /**
-         * Remove instances of this parameter.
+         * Removes every instance of this parameter, whatever its case. The lines are only marked
+         * as removed, the list is compacted once they make up half of it.
+         * 
          * @param parameter The parameter
+         * 
+         * @return True if the parameter was found.
          */
-        private synchronized void removePreviousInstance(String parameter)
+        private boolean removePreviousInstance( String parameter )
         {
-            //Create a copy first
-            ArrayList<String> keys = new ArrayList<>(parameters.keySet());
-
-            //Remove from parameters
-            for(String key : keys)
+            ConfigLine line = variants.get( parameter );
+            if( line == null )
+                return false;
+            
+            for( ; line != null; line = line.nextVariant )
             {
-                if(key.toLowerCase().equals(parameter.toLowerCase()))
-                {
-                    parameters.remove(key);
-                }
+                line.removed = true;
+                parameters.remove( line.parameter );
+                removedLines++;
             }
-
-            //Remove from lines
-            String lineParameterTest1 = parameter + " = ";
-            String lineParameterTest2 = parameter + "=";
-            Iterator<ConfigLine> iter = lines.iterator();
-            while (iter.hasNext()) {
-                ConfigLine line = iter.next();
-
-                if(line.strLine.toLowerCase().startsWith(lineParameterTest1.toLowerCase()) ||
-                        line.strLine.toLowerCase().startsWith(lineParameterTest2.toLowerCase()))
+            
+            if( removedLines > MIN_REMOVED_LINES && removedLines > lines.size() / 2 )
+            {
+                ArrayList<ConfigLine> kept = new ArrayList<>( lines.size() - removedLines );
+                for( ConfigLine l : lines )
                 {
-                    iter.remove();
+                    if( !l.removed )
+                        kept.add( l );
                 }
+                lines = kept;
+                removedLines = 0;
             }
+            return true;
         }
         
         /**
@@ -480,14 +1069,28 @@ public class ConfigFile
          */
         public synchronized  void put( String parameter, String value )
         {
-            removePreviousInstance(parameter);
+            load();
+
+            // Nothing to change
+            if( StringUtils.equals( get( parameter ), StringUtils.isEmpty( value ) ? null : value ) )
+                return;
 
-            if( !TextUtils.isEmpty( value ) )
+            dirty = true;
+            changes++;
+            boolean found = removePreviousInstance( parameter );
+
+            if( !StringUtils.isEmpty( value ) )
+            {
+                ConfigLine line = new ConfigLine( ConfigLine.LINE_PARAM, null, parameter, value );
+                lines.add( line );
+                parameters.put( parameter, line );
+                
+                // Replaces the value of an existing entry, keeping its key
+                variants.put( parameter, line );
+            }
+            else if( found )
             {
-                ConfigParameter confParam = new ConfigParameter( parameter, value );
-                lines.add( new ConfigLine( ConfigLine.LINE_PARAM, parameter + "=" + value
-                        + "\n", confParam ) );
-                parameters.put( parameter, confParam );
+                variants.remove( parameter );
             }
         }
         
@@ -498,15 +1101,215 @@ public class ConfigFile
          * 
          * @throws IOException if a writing error occurs.
          */
-        public synchronized void save( FileWriter fw ) throws IOException
+        public synchronized void save( Writer fw ) throws IOException
         {
+            load();
+
             for( ConfigLine line : lines )
             {
-                if( line != null ) {
-                    line.save(fw);
+                if( line != null && !line.removed ) {
+                    line.save(fw, name);
                 }
             }
         }
+        
+        /**
+         * Writes the entire section to the config file being saved.
+         * 
+         * @param fw File to write to.
+         * 
+         * @throws IOException if a writing error occurs.
+         * @see #markSaved()
+         */
+        private synchronized void write( Writer fw ) throws IOException
+        {
+            save( fw );
+            writtenChanges = changes;
+        }
+        
+        /**
+         * Marks the section as saved once the config file was written, unless it changed since.
+         */
+        private synchronized void markSaved()
+        {
+            if( changes == writtenChanges )
+                dirty = false;
+        }
+    }
+    
+    /**
+     * Splits the UTF-8 text of a config file into lines in a single pass, the same way
+     * {@link java.io.BufferedReader#readLine()} does. Lines are examined in place, only the parts
+     * that are kept are decoded and copied out of the data. Every character the syntax cares about
+     * is ASCII, and bytes of multi-byte UTF-8 sequences are never ASCII, so this is safe.
+     */
+    private static class ConfigReader
+    {
+        static final int LINE_INVALID = -1;
+        
+        private final byte[] mData;
+        private final int mLimit;
+        private int mNext;
+        private int mLineStart; // First byte of the current line
+        private int mLineEnd; // End of the current line, excluding the line terminator
+        private int mStart; // First byte of the current line that isn't whitespace
+        private int mEnd; // End of the current line, excluding trailing whitespace
+        
+        /**
+         * @param data The text to read
+         * @param offset Position of the first line in the text
+         * @param limit Position of the end of the text
+         */
+        ConfigReader( byte[] data, int offset, int limit )
+        {
+            mData = data;
+            mNext = offset;
+            mLimit = limit;
+        }
+        
+        /**
+         * Advances to the next line.
+         * 
+         * @return False if there are no lines left.
+         */
+        boolean nextLine()
+        {
+            if( mNext >= mLimit )
+                return false;
+            
+            mLineStart = mNext;
+            int i = mNext;
+            byte c = 0;
+            while( i < mLimit && ( c = mData[i] ) != '\n' && c != '\r' )
+                i++;
+            mLineEnd = i;
+            
+            // Skip the terminator, which may be \n, \r or \r\n
+            if( i < mLimit )
+                i += ( c == '\r' && i + 1 < mLimit && mData[i + 1] == '\n' ) ? 2 : 1;
+            mNext = i;
+            
+            mStart = skipWhitespace( mLineStart, mLineEnd );
+            mEnd = trimEnd( mStart, mLineEnd );
+            return true;
+        }
+        
+        /** @return The position of the current line. */
+        int getLineStart()
+        {
+            return mLineStart;
+        }
+        
+        /** @return The position of the line after the current one. */
+        int getNextLineStart()
+        {
+            return mNext;
+        }
+        
+        /** @return The first character of the line that isn't whitespace. */
+        int start()
+        {
+            return mStart;
+        }
+        
+        /** @return The end of the line, excluding trailing whitespace. */
+        int end()
+        {
+            return mEnd;
+        }
+        
+        /**
+         * @return The type of the current line as one of the {@link ConfigLine} types, or
+         *         {@link #LINE_INVALID} if the line ends the file because of bad syntax.
+         */
+        int getLineType()
+        {
+            if( mStart == mEnd )
+                return ConfigLine.LINE_GARBAGE;
+            
+            byte first = mData[mStart];
+            if( first == '#' || first == ';' ||
+                    ( first == '/' && mEnd - mStart > 1 && mData[mStart + 1] == '/' ) )
+                return ConfigLine.LINE_GARBAGE;
+            
+            int x = indexOf( '=' );
+            if( x != -1 )
+                return x == mStart ? LINE_INVALID : ConfigLine.LINE_PARAM;
+            
+            x = indexOf( '[' );
+            if( x == -1 )
+                return LINE_INVALID;
+            
+            int y = indexOf( ']' );
+            return ( y == -1 || y <= x + 1 ) ? LINE_INVALID : ConfigLine.LINE_SECTION;
+        }
+        
+        /**
+         * @return The position of the first occurrence of a character in the trimmed line, or -1.
+         */
+        int indexOf( char c )
+        {
+            for( int i = mStart; i < mEnd; i++ )
+            {
+                if( mData[i] == c )
+                    return i;
+            }
+            return -1;
+        }
+        
+        boolean isBlank( int start, int end )
+        {
+            return skipWhitespace( start, end ) == end;
+        }
+        
+        /** @return The whole line without its terminator. */
+        String getLine()
+        {
+            return mLineStart == mLineEnd ? "" : new String( mData, mLineStart, mLineEnd - mLineStart, UTF_8 );
+        }
+        
+        /** @return The title of a section title line. */
+        String getSectionName()
+        {
+            return getTrimmed( indexOf( '[' ) + 1, indexOf( ']' ) );
+        }
+        
+        /** @return The text in a range of the line without leading and trailing whitespace. */
+        String getTrimmed( int start, int end )
+        {
+            start = skipWhitespace( start, end );
+            end = trimEnd( start, end );
+            return new String( mData, start, end - start, UTF_8 );
+        }
+        
+        /**
+         * @param equals Position of the equal sign in the line
+         * @param parameter The parameter name found before it
+         * @return Everything up to and including the equal sign, or null if that is exactly the
+         *         parameter name followed by the equal sign.
+         */
+        String getPrefix( int equals, String parameter )
+        {
+            if( mLineStart == mStart && equals - mStart == parameter.length() )
+                return null;
+            
+            return new String( mData, mLineStart, equals + 1 - mLineStart, UTF_8 );
+        }
+        
+        // Whitespace is anything String.trim() would remove
+        private int skipWhitespace( int start, int end )
+        {
+            while( start < end && ( mData[start] & 0xFF ) <= ' ' )
+                start++;
+            return start;
+        }
+        
+        private int trimEnd( int start, int end )
+        {
+            while( end > start && ( mData[end - 1] & 0xFF ) <= ' ' )
+                end--;
+            return end;
+        }
     }
     
     /**
@@ -518,73 +1321,67 @@ public class ConfigFile
         static final int LINE_SECTION = 1; // Section title
         static final int LINE_PARAM = 2; // Parameter=value pair
         
-        int lineType; // LINE_GARBAGE, LINE_SECTION, or LINE_PARAM.
-        String strLine; // Actual line from the config file.
-        ConfigParameter confParam;
+        final int lineType; // LINE_GARBAGE, LINE_SECTION, or LINE_PARAM.
+        final String text; // The line itself, or everything up to the equal sign of a parameter.
+                           // Null when it can be rebuilt from the section or parameter name.
+        final String parameter;
+        String value;
+        ConfigLine nextVariant; // Next line with the same parameter name ignoring case
+        boolean removed; // True once the line was replaced or removed from its section
         
         /**
          * Constructor: Saves the relevant information about the line.
          * 
          * @param type The type of line.
-         * @param line The line itself.
-         * @param param Config parameters pertaining to the line.
+         * @param text The text of the line, see {@link #text}.
+         * @param parameter Name of the parameter on the line, if any.
+         * @param value Value of the parameter on the line, if any.
          */
-        ConfigLine( int type, String line, ConfigParameter param )
+        ConfigLine( int type, String text, String parameter, String value )
         {
             lineType = type;
-            strLine = line;
-            confParam = param;
+            this.text = text;
+            this.parameter = parameter;
+            this.value = value;
         }
         
         /**
          * Saves the ConfigLine.
          * 
          * @param fw The file to save the ConfigLine to.
+         * @param sectionName Name of the section the line is in.
          * 
          * @throws IOException If a writing error occurs.
          */
-        public synchronized void save( FileWriter fw ) throws IOException
+        void save( Writer fw, String sectionName ) throws IOException
         {
-            int x;
             if( lineType == LINE_PARAM )
             {
-                if( !strLine.contains( "=" ) || confParam == null )
-                    return; // This shouldn't happen
-                    
-                x = strLine.indexOf( '=' );
-                
-                if( x < 1 )
-                    return; // This shouldn't happen either
+                if( text != null )
+                {
+                    fw.write( text );
+                }
+                else
+                {
+                    if( StringUtils.isEmpty( parameter ) )
+                        return; // This shouldn't happen
                     
-                if( x < strLine.length() )
-                    fw.write( strLine.substring( 0, x + 1 ) + confParam.value + "\n" );
+                    fw.write( parameter );
+                    fw.write( '=' );
+                }
+                fw.write( value );
+            }
+            else if( lineType == LINE_SECTION )
+            {
+                fw.write( '[' );
+                fw.write( sectionName );
+                fw.write( ']' );
             }
             else
             {
-                fw.write( strLine );
+                fw.write( text );
             }
-        }
-    }
-    
-    /**
-     * The ConfigParameter class associates a parameter with its value.
-     */
-    private static class ConfigParameter
-    {
-        @SuppressWarnings( "unused" )
-        public String parameter;
-        public String value;
-        
-        /**
-         * Constructor: Associate the parameter and value
-         * 
-         * @param parameter The name of the parameter.
-         * @param value The value of the parameter.
-         */
-        ConfigParameter( String parameter, String value )
-        {
-            this.parameter = parameter;
-            this.value = value;
+            fw.write( '\n' );
         }
     }
 }
@@ -154,9 +154,12 @@ public class GlobalPrefs
     /** Legacy slot save directory */
     public final String legacySlotSaves;
 
-    /** The path of the rom info cache for the gallery. */
+    /** The path of the rom info cache for the gallery, only read to import it into the library. */
     public final String romInfoCache_cfg;
 
+    /** The path of the ROM library database for the gallery. */
+    public final String romLibrary_db;
+
     /** The path of the custom controller profiles file. */
     public final String controllerProfiles_cfg;
 
@@ -223,6 +226,9 @@ public class GlobalPrefs
     /** True if we should cache recently played games for faster load times */
     public final boolean cacheRecentlyPlayed;
 
+    /** Maximum size of the ROMs extracted from archives, in bytes */
+    public final long extractedRomCacheSize;
+
     /** True if the full ROM rip info should be shown. */
     public final boolean isFullNameShown;
 
@@ -451,6 +457,7 @@ public class GlobalPrefs
         textureCacheDir = coreUserCacheDir + "/mupen64plus/cache";
         shaderCacheDir = coreUserCacheDir + "/mupen64plus/shaders";
         romInfoCache_cfg = galleryCacheDir + "/romInfoCache.cfg";
+        romLibrary_db = galleryCacheDir + "/" + RomLibrary.DATABASE_NAME;
         controllerProfiles_cfg = profilesDir + "/controller.cfg";
         touchscreenProfiles_cfg = profilesDir + "/touchscreen.cfg";
         emulationProfiles_cfg = profilesDir + "/emulation.cfg";
@@ -478,6 +485,7 @@ public class GlobalPrefs
         isRecentShown = mPreferences.getBoolean( "showRecentlyPlayed", true );
         sortByRomName = mPreferences.getString( "sortingMethod", "romName" ).equals("romName");
         cacheRecentlyPlayed = mPreferences.getBoolean( "cacheRecentlyPlayed", true );
+        extractedRomCacheSize = mPreferences.getInt( "extractedRomCacheSize", 1024 ) * 1024L * 1024L;
         isFullNameShown = mPreferences.getBoolean( "showFullNames", true );
         coverArtScale = ( mPreferences.getInt( "libraryArtScale", 100 ) ) / 100.0f;
         fillAllowedCountryCodes();
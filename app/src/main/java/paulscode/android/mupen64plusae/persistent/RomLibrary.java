@@ -0,0 +1,852 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import paulscode.android.mupen64plusae.GallerySearchIndex;
+import paulscode.android.mupen64plusae.util.CountryCode;
+
+/**
+ * Library of the ROMs found by scans, kept in an SQLite database in the gallery cache directory.
+ * <p>
+ * Each ROM is a row keyed by its MD5, with indexes on the CRC, the archive the ROM came from, its
+ * cover art and the time it was last played. The gallery reads the library a page at a time and
+ * the scanner writes it in transactional batches, so neither has to load the whole library.
+ * <p>
+ * The names the gallery can show a ROM by and the text it is searched by are stored with it when
+ * it is written. The gallery is then read in the order of the name shown, from an index, and
+ * only the ROMs of the allowed countries are read. Listeners are told which ROMs changed, so the
+ * search index only has to be built once.
+ * <p>
+ * Libraries cached in romInfoCache.cfg by older versions are imported the first time the database
+ * is opened, then the old file is deleted. The database is only opened when the library is first
+ * used, which must not be on the UI thread.
+ */
+public class RomLibrary
+{
+    private static final String TAG = "RomLibrary";
+
+    /** Art hasn't been downloaded yet, or the ROM has none */
+    public static final int ART_UNKNOWN = 0;
+    /** Art was downloaded to the art path of the ROM */
+    public static final int ART_DOWNLOADED = 1;
+    /** Art couldn't be downloaded the last time it was tried */
+    public static final int ART_MISSING = 2;
+
+    /** Name of the database, kept next to the romInfoCache.cfg it replaces */
+    public static final String DATABASE_NAME = "romLibrary.db";
+
+    private static final int SCHEMA_VERSION = 2;
+
+    /** Most arguments bound to a single statement, SQLite allows 999 */
+    private static final int MAX_ARGUMENTS = 500;
+
+    private static final String COLUMNS = "md5, crc, headerName, goodName, baseName, romPath, zipPath, " +
+            "artPath, artUrl, countryCode, sha1, crc32, checksumStatus, lastPlayed, playCount, artStatus";
+
+    // Updating first keeps the play statistics and art status of ROMs that are scanned again, as
+    // well as the digests when the new scan doesn't know them
+    private static final String UPDATE_SCANNED = "UPDATE roms SET crc = ?, headerName = ?, goodName = ?, " +
+            "baseName = ?, romPath = ?, zipPath = ?, artPath = ?, artUrl = ?, countryCode = ?, " +
+            "sha1 = IFNULL(?, sha1), crc32 = IFNULL(?, crc32), checksumStatus = IFNULL(?, checksumStatus), " +
+            "shortName = ?, fileName = ?, searchText = ? WHERE md5 = ?";
+    private static final String INSERT = "INSERT INTO roms (" + COLUMNS + ", shortName, fileName, searchText) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // ROMs the gallery can show
+    private static final String SHOWN = "crc IS NOT NULL AND romPath IS NOT NULL AND countryCode IS NOT NULL";
+
+    private static final HashMap<String, RomLibrary> sInstances = new HashMap<>();
+
+    /**
+     * Names the gallery can show a ROM by, each stored in its own column and indexed in
+     * case-insensitive order.
+     */
+    public enum DisplayName
+    {
+        /** Name of the ROM in the ROM database */
+        GOOD_NAME( "goodName" ),
+        /** Name without region and dump tags, or the good name if there is none */
+        SHORT_NAME( "shortName" ),
+        /** Name of the ROM file */
+        FILE_NAME( "fileName" );
+
+        private final String mColumn;
+
+        DisplayName( String column )
+        {
+            mColumn = column;
+        }
+
+        /**
+         * @return The name of a ROM, the same as stored in the column of this name.
+         */
+        public String get( Entry entry )
+        {
+            switch( this )
+            {
+            case SHORT_NAME:
+                return getShortName( entry.goodName, entry.baseName );
+            case FILE_NAME:
+                return getFileName( entry.romPath );
+            default:
+                return entry.goodName;
+            }
+        }
+    }
+
+    /**
+     * Listener told of the ROMs that were written to the library or removed from it, on the thread
+     * that changed the library once the change is committed.
+     */
+    public interface ChangeListener
+    {
+        /**
+         * @param changedMd5s MD5 of the ROMs that were added or written again.
+         * @param removedMd5s MD5 of the ROMs that were removed.
+         */
+        void onRomsChanged( Collection<String> changedMd5s, Collection<String> removedMd5s );
+
+        /**
+         * Every ROM was removed.
+         */
+        void onRomsCleared();
+    }
+
+    /**
+     * A ROM in the library.
+     */
+    public static class Entry
+    {
+        /** Row of the ROM in the library, or 0 if it isn't stored yet */
+        public final long id;
+        public final String md5;
+        public final String crc;
+        public final String headerName;
+        public final String goodName;
+        /** Name of the ROM without region and dump tags, or null if the ROM database doesn't have one */
+        public final String baseName;
+        /** Path of the ROM, or the path it will be extracted to if it is inside an archive. */
+        public final String romPath;
+        /** Archive containing the ROM, or null for loose ROMs. */
+        public final String zipPath;
+        public final String artPath;
+        public final String artUrl;
+        /** Country of the ROM, or null if it isn't known */
+        public final CountryCode countryCode;
+        /** Digests from a single pass over the ROM data, used to spot bad dumps and match DAT files */
+        public final String sha1;
+        public final String crc32;
+        public final String checksumStatus;
+        /** Time the ROM was last played in seconds since the epoch, or 0 if it never was */
+        public final int lastPlayed;
+        public final int playCount;
+        /** One of {@link #ART_UNKNOWN}, {@link #ART_DOWNLOADED} or {@link #ART_MISSING} */
+        public final int artStatus;
+
+        /**
+         * Constructor for ROMs found by a scan, which haven't been played yet.
+         */
+        public Entry( String md5, String crc, String headerName, String goodName, String baseName,
+                      String romPath, String zipPath, String artPath, String artUrl, CountryCode countryCode,
+                      String sha1, String crc32, String checksumStatus )
+        {
+            this( 0, md5, crc, headerName, goodName, baseName, romPath, zipPath, artPath, artUrl, countryCode,
+                    sha1, crc32, checksumStatus, 0, 0, ART_UNKNOWN );
+        }
+
+        Entry( long id, String md5, String crc, String headerName, String goodName, String baseName, String romPath,
+               String zipPath, String artPath, String artUrl, CountryCode countryCode, String sha1,
+               String crc32, String checksumStatus, int lastPlayed, int playCount, int artStatus )
+        {
+            this.id = id;
+            this.md5 = md5;
+            this.crc = crc;
+            this.headerName = headerName;
+            this.goodName = goodName;
+            this.baseName = baseName;
+            this.romPath = romPath;
+            this.zipPath = TextUtils.isEmpty( zipPath ) ? null : zipPath;
+            this.artPath = artPath;
+            this.artUrl = artUrl;
+            this.countryCode = countryCode;
+            this.sha1 = sha1;
+            this.crc32 = crc32;
+            this.checksumStatus = checksumStatus;
+            this.lastPlayed = lastPlayed;
+            this.playCount = playCount;
+            this.artStatus = artStatus;
+        }
+    }
+
+    private final String mDatabasePath;
+    private final String mLegacyConfigPath;
+
+    // Opened by the first use of the library
+    private SQLiteDatabase mDatabase = null;
+
+    private final List<ChangeListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Gets a library, there is a single instance for each database in the process. The database
+     * isn't opened until the library is used.
+     *
+     * @param databasePath The SQLite database holding the library.
+     * @param legacyConfigPath The romInfoCache.cfg to import if the database is new.
+     *
+     * @return The library.
+     */
+    public static RomLibrary getInstance( String databasePath, String legacyConfigPath )
+    {
+        synchronized( sInstances )
+        {
+            RomLibrary library = sInstances.get( databasePath );
+            if( library == null )
+            {
+                library = new RomLibrary( databasePath, legacyConfigPath );
+                sInstances.put( databasePath, library );
+            }
+            return library;
+        }
+    }
+
+    private RomLibrary( String databasePath, String legacyConfigPath )
+    {
+        mDatabasePath = databasePath;
+        mLegacyConfigPath = legacyConfigPath;
+    }
+
+    /**
+     * Opens the database the first time it is needed, importing romInfoCache.cfg if it is new.
+     */
+    private synchronized SQLiteDatabase getDatabase()
+    {
+        if( mDatabase != null )
+            return mDatabase;
+
+        new File( mDatabasePath ).getParentFile().mkdirs();
+        SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase( new File( mDatabasePath ), null );
+
+        // Scans write while the gallery reads
+        database.enableWriteAheadLogging();
+
+        int version = database.getVersion();
+        if( version < SCHEMA_VERSION )
+        {
+            database.beginTransaction();
+            try
+            {
+                if( version == 0 )
+                {
+                    createSchema( database );
+                    migrate( database, mLegacyConfigPath );
+                }
+                else
+                {
+                    addNameColumns( database );
+                }
+                database.setVersion( SCHEMA_VERSION );
+                database.setTransactionSuccessful();
+            }
+            finally
+            {
+                database.endTransaction();
+            }
+
+            File legacyConfig = new File( mLegacyConfigPath );
+            if( version == 0 && legacyConfig.exists() && !legacyConfig.delete() )
+                Log.w( TAG, "Unable to delete " + mLegacyConfigPath );
+        }
+
+        mDatabase = database;
+        return mDatabase;
+    }
+
+    private static void createSchema( SQLiteDatabase database )
+    {
+        database.execSQL( "CREATE TABLE roms (md5 TEXT PRIMARY KEY NOT NULL, crc TEXT, headerName TEXT, " +
+                "goodName TEXT, baseName TEXT, romPath TEXT, zipPath TEXT, artPath TEXT, artUrl TEXT, " +
+                "countryCode INTEGER, sha1 TEXT, crc32 TEXT, checksumStatus TEXT, " +
+                "lastPlayed INTEGER NOT NULL DEFAULT 0, playCount INTEGER NOT NULL DEFAULT 0, " +
+                "artStatus INTEGER NOT NULL DEFAULT 0, shortName TEXT, fileName TEXT, searchText TEXT)" );
+        database.execSQL( "CREATE INDEX roms_crc ON roms (crc)" );
+        database.execSQL( "CREATE INDEX roms_zipPath ON roms (zipPath)" );
+        database.execSQL( "CREATE INDEX roms_artPath ON roms (artPath)" );
+        database.execSQL( "CREATE INDEX roms_lastPlayed ON roms (lastPlayed)" );
+        createNameIndexes( database );
+    }
+
+    private static void createNameIndexes( SQLiteDatabase database )
+    {
+        for( DisplayName displayName : DisplayName.values() )
+        {
+            database.execSQL( "CREATE INDEX roms_" + displayName.mColumn + " ON roms (" + displayName.mColumn +
+                    " COLLATE NOCASE, md5)" );
+        }
+    }
+
+    /**
+     * Adds the names and search text of version 2 to a library of version 1.
+     */
+    private static void addNameColumns( SQLiteDatabase database )
+    {
+        database.execSQL( "ALTER TABLE roms ADD COLUMN shortName TEXT" );
+        database.execSQL( "ALTER TABLE roms ADD COLUMN fileName TEXT" );
+        database.execSQL( "ALTER TABLE roms ADD COLUMN searchText TEXT" );
+        createNameIndexes( database );
+
+        SQLiteStatement update = database.compileStatement(
+                "UPDATE roms SET shortName = ?, fileName = ?, searchText = ? WHERE md5 = ?" );
+        Cursor cursor = database.rawQuery( "SELECT md5, goodName, baseName, romPath, headerName FROM roms", null );
+        try
+        {
+            while( cursor.moveToNext() )
+            {
+                String goodName = cursor.getString( 1 );
+                String baseName = cursor.getString( 2 );
+                String fileName = getFileName( cursor.getString( 3 ) );
+                bind( update, 1, getShortName( goodName, baseName ) );
+                bind( update, 2, fileName );
+                bind( update, 3, GallerySearchIndex.getSearchText( goodName, baseName, fileName,
+                        cursor.getString( 4 ) ) );
+                bind( update, 4, cursor.getString( 0 ) );
+                update.executeUpdateDelete();
+            }
+        }
+        finally
+        {
+            cursor.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Imports the ROMs cached in a romInfoCache.cfg, in the transaction creating the schema.
+     */
+    private static void migrate( SQLiteDatabase database, String legacyConfigPath )
+    {
+        if( TextUtils.isEmpty( legacyConfigPath ) || !new File( legacyConfigPath ).exists() )
+            return;
+
+        ConfigFile config = new ConfigFile( legacyConfigPath );
+        List<Entry> entries = new ArrayList<>();
+        for( String md5 : config.keySet() )
+        {
+            if( ConfigFile.SECTIONLESS_NAME.equals( md5 ) )
+                continue;
+
+            ConfigFile.ConfigSection section = config.get( md5 );
+            String countryCode = section.get( "countryCode" );
+            entries.add( new Entry( 0, md5, section.get( "crc" ), section.get( "headerName" ),
+                    section.get( "goodName" ), section.get( "baseName" ), section.get( "romPath" ),
+                    section.get( "zipPath" ), section.get( "artPath" ), section.get( "artUrl" ),
+                    countryCode == null ? null : CountryCode.getCountryCode( parseInt( countryCode ) ),
+                    section.get( "sha1" ), section.get( "crc32" ), section.get( "checksumStatus" ),
+                    parseInt( section.get( "lastPlayed" ) ), 0, ART_UNKNOWN ) );
+        }
+
+        SQLiteStatement insert = database.compileStatement( INSERT );
+        try
+        {
+            for( Entry entry : entries )
+                insert( insert, entry );
+        }
+        finally
+        {
+            insert.close();
+        }
+
+        Log.i( TAG, "Imported " + entries.size() + " ROMs from " + legacyConfigPath );
+    }
+
+    /**
+     * Adds a listener told of the ROMs that change from now on.
+     */
+    public void addChangeListener( ChangeListener listener )
+    {
+        mListeners.add( listener );
+    }
+
+    public void removeChangeListener( ChangeListener listener )
+    {
+        mListeners.remove( listener );
+    }
+
+    /**
+     * Reads a page of the library, in the order the ROMs were added. Pages follow the last ROM read,
+     * so ROMs removed in the meantime don't make the next page skip any.
+     *
+     * @param afterId {@link Entry#id} of the last ROM of the previous page, or 0 for the first page.
+     * @param limit Maximum number of ROMs to read.
+     *
+     * @return The ROMs, an empty list past the end of the library.
+     */
+    public List<Entry> getEntries( long afterId, int limit )
+    {
+        return query( "SELECT rowid, " + COLUMNS + " FROM roms WHERE rowid > ? ORDER BY rowid LIMIT ?",
+                Long.toString( afterId ), Integer.toString( limit ) );
+    }
+
+    /**
+     * Reads a page of the ROMs the gallery shows, sorted by the name they are shown by regardless of
+     * case. Pages follow the last ROM read, so that only the ROMs of the page are read.
+     *
+     * @param displayName Name the ROMs are shown by, ROMs without one aren't shown.
+     * @param countryCodes Countries of the ROMs shown.
+     * @param afterName Name of the last ROM of the previous page, or null for the first page.
+     * @param afterMd5 MD5 of the last ROM of the previous page, or null for the first page.
+     * @param limit Maximum number of ROMs to read.
+     *
+     * @return The ROMs, an empty list past the end of the gallery.
+     */
+    public List<Entry> getGalleryPage( DisplayName displayName, Collection<CountryCode> countryCodes,
+                                       String afterName, String afterMd5, int limit )
+    {
+        if( countryCodes.isEmpty() )
+            return Collections.emptyList();
+
+        String name = displayName.mColumn + " COLLATE NOCASE";
+        String where = getGalleryFilter( displayName, countryCodes );
+        String order = " ORDER BY " + name + ", md5 LIMIT ?";
+        if( afterName == null )
+            return query( "SELECT rowid, " + COLUMNS + " FROM roms WHERE " + where + order, Integer.toString( limit ) );
+
+        // The first condition starts reading the index at the last ROM read
+        return query( "SELECT rowid, " + COLUMNS + " FROM roms WHERE " + where + " AND " + name + " >= ? AND (" +
+                name + " > ? OR md5 > ?)" + order, afterName, afterName, afterMd5, Integer.toString( limit ) );
+    }
+
+    /**
+     * Reads the ROMs of the gallery played most recently.
+     *
+     * @param displayName Name the ROMs are shown by, ROMs without one aren't shown.
+     * @param countryCodes Countries of the ROMs shown.
+     * @param since Earliest time played in seconds since the epoch.
+     * @param limit Maximum number of ROMs to read.
+     *
+     * @return The ROMs, the most recently played first.
+     */
+    public List<Entry> getRecentEntries( DisplayName displayName, Collection<CountryCode> countryCodes, int since,
+                                         int limit )
+    {
+        if( countryCodes.isEmpty() )
+            return Collections.emptyList();
+
+        return query( "SELECT rowid, " + COLUMNS + " FROM roms WHERE lastPlayed >= ? AND " +
+                getGalleryFilter( displayName, countryCodes ) + " ORDER BY lastPlayed DESC LIMIT ?",
+                Integer.toString( since ), Integer.toString( limit ) );
+    }
+
+    /**
+     * Reads ROMs by their MD5.
+     *
+     * @param md5s MD5 of the ROMs.
+     *
+     * @return The ROMs that are in the library, in no particular order.
+     */
+    public List<Entry> getEntries( List<String> md5s )
+    {
+        List<Entry> entries = new ArrayList<>();
+        for( int start = 0; start < md5s.size(); start += MAX_ARGUMENTS )
+        {
+            List<String> arguments = md5s.subList( start, Math.min( start + MAX_ARGUMENTS, md5s.size() ) );
+            entries.addAll( query( "SELECT rowid, " + COLUMNS + " FROM roms WHERE md5 IN (" +
+                    getPlaceholders( arguments.size() ) + ")", arguments.toArray( new String[0] ) ) );
+        }
+        return entries;
+    }
+
+    /**
+     * Reads what the search index needs of the ROMs the gallery can show, whatever their country.
+     *
+     * @param displayName Name the ROMs are shown by, ROMs without one can't be found.
+     * @param md5s MD5 of the ROMs to read, or null to read every ROM.
+     *
+     * @return The ROMs keyed by MD5, with their search text and the name they are shown by.
+     */
+    public List<GallerySearchIndex.Document> getSearchDocuments( DisplayName displayName, List<String> md5s )
+    {
+        String sql = "SELECT md5, searchText, " + displayName.mColumn + " FROM roms WHERE " + SHOWN + " AND " +
+                displayName.mColumn + " IS NOT NULL";
+        if( md5s == null )
+            return querySearchDocuments( sql );
+
+        List<GallerySearchIndex.Document> documents = new ArrayList<>();
+        for( int start = 0; start < md5s.size(); start += MAX_ARGUMENTS )
+        {
+            List<String> arguments = md5s.subList( start, Math.min( start + MAX_ARGUMENTS, md5s.size() ) );
+            documents.addAll( querySearchDocuments( sql + " AND md5 IN (" + getPlaceholders( arguments.size() ) +
+                    ")", arguments.toArray( new String[0] ) ) );
+        }
+        return documents;
+    }
+
+    /**
+     * @return The archives ROMs in the library were found in.
+     */
+    public List<String> getZipPaths()
+    {
+        return queryStrings( "SELECT DISTINCT zipPath FROM roms WHERE zipPath IS NOT NULL" );
+    }
+
+    /**
+     * @return The paths of the ROMs in the library that aren't in an archive.
+     */
+    public List<String> getLooseRomPaths()
+    {
+        return queryStrings( "SELECT DISTINCT romPath FROM roms WHERE zipPath IS NULL AND romPath IS NOT NULL" );
+    }
+
+    /**
+     * Adds ROMs to the library or updates them, in a single transaction.
+     *
+     * @param entries The ROMs found by a scan.
+     */
+    public void putAll( List<Entry> entries )
+    {
+        if( entries.isEmpty() )
+            return;
+
+        SQLiteDatabase database = getDatabase();
+        List<String> md5s = new ArrayList<>( entries.size() );
+        database.beginTransaction();
+        SQLiteStatement selectBaseName = database.compileStatement( "SELECT baseName FROM roms WHERE md5 = ?" );
+        SQLiteStatement update = database.compileStatement( UPDATE_SCANNED );
+        SQLiteStatement insert = database.compileStatement( INSERT );
+        try
+        {
+            for( Entry entry : entries )
+            {
+                // The base name is kept when the new scan doesn't know it, the names stored with it
+                // depend on it
+                String baseName = entry.baseName;
+                if( baseName == null )
+                {
+                    selectBaseName.bindString( 1, entry.md5 );
+                    try
+                    {
+                        baseName = selectBaseName.simpleQueryForString();
+                    }
+                    catch( SQLiteDoneException e )
+                    {
+                        // Not in the library yet
+                    }
+                }
+
+                String fileName = getFileName( entry.romPath );
+                bind( update, 1, entry.crc );
+                bind( update, 2, entry.headerName );
+                bind( update, 3, entry.goodName );
+                bind( update, 4, baseName );
+                bind( update, 5, entry.romPath );
+                bind( update, 6, entry.zipPath );
+                bind( update, 7, entry.artPath );
+                bind( update, 8, entry.artUrl );
+                bind( update, 9, entry.countryCode );
+                bind( update, 10, entry.sha1 );
+                bind( update, 11, entry.crc32 );
+                bind( update, 12, entry.checksumStatus );
+                bind( update, 13, getShortName( entry.goodName, baseName ) );
+                bind( update, 14, fileName );
+                bind( update, 15, GallerySearchIndex.getSearchText( entry.goodName, baseName, fileName,
+                        entry.headerName ) );
+                bind( update, 16, entry.md5 );
+
+                if( update.executeUpdateDelete() == 0 )
+                    insert( insert, entry );
+                md5s.add( entry.md5 );
+            }
+            database.setTransactionSuccessful();
+        }
+        finally
+        {
+            selectBaseName.close();
+            update.close();
+            insert.close();
+            database.endTransaction();
+        }
+
+        for( ChangeListener listener : mListeners )
+            listener.onRomsChanged( md5s, Collections.<String>emptyList() );
+    }
+
+    /**
+     * Records that a ROM was played.
+     *
+     * @param md5 MD5 of the ROM.
+     * @param time Time the ROM was played in seconds since the epoch.
+     */
+    public void markPlayed( String md5, int time )
+    {
+        getDatabase().execSQL( "UPDATE roms SET lastPlayed = ?, playCount = playCount + 1 WHERE md5 = ?",
+                new Object[]{ time, md5 } );
+    }
+
+    /**
+     * Records whether art shared by any number of ROMs was downloaded.
+     *
+     * @param artPath Where the art is saved.
+     * @param artStatus One of {@link #ART_UNKNOWN}, {@link #ART_DOWNLOADED} or {@link #ART_MISSING}.
+     */
+    public void setArtStatus( String artPath, int artStatus )
+    {
+        getDatabase().execSQL( "UPDATE roms SET artStatus = ? WHERE artPath = ?", new Object[]{ artStatus, artPath } );
+    }
+
+    /**
+     * Removes a ROM from the library.
+     *
+     * @param md5 MD5 of the ROM.
+     */
+    public void remove( String md5 )
+    {
+        delete( "md5 = ?", md5 );
+    }
+
+    /**
+     * Removes every ROM found in an archive.
+     *
+     * @param zipPath The archive.
+     *
+     * @return The number of ROMs removed.
+     */
+    public int removeByZipPath( String zipPath )
+    {
+        return delete( "zipPath = ?", zipPath );
+    }
+
+    /**
+     * Removes a ROM file that isn't in an archive, under every MD5 it was recorded with.
+     *
+     * @param romPath Path of the ROM.
+     *
+     * @return The number of ROMs removed.
+     */
+    public int removeLooseRom( String romPath )
+    {
+        return delete( "zipPath IS NULL AND romPath = ?", romPath );
+    }
+
+    /**
+     * Removes every ROM from the library.
+     */
+    public void clear()
+    {
+        getDatabase().execSQL( "DELETE FROM roms" );
+
+        for( ChangeListener listener : mListeners )
+            listener.onRomsCleared();
+    }
+
+    /**
+     * Removes the ROMs matching a condition, telling the listeners which ones they were.
+     */
+    private int delete( String where, String argument )
+    {
+        SQLiteDatabase database = getDatabase();
+        List<String> md5s;
+        database.beginTransaction();
+        SQLiteStatement delete = database.compileStatement( "DELETE FROM roms WHERE " + where );
+        try
+        {
+            md5s = queryStrings( "SELECT md5 FROM roms WHERE " + where, argument );
+            delete.bindString( 1, argument );
+            delete.executeUpdateDelete();
+            database.setTransactionSuccessful();
+        }
+        finally
+        {
+            delete.close();
+            database.endTransaction();
+        }
+
+        if( !md5s.isEmpty() )
+        {
+            for( ChangeListener listener : mListeners )
+                listener.onRomsChanged( Collections.<String>emptyList(), md5s );
+        }
+        return md5s.size();
+    }
+
+    private List<Entry> query( String sql, String... arguments )
+    {
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = getDatabase().rawQuery( sql, arguments );
+        try
+        {
+            while( cursor.moveToNext() )
+            {
+                entries.add( new Entry( cursor.getLong( 0 ), cursor.getString( 1 ), cursor.getString( 2 ),
+                        cursor.getString( 3 ), cursor.getString( 4 ), cursor.getString( 5 ),
+                        cursor.getString( 6 ), cursor.getString( 7 ), cursor.getString( 8 ),
+                        cursor.getString( 9 ),
+                        cursor.isNull( 10 ) ? null : CountryCode.getCountryCode( cursor.getInt( 10 ) ),
+                        cursor.getString( 11 ), cursor.getString( 12 ), cursor.getString( 13 ),
+                        cursor.getInt( 14 ), cursor.getInt( 15 ), cursor.getInt( 16 ) ) );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    private List<GallerySearchIndex.Document> querySearchDocuments( String sql, String... arguments )
+    {
+        List<GallerySearchIndex.Document> documents = new ArrayList<>();
+        Cursor cursor = getDatabase().rawQuery( sql, arguments );
+        try
+        {
+            while( cursor.moveToNext() )
+            {
+                documents.add( new GallerySearchIndex.Document( cursor.getString( 0 ), cursor.getString( 1 ),
+                        cursor.getString( 2 ) ) );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return documents;
+    }
+
+    private List<String> queryStrings( String sql, String... arguments )
+    {
+        List<String> values = new ArrayList<>();
+        Cursor cursor = getDatabase().rawQuery( sql, arguments );
+        try
+        {
+            while( cursor.moveToNext() )
+                values.add( cursor.getString( 0 ) );
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return Collections.unmodifiableList( values );
+    }
+
+    private static void insert( SQLiteStatement insert, Entry entry )
+    {
+        bind( insert, 1, entry.md5 );
+        bind( insert, 2, entry.crc );
+        bind( insert, 3, entry.headerName );
+        bind( insert, 4, entry.goodName );
+        bind( insert, 5, entry.baseName );
+        bind( insert, 6, entry.romPath );
+        bind( insert, 7, entry.zipPath );
+        bind( insert, 8, entry.artPath );
+        bind( insert, 9, entry.artUrl );
+        bind( insert, 10, entry.countryCode );
+        bind( insert, 11, entry.sha1 );
+        bind( insert, 12, entry.crc32 );
+        bind( insert, 13, entry.checksumStatus );
+        insert.bindLong( 14, entry.lastPlayed );
+        insert.bindLong( 15, entry.playCount );
+        insert.bindLong( 16, entry.artStatus );
+
+        String fileName = getFileName( entry.romPath );
+        bind( insert, 17, getShortName( entry.goodName, entry.baseName ) );
+        bind( insert, 18, fileName );
+        bind( insert, 19, GallerySearchIndex.getSearchText( entry.goodName, entry.baseName, fileName,
+                entry.headerName ) );
+        insert.executeInsert();
+    }
+
+    /**
+     * @return The condition on the ROMs the gallery shows.
+     */
+    private static String getGalleryFilter( DisplayName displayName, Collection<CountryCode> countryCodes )
+    {
+        StringBuilder countries = new StringBuilder();
+        for( CountryCode countryCode : countryCodes )
+        {
+            if( countries.length() > 0 )
+                countries.append( ", " );
+            countries.append( countryCode.getValue() );
+        }
+        return SHOWN + " AND countryCode IN (" + countries + ") AND " + displayName.mColumn + " IS NOT NULL";
+    }
+
+    private static String getPlaceholders( int count )
+    {
+        StringBuilder placeholders = new StringBuilder();
+        for( int i = 0; i < count; ++i )
+            placeholders.append( i == 0 ? "?" : ", ?" );
+        return placeholders.toString();
+    }
+
+    private static String getShortName( String goodName, String baseName )
+    {
+        return baseName != null ? baseName : goodName;
+    }
+
+    private static String getFileName( String romPath )
+    {
+        return romPath == null ? null : new File( romPath ).getName();
+    }
+
+    private static void bind( SQLiteStatement statement, int index, String value )
+    {
+        if( value == null )
+            statement.bindNull( index );
+        else
+            statement.bindString( index, value );
+    }
+
+    private static void bind( SQLiteStatement statement, int index, CountryCode value )
+    {
+        if( value == null )
+            statement.bindNull( index );
+        else
+            statement.bindLong( index, value.getValue() );
+    }
+
+    private static int parseInt( String value )
+    {
+        if( TextUtils.isEmpty( value ) )
+            return 0;
+
+        try
+        {
+            return Integer.parseInt( value );
+        }
+        catch( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+}
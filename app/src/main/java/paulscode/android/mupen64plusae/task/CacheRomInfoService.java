@@ -35,43 +35,35 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import androidx.core.app.NotificationCompat;
 import android.text.TextUtils;
 import android.util.Log;
 
-import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
-import org.apache.commons.compress.archivers.sevenz.SevenZFile;
 import es.jdbc.n64retroplus.R;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Map;
 
 import paulscode.android.mupen64plusae.ActivityHelper;
 import paulscode.android.mupen64plusae.GalleryActivity;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog.OnCancelListener;
+import paulscode.android.mupen64plusae.dialog.ProgressTracker;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.RomLibrary;
 import paulscode.android.mupen64plusae.util.CountryCode;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.RomDatabase;
 import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
-import paulscode.android.mupen64plusae.util.RomHeader;
-import paulscode.android.mupen64plusae.util.SevenZInputStream;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex;
 
 public class CacheRomInfoService extends Service
 {
@@ -84,7 +76,9 @@ public class CacheRomInfoService extends Service
     private boolean mDownloadArt;
     private boolean mClearGallery;
     private boolean mSearchSubdirectories;
-    private boolean mbStopped;
+    private volatile boolean mbStopped;
+    private volatile RomScanPipeline mScanPipeline = null;
+    private volatile CoverArtFetcher mArtFetcher = null;
     
     private int mStartId;
     private ServiceHandler mServiceHandler;
@@ -92,8 +86,34 @@ public class CacheRomInfoService extends Service
     private final IBinder mBinder = new LocalBinder();
     private CacheRomInfoListener mListener = null;
 
+    // Published by the scan threads and sampled by the progress dialog at its own pace
+    private final ProgressTracker mProgress = new ProgressTracker();
+
     final static int ONGOING_NOTIFICATION_ID = 1;
 
+    /** File next to the ROM info cache where the fingerprints of hashed ROMs are kept */
+    final static String FINGERPRINT_INDEX_NAME = "romFingerprints.cfg";
+
+    /** File next to the ROM info cache where the ETag and Last-Modified of downloaded art are kept */
+    final static String ART_VALIDATORS_NAME = "artValidators.cfg";
+
+    /** Number of cover art downloads in flight, in total and against a single host */
+    final static int ART_CONNECTIONS = 6;
+    final static int ART_CONNECTIONS_PER_HOST = 4;
+
+    /** File in the app data directory where the parameters and position of a running scan are kept */
+    final static String CHECKPOINT_NAME = "romScanCheckpoint.cfg";
+    final static String CHECKPOINT_SECTION = "Checkpoint";
+
+    /** How often a running scan saves what it has found so far */
+    final static long CHECKPOINT_INTERVAL_MS = 30 * 1000;
+
+    /** Number of scanned ROMs written to the library in a single transaction */
+    final static int LIBRARY_BATCH_SIZE = 200;
+
+    /** Number of ROMs read from the library at a time */
+    final static int LIBRARY_PAGE_SIZE = 500;
+
     final static String NOTIFICATION_CHANNEL_ID = "CacheRomInfoServiceChannel";
     final static String NOTIFICATION_CHANNEL_ID_V2 = "CacheRomInfoServiceChannelV2";
     
@@ -150,43 +170,93 @@ public class CacheRomInfoService extends Service
             // http://android2know.blogspot.com/2013/01/create-nomedia-file.html
             touchFile( mArtDir + "/.nomedia" );
             
-            final List<File> files = getAllFiles( searchPathFile, 0 );
             final RomDatabase database = RomDatabase.getInstance();
             if(!database.hasDatabaseFile())
             {
                 database.setDatabaseFile(mDatabasePath);
             }
             
-            final ConfigFile config = new ConfigFile( mConfigPath );
+            // The library replaces the config file, which is imported the first time it is opened
+            final RomLibrary library = RomLibrary.getInstance(
+                    new File( mConfigPath ).getParent() + "/" + RomLibrary.DATABASE_NAME, mConfigPath );
             if (mClearGallery)
-                config.clear();
-            
-            mListener.GetProgressDialog().setMaxProgress( files.size() );
-            for( final File file : files )
             {
-                mListener.GetProgressDialog().setSubtext( "" );
-                mListener.GetProgressDialog().setText( file.getName() );
-                mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_searching );
-                
-                if( mbStopped ) break;
-                RomHeader header = new RomHeader( file );
-                if( header.isValid ) {
-                    cacheFile( file, database, config);
-                } else if (mSearchZips && !ConfigHasZip(config, file.getPath())) {
-                    if (header.isZip) {
-                        cacheZip(database, file, config);
-                    } else if (header.is7Zip) {
-                        cache7Zip(database, file, config);
-                    }
+                library.clear();
+
+                // The cache is rebuilt from scratch now, a resumed scan must not clear it again
+                mClearGallery = false;
+                writeCheckpoint();
+            }
+
+            // Unchanged ROMs and archive entries are looked up in the fingerprint index instead
+            // of being hashed again
+            final RomFingerprintIndex fingerprints = new RomFingerprintIndex(
+                    new File( mConfigPath ).getParent() + "/" + FINGERPRINT_INDEX_NAME );
+            final RomScanPipeline pipeline = new RomScanPipeline( searchPathFile, mSearchSubdirectories,
+                    mSearchZips, mUnzipDir, fingerprints );
+            mScanPipeline = pipeline;
+            if( !mbStopped )
+                pipeline.start();
+
+            mProgress.setMessage( getString( R.string.cacheRomInfo_searching ) );
+
+            final List<RomLibrary.Entry> scanned = new ArrayList<>();
+            int filesProcessed = 0;
+            long lastCheckpointTime = SystemClock.elapsedRealtime();
+            boolean maxProgressKnown = false;
+            RomScanPipeline.ScanResult result;
+            while( !mbStopped && ( result = pipeline.take() ) != null )
+            {
+                mProgress.setText( result.file.getName() );
+
+                for( RomScanPipeline.ScannedRom rom : result.roms )
+                {
+                    scanned.add( cacheFile( rom, database ) );
+                }
+
+                if( scanned.size() >= LIBRARY_BATCH_SIZE )
+                {
+                    library.putAll( scanned );
+                    scanned.clear();
+                }
+
+                ++filesProcessed;
+                mProgress.setBytes( pipeline.getHashCounter().getBytes() );
+
+                // The total is only known once the walker is done, until then keep counting
+                if( !maxProgressKnown && pipeline.isWalkFinished() )
+                {
+                    maxProgressKnown = true;
+                    mProgress.setMaxProgress( pipeline.getDiscoveredCount() );
+                    mProgress.incrementProgress( filesProcessed );
+                }
+                else if( maxProgressKnown )
+                {
+                    mProgress.incrementProgress( 1 );
                 }
 
-                mListener.GetProgressDialog().incrementProgress( 1 );
+                // Save what we have so far, so a scan interrupted by the process being killed
+                // resumes from here. Files already hashed are fingerprint hits when it does.
+                if( SystemClock.elapsedRealtime() - lastCheckpointTime >= CHECKPOINT_INTERVAL_MS )
+                {
+                    library.putAll( scanned );
+                    scanned.clear();
+                    fingerprints.save();
+                    lastCheckpointTime = SystemClock.elapsedRealtime();
+                }
             }
 
-            CleanupMissingFiles(config);
-            downloadCoverArt(database, config);
+            pipeline.cancel();
+            pipeline.logStatistics();
+            mScanPipeline = null;
+            library.putAll( scanned );
+            fingerprints.removeMissing();
+            fingerprints.save();
+
+            CleanupMissingFiles(library);
+            downloadCoverArt(database, library);
 
-            config.save();
+            deleteCheckpoint();
             
             if (mListener != null)
             {
@@ -263,6 +333,23 @@ public class CacheRomInfoService extends Service
             mDownloadArt = extras.getBoolean( ActivityHelper.Keys.DOWNLOAD_ART );
             mClearGallery = extras.getBoolean( ActivityHelper.Keys.CLEAR_GALLERY );
             mSearchSubdirectories = extras.getBoolean( ActivityHelper.Keys.SEARCH_SUBDIR );
+
+            // A new scan replaces any interrupted one
+            writeCheckpoint();
+        }
+        else if( readCheckpoint() )
+        {
+            // The process was killed in the middle of a scan and we were restarted. Nobody is
+            // going to bind to us, so resume the scan right away.
+            Log.i( "CacheRomInfoService", "Resuming interrupted scan of " + mSearchPath );
+            Message msg = mServiceHandler.obtainMessage();
+            msg.arg1 = startId;
+            mServiceHandler.sendMessage(msg);
+        }
+        else
+        {
+            stopSelf(startId);
+            return START_NOT_STICKY;
         }
 
         mbStopped = false;
@@ -272,174 +359,75 @@ public class CacheRomInfoService extends Service
         return START_STICKY;
     }
 
-    /**
-     * Get all files in a directory and subdirectories
-     * @param searchPath Path to start search on
-     * @param count How many levels deep we currently are
-     * @return List of files
-     */
-    private List<File> getAllFiles( File searchPath, int count )
+    private RomLibrary.Entry cacheFile( RomScanPipeline.ScannedRom rom, RomDatabase database )
     {
-        List<File> result = new ArrayList<>();
-        if( searchPath.isDirectory())
-        {
-            File[] allFiles = searchPath.listFiles();
-            if(allFiles != null)
-            {
-                for( File file : allFiles )
-                {
-                    if( mbStopped ) break;
+        final File zipFileLocation = rom.zipFile;
 
-                    //Search subdirectories if option is enabled and we less than 10 levels deep
-                    if(mSearchSubdirectories && count < 10)
-                    {
-                        result.addAll( getAllFiles( file, ++count ) );
-                    }
-                    else if(!file.isDirectory())
-                    {
-                        result.add(file);
-                    }
+        RomDetail detail = database.lookupByMd5WithFallback( rom.md5, rom.romPath, rom.crc, rom.countryCode );
+        String artPath = mArtDir + "/" + detail.artName;
 
-                }
-            }
-        }
-        else
-        {
-            result.add( searchPath );
-        }
-        return result;
+        return new RomLibrary.Entry( rom.md5, rom.crc, rom.headerName, detail.goodName,
+                TextUtils.isEmpty( detail.baseName ) ? null : detail.baseName, rom.romPath,
+                zipFileLocation == null ? null : zipFileLocation.getAbsolutePath(), artPath,
+                detail.artUrl, rom.countryCode, rom.sha1, rom.crc32, rom.checksumStatus );
     }
-
-    private void cacheZip(RomDatabase database, File file, ConfigFile config)
+    
+    private String getCheckpointPath()
     {
-        Log.i( "CacheRomInfoService", "Found zip file " + file.getName() );
-        try
-        {
-            ZipFile zipFile = new ZipFile( file );
-            Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            while( entries.hasMoreElements() && !mbStopped)
-            {
-                try
-                {
-                    ZipEntry zipEntry = entries.nextElement();
-                    mListener.GetProgressDialog().setSubtext( new File(zipEntry.getName()).getName() );
-                    mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_searchingZip );
-
-                    InputStream zipStream = new BufferedInputStream(zipFile.getInputStream( zipEntry ));
-                    mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_extractingZip );
-
-                    cacheFileFromInputStream(database, file, config, new File(zipEntry.getName()).getName(),
-                            zipStream);
-
-                    zipStream.close();
-                }
-                catch( IOException|NoSuchAlgorithmException|IllegalArgumentException e  )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-            }
-            zipFile.close();
-        }
-        catch( IOException|ArrayIndexOutOfBoundsException|java.lang.NullPointerException e )
-        {
-            Log.w( "CacheRomInfoService", e );
-        }
+        return new File( getFilesDir(), CHECKPOINT_NAME ).getAbsolutePath();
     }
 
-    private void cache7Zip(RomDatabase database, File file, ConfigFile config)
+    /**
+     * Records the parameters of the running scan, so it can be resumed if the process is killed.
+     * A resumed scan walks the search path again, the files cached so far are fingerprint hits.
+     */
+    private void writeCheckpoint()
     {
-        Log.i( "CacheRomInfoService", "Found 7zip file " + file.getName() );
-
-        try
-        {
-            SevenZFile zipFile = new SevenZFile( file );
-            SevenZArchiveEntry zipEntry;
-            while( (zipEntry = zipFile.getNextEntry()) != null && !mbStopped)
-            {
-                try
-                {
-                    mListener.GetProgressDialog().setSubtext( new File(zipEntry.getName()).getName() );
-                    mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_searchingZip );
-
-                    InputStream zipStream = new BufferedInputStream(new SevenZInputStream(zipFile));
-                    mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_extractingZip );
-
-                    cacheFileFromInputStream(database, file, config, new File(zipEntry.getName()).getName(),
-                            zipStream);
-
-                    zipStream.close();
-                }
-                catch( IOException|NoSuchAlgorithmException |IllegalArgumentException e  )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-            }
-            zipFile.close();
-        }
-        catch(IOException e)
-        {
-            Log.w( "CacheRomInfoService", "IOException: " + e );
-        }
-        catch (java.lang.OutOfMemoryError e)
-        {
-            Log.w( "CacheRomInfoService", "Out of memory while extracting 7zip entry: " + file.getPath() );
-        }
+        ConfigFile checkpoint = new ConfigFile( getCheckpointPath() );
+        checkpoint.clear();
+        checkpoint.put( CHECKPOINT_SECTION, "searchPath", mSearchPath );
+        checkpoint.put( CHECKPOINT_SECTION, "databasePath", mDatabasePath );
+        checkpoint.put( CHECKPOINT_SECTION, "configPath", mConfigPath );
+        checkpoint.put( CHECKPOINT_SECTION, "artDir", mArtDir );
+        checkpoint.put( CHECKPOINT_SECTION, "unzipDir", mUnzipDir );
+        checkpoint.put( CHECKPOINT_SECTION, "searchZips", mSearchZips ? "True" : "False" );
+        checkpoint.put( CHECKPOINT_SECTION, "downloadArt", mDownloadArt ? "True" : "False" );
+        checkpoint.put( CHECKPOINT_SECTION, "clearGallery", mClearGallery ? "True" : "False" );
+        checkpoint.put( CHECKPOINT_SECTION, "searchSubdirectories", mSearchSubdirectories ? "True" : "False" );
+        checkpoint.save();
     }
 
-    private void cacheFileFromInputStream(RomDatabase database, File file, ConfigFile config, String name,
-                                          InputStream inputStream) throws IOException, NoSuchAlgorithmException {
-        //First get the rom header
-        inputStream.mark(500);
-        byte[] romHeader = FileUtil.extractRomHeader(inputStream);
-        RomHeader extractedHeader;
-        if(romHeader != null) {
-            extractedHeader = new RomHeader( romHeader );
-
-            if(extractedHeader.isValid)
-            {
-                Log.i( "FileUtil", "Found ROM entry " + name);
-
-                //Then extract the ROM file
-                inputStream.reset();
-
-                String extractedFile = mUnzipDir + "/" + name;
-                String md5 = ComputeMd5Task.computeMd5( inputStream );
-
-                cacheFile( extractedFile, extractedHeader, md5, database, config, file );
-            }
-        }
+    /**
+     * Loads the parameters of an interrupted scan
+     * @return True if there is a scan to resume
+     */
+    private boolean readCheckpoint()
+    {
+        if( !new File( getCheckpointPath() ).exists() )
+            return false;
+
+        ConfigFile checkpoint = new ConfigFile( getCheckpointPath() );
+        mSearchPath = checkpoint.get( CHECKPOINT_SECTION, "searchPath" );
+        mDatabasePath = checkpoint.get( CHECKPOINT_SECTION, "databasePath" );
+        mConfigPath = checkpoint.get( CHECKPOINT_SECTION, "configPath" );
+        mArtDir = checkpoint.get( CHECKPOINT_SECTION, "artDir" );
+        mUnzipDir = checkpoint.get( CHECKPOINT_SECTION, "unzipDir" );
+        mSearchZips = "True".equals( checkpoint.get( CHECKPOINT_SECTION, "searchZips" ) );
+        mDownloadArt = "True".equals( checkpoint.get( CHECKPOINT_SECTION, "downloadArt" ) );
+        mClearGallery = "True".equals( checkpoint.get( CHECKPOINT_SECTION, "clearGallery" ) );
+        mSearchSubdirectories = "True".equals( checkpoint.get( CHECKPOINT_SECTION, "searchSubdirectories" ) );
+
+        return mSearchPath != null && !TextUtils.isEmpty( mDatabasePath ) && !TextUtils.isEmpty( mConfigPath ) &&
+                !TextUtils.isEmpty( mArtDir ) && !TextUtils.isEmpty( mUnzipDir );
     }
 
-    private void cacheFile( String filename, RomHeader header, String md5, RomDatabase database, ConfigFile config, File zipFileLocation )
+    private void deleteCheckpoint()
     {
-        mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_computingMD5 );
-
-        mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_searchingDB );
-        RomDetail detail = database.lookupByMd5WithFallback( md5, filename, header.crc, header.countryCode );
-        String artPath = mArtDir + "/" + detail.artName;
-        config.put( md5, "goodName", detail.goodName );
-        if (detail.baseName != null && detail.baseName.length() != 0)
-            config.put( md5, "baseName", detail.baseName );
-        config.put( md5, "romPath", filename );
-        config.put( md5, "zipPath", zipFileLocation == null ? "":zipFileLocation.getAbsolutePath() );
-        config.put( md5, "artPath", artPath );
-        config.put( md5, "crc", header.crc );
-        config.put( md5, "headerName", header.name );
-
-        String countryCodeString = Byte.toString(header.countryCode.getValue());
-        config.put( md5, "countryCode",  countryCodeString);
-
-        mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_refreshingUI );
+        File checkpointFile = new File( getCheckpointPath() );
+        if( checkpointFile.exists() && !checkpointFile.delete() )
+            Log.w( "CacheRomInfoService", "Unable to delete " + checkpointFile.getName() );
     }
-    
-    private void cacheFile( File file, RomDatabase database, ConfigFile config )
-    {
-        String md5 = ComputeMd5Task.computeMd5( file );
-        RomHeader header = new RomHeader(file);
 
-        cacheFile( file.getAbsolutePath(), header, md5, database, config, null );
-    }
-    
     private static void touchFile( String destPath )
     {
         try
@@ -460,96 +448,10 @@ public class CacheRomInfoService extends Service
         }
     }
     
-    private void downloadFile( String sourceUrl, String destPath )
-    {
-        File destFile = new File(destPath);
-        boolean fileCreationSuccess = true;
-
-        // Be sure destination directory exists
-        FileUtil.makeDirs(destFile.getParentFile().getPath());
-
-        // Delete the file if it already exists, we are replacing it
-        if (destFile.exists())
-        {
-            if (destFile.delete())
-            {
-                Log.w( "CacheRomInfoService", "Unable to delete " + destFile.getName());
-            }
-        }
-        
-        // Download file
-        InputStream inStream = null;
-        OutputStream outStream = null;
-        try
-        {
-            // Open the streams (throws exceptions)
-            URL url = new URL( sourceUrl );
-            inStream = url.openStream();
-            outStream = new FileOutputStream( destPath );
-
-            // Buffer the streams
-            inStream = new BufferedInputStream( inStream );
-            outStream = new BufferedOutputStream( outStream );
-            
-            // Read/write the streams (throws exceptions)
-            byte[] buffer = new byte[1024];
-            int n;
-            while( ( n = inStream.read( buffer ) ) >= 0)
-            {
-                outStream.write( buffer, 0, n );
-            }
-
-            // Check if downloaded file is valud
-            if (!FileUtil.isFileImage(destFile))
-            {
-                if (destFile.delete())
-                {
-                    Log.w( "CacheRomInfoService", "Deleting invalid image " + destFile.getName());
-                }
-            }
-        }
-        catch( Throwable e )
-        {
-            Log.w( "CacheRomInfoService", e );
-            fileCreationSuccess = false;
-        }
-        finally
-        {
-            // Flush output stream and guarantee no memory leaks
-            if( outStream != null )
-                try
-                {
-                    outStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-            if( inStream != null )
-                try
-                {
-                    inStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-        }
-        
-        if (!fileCreationSuccess && !destFile.isDirectory())
-        {
-            // Delete any remnants if there was an exception. We don't want a
-            // corrupted graphic
-            if (!destFile.delete()) {
-                Log.w("CacheRomInfoService", "Unable to delete " + destFile.getName());
-            }
-        }
-    }
-    
     @Override
     public void onDestroy()
     {
-        mbStopped = true;
+        Stop();
         
         if (mListener != null)
         {
@@ -565,6 +467,7 @@ public class CacheRomInfoService extends Service
     public void SetCacheRomInfoListener(CacheRomInfoListener cacheRomInfoListener)
     {
         mListener = cacheRomInfoListener;
+        mListener.GetProgressDialog().track( mProgress );
         mListener.GetProgressDialog().setOnCancelListener(new OnCancelListener()
         {
             @Override
@@ -583,142 +486,100 @@ public class CacheRomInfoService extends Service
 
     public void Stop()
     {
-        mbStopped = true;        
-    }
-
-    /**
-     * Return true if the config file already contains the given zip file, this is because
-     * exctracting zip files takes a long time
-     * @param zipFile Zip file to search config file for
-     * @return true if zip file is present
-     */
-    private boolean ConfigHasZip(ConfigFile theConfigFile, String zipFile)
-    {
-        Set<String> keys = theConfigFile.keySet();
-        boolean found = false;
-
-        Iterator iter = keys.iterator();
-        String key = null;
-        while (iter.hasNext() && !found) {
-            key = (String) iter.next();
-            String foundZipPath = theConfigFile.get(key, "zipPath");
-            found = foundZipPath != null && foundZipPath.equals(zipFile);
-        }
+        mbStopped = true;
 
-        // If found,make sure it also has  valid data
-        if (found && key != null) {
-            String crc = theConfigFile.get( key, "crc" );
-            String headerName = theConfigFile.get( key, "headerName" );
-            final String countryCodeString = theConfigFile.get( key, "countryCode" );
+        // A cancelled scan must not be resumed
+        deleteCheckpoint();
 
-            found = crc != null && headerName != null && countryCodeString != null;
-        }
+        final RomScanPipeline pipeline = mScanPipeline;
+        if( pipeline != null )
+            pipeline.cancel();
 
-        return found;
+        final CoverArtFetcher fetcher = mArtFetcher;
+        if( fetcher != null )
+            fetcher.cancel();
     }
 
     /**
-     * Cleanup any missing files from the config file
-     * @param theConfigFile Config file to clean up
+     * Cleanup any missing files from the library
+     * @param library Library to clean up
      */
-    private void CleanupMissingFiles(ConfigFile theConfigFile)
+    private void CleanupMissingFiles(RomLibrary library)
     {
-        Set<String> keys = theConfigFile.keySet();
-
-        Iterator iter = keys.iterator();
-        while (iter.hasNext()) {
-            String key = (String) iter.next();
-            String foundZipPath = theConfigFile.get(key, "zipPath");
-            String foundRomPath = theConfigFile.get(key, "romPath");
+        // Each archive or ROM file is only checked once, whatever the number of ROMs it holds
 
-            //Check if this is a zip file first
-            if(!TextUtils.isEmpty(foundZipPath))
-            {
-                File zipFile = new File(foundZipPath);
-
-                //Zip file doesn't exist, check if the ROM path exists
-                if(!zipFile.exists())
-                {
-                    if(!TextUtils.isEmpty(foundRomPath))
-                    {
-                        File romFile = new File(foundRomPath);
-
-                        //Cleanup the ROM file since this is a zip file
-                        if(!romFile.exists())
-                        {
-                            Log.i( "CacheRomInfoService", "Removing md5=" + key );
-                            if(!romFile.isDirectory() && romFile.delete()) {
-                                Log.w( "CacheRomInfoService", "Unable to delete " + romFile.getName() );
-                            }
-                        }
-                    }
-
-                    theConfigFile.remove(key);
-                    keys = theConfigFile.keySet();
-                    iter = keys.iterator();
-                }
+        //Entries from a zip file are removed along with the zip file
+        for (String zipPath : library.getZipPaths()) {
+            if (!new File(zipPath).exists()) {
+                Log.i( "CacheRomInfoService", "Removing " + library.removeByZipPath(zipPath) + " ROMs in " + zipPath );
             }
-            //This was not a zip file, just check the ROM path
-            else if(!TextUtils.isEmpty(foundRomPath))
-            {
-                File romFile = new File(foundRomPath);
-
-                //Cleanup the ROM file since this is a zip file
-                if(!romFile.exists())
-                {
-                    Log.w( "CacheRomInfoService", "Removing md5=" + key );
+        }
 
-                    theConfigFile.remove(key);
-                    keys = theConfigFile.keySet();
-                    iter = keys.iterator();
-                }
+        //Other entries are removed along with the ROM file
+        for (String romPath : library.getLooseRomPaths()) {
+            if (!TextUtils.isEmpty(romPath) && !new File(romPath).exists()) {
+                Log.w( "CacheRomInfoService", "Removing " + library.removeLooseRom(romPath) + " ROMs at " + romPath );
             }
         }
     }
 
-    private void downloadCoverArt(RomDatabase database, ConfigFile theConfigFile)
+    private void downloadCoverArt(RomDatabase database, final RomLibrary library)
     {
         if( mDownloadArt )
         {
-            Set<String> keys = theConfigFile.keySet();
-
-            mListener.GetProgressDialog().setMaxProgress( keys.size() );
+            // Several ROMs can share the same art, only fetch each piece once
+            Map<String, CoverArtFetcher.Request> requests = new LinkedHashMap<>();
+
+            List<RomLibrary.Entry> entries;
+            for (long lastId = 0; !(entries = library.getEntries(lastId, LIBRARY_PAGE_SIZE)).isEmpty();
+                 lastId = entries.get(entries.size() - 1).id) {
+                for (RomLibrary.Entry entry : entries) {
+                    if(!TextUtils.isEmpty(entry.artPath) && !TextUtils.isEmpty(entry.romPath) &&
+                            !TextUtils.isEmpty(entry.crc) && !requests.containsKey(entry.artPath))
+                    {
+                        String artUrl = entry.artUrl;
 
-            mListener.GetProgressDialog().setMessage( "" );
-            mListener.GetProgressDialog().setSubtext( getString(R.string.cacheRomInfo_downloadingArt) );
+                        // Entries cached before the URL was stored need a database lookup
+                        if (TextUtils.isEmpty(artUrl))
+                        {
+                            CountryCode countryCode = entry.countryCode == null ? CountryCode.UNKNOWN : entry.countryCode;
+                            artUrl = database.lookupByMd5WithFallback( entry.md5, new File(entry.romPath).getAbsolutePath(),
+                                    entry.crc, countryCode ).artUrl;
+                        }
 
-            for (String key : keys) {
-                String artPath = theConfigFile.get(key, "artPath");
-                String romFile = theConfigFile.get(key, "romPath");
-                String crc = theConfigFile.get(key, "crc");
-                final String countryCodeString = theConfigFile.get( key, "countryCode" );
-                CountryCode countryCode = CountryCode.UNKNOWN;
-                if (countryCodeString != null)
-                {
-                    countryCode = CountryCode.getCountryCode(Byte.parseByte(countryCodeString));
+                        if (!TextUtils.isEmpty(artUrl))
+                        {
+                            requests.put(entry.artPath, new CoverArtFetcher.Request(artUrl, entry.artPath));
+                        }
+                    }
                 }
+            }
 
-                if(!TextUtils.isEmpty(artPath) && !TextUtils.isEmpty(romFile) && !TextUtils.isEmpty(crc))
-                {
-                    RomDetail detail = database.lookupByMd5WithFallback( key, new File(romFile).getAbsolutePath(), crc, countryCode );
+            mProgress.setMaxProgress( requests.size() );
 
-                    mListener.GetProgressDialog().setText( new File(romFile).getName() );
+            mProgress.setMessage( "" );
+            mProgress.setSubtext( getString(R.string.cacheRomInfo_downloadingArt) );
 
-                    //Only download art if it's not already present or current art is not a valid image
-                    File artPathFile = new File (artPath);
-                    if(!artPathFile.exists() || !FileUtil.isFileImage(artPathFile))
-                    {
-                        Log.i( "CacheRomInfoService", "Start art download: " +  artPath);
-                        downloadFile( detail.artUrl, artPath );
+            final CoverArtFetcher fetcher = new CoverArtFetcher( ART_CONNECTIONS, ART_CONNECTIONS_PER_HOST,
+                    new File( mConfigPath ).getParent() + "/" + ART_VALIDATORS_NAME );
+            mArtFetcher = fetcher;
 
-                        Log.i( "CacheRomInfoService", "End art download: " +  artPath);
+            if( !mbStopped )
+            {
+                fetcher.fetch( new ArrayList<>( requests.values() ), new CoverArtFetcher.FetchListener()
+                {
+                    @Override
+                    public void onArtFetched( CoverArtFetcher.Request request, boolean success )
+                    {
+                        library.setArtStatus( request.artPath,
+                                success ? RomLibrary.ART_DOWNLOADED : RomLibrary.ART_MISSING );
+                        mProgress.setText( new File( request.artPath ).getName() );
+                        mProgress.incrementProgress( 1 );
                     }
-                }
-
-                mListener.GetProgressDialog().incrementProgress(1);
-
-                if( mbStopped ) break;
+                } );
             }
+
+            mArtFetcher = null;
         }
     }
 }
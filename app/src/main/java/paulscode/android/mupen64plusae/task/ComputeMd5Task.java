@@ -20,16 +20,19 @@
  */
 package paulscode.android.mupen64plusae.task;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
-import java.util.Locale;
 
 import android.os.AsyncTask;
 
+import paulscode.android.mupen64plusae.util.RomDigest;
+
 public class ComputeMd5Task extends AsyncTask<Void, Void, String>
 {
     public interface ComputeMd5Listener
@@ -65,13 +68,109 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
         mListener.onComputeMd5Finished( mFile, result );
     }
 
+    /** First byte of a byte swapped (.v64) image */
+    private static final int FIRST_BYTE_BYTE_SWAPPED = 0x37;
+
+    /** First byte of a word swapped (.n64) image */
+    private static final int FIRST_BYTE_WORD_SWAPPED = 0x40;
+
+    /** Size of the window of a file that is memory mapped at once */
+    private static final int MAP_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    /** Size of the per-thread buffer used to hold swapped data before it's digested */
+    private static final int SWAP_BUFFER_SIZE = 1024 * 1024;
+
+    // Digests and buffers are reused by each thread, the scan calls into here once per ROM
+    private static final ThreadLocal<RomDigest> sMd5Digest = new ThreadLocal<RomDigest>()
+    {
+        @Override
+        protected RomDigest initialValue()
+        {
+            try
+            {
+                return new RomDigest( true );
+            }
+            catch( NoSuchAlgorithmException e )
+            {
+                return null;
+            }
+        }
+    };
+
+    private static final ThreadLocal<RomDigest> sFullDigest = new ThreadLocal<RomDigest>()
+    {
+        @Override
+        protected RomDigest initialValue()
+        {
+            try
+            {
+                return new RomDigest( false );
+            }
+            catch( NoSuchAlgorithmException e )
+            {
+                return null;
+            }
+        }
+    };
+
+    private static final ThreadLocal<ByteBuffer> sSwapBuffer = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue()
+        {
+            return ByteBuffer.allocateDirect( SWAP_BUFFER_SIZE ).order( ByteOrder.BIG_ENDIAN );
+        }
+    };
+
+    private static final ThreadLocal<byte[]> sStreamBuffer = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[SWAP_BUFFER_SIZE];
+        }
+    };
+
     public static String computeMd5( File file )
     {
-        InputStream inputStream = null;
+        RomDigest.Result result = computeDigests( file, true );
+        return result == null ? null : result.md5;
+    }
+
+    public static String computeMd5( InputStream inputStream ) throws java.io.IOException, NoSuchAlgorithmException
+    {
+        return computeDigests( inputStream, getDigest( true ) ).md5;
+    }
+
+    /**
+     * Computes the MD5, SHA-1, CRC32 and N64 checksum of a ROM image in a single read of the file.
+     *
+     * @param file The ROM image
+     * @return The digests, or null if the file couldn't be read
+     */
+    public static RomDigest.Result computeDigests( File file )
+    {
+        return computeDigests( file, false );
+    }
+
+    /**
+     * Computes the MD5, SHA-1, CRC32 and N64 checksum of a ROM image in a single read of the stream.
+     *
+     * @param inputStream Stream of the ROM image, which must support mark/reset
+     * @return The digests
+     */
+    public static RomDigest.Result computeDigests( InputStream inputStream ) throws java.io.IOException, NoSuchAlgorithmException
+    {
+        return computeDigests( inputStream, getDigest( false ) );
+    }
+
+    private static RomDigest.Result computeDigests( File file, boolean md5Only )
+    {
+        FileInputStream inputStream = null;
         try
         {
-            inputStream = new BufferedInputStream( new FileInputStream( file ) );
-            return computeMd5(inputStream);
+            inputStream = new FileInputStream( file );
+            return computeDigests( inputStream.getChannel(), getDigest( md5Only ) );
         }
         catch( Exception e )
         {
@@ -93,57 +192,144 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
         }
     }
 
-    public static String computeMd5( InputStream inputStream  ) throws java.io.IOException, NoSuchAlgorithmException
+    /**
+     * Digests a ROM image by memory mapping it. The image is hashed in its native big-endian
+     * (.z64) byte order regardless of how it's stored.
+     *
+     * @param channel Channel of the ROM image, starting at the beginning of the file
+     * @param digest Digest to feed the image to
+     */
+    private static RomDigest.Result computeDigests( FileChannel channel, RomDigest digest ) throws java.io.IOException
+    {
+        final long size = channel.size();
+        int firstByte = -1;
+
+        for( long position = 0; position < size; position += MAP_WINDOW_SIZE )
+        {
+            MappedByteBuffer window = channel.map( FileChannel.MapMode.READ_ONLY, position,
+                    Math.min( MAP_WINDOW_SIZE, size - position ) );
+            window.order( ByteOrder.BIG_ENDIAN );
+
+            if( firstByte == -1 )
+                firstByte = window.get( 0 ) & 0xFF;
+
+            if( firstByte == FIRST_BYTE_BYTE_SWAPPED || firstByte == FIRST_BYTE_WORD_SWAPPED )
+                updateSwapped( digest, window, firstByte );
+            else
+                digest.update( window );
+        }
+
+        return digest.finish();
+    }
+
+    private static RomDigest.Result computeDigests( InputStream inputStream, RomDigest digest ) throws java.io.IOException
     {
         // From http://stackoverflow.com/a/16938703
-            inputStream.mark( 1 );
-            int firstByte = inputStream.read();
-            inputStream.reset();
-            
-            MessageDigest digester = MessageDigest.getInstance( "MD5" );
-            byte[] bytes = new byte[8192];
-            int byteCount;
-            while( ( byteCount = inputStream.read( bytes ) ) > 0 )
+        inputStream.mark( 1 );
+        int firstByte = inputStream.read();
+        inputStream.reset();
+
+        byte[] bytes = sStreamBuffer.get();
+        ByteBuffer wrapped = ByteBuffer.wrap( bytes ).order( ByteOrder.BIG_ENDIAN );
+        int byteCount;
+        while( ( byteCount = readFully( inputStream, bytes ) ) > 0 )
+        {
+            if( firstByte == FIRST_BYTE_BYTE_SWAPPED || firstByte == FIRST_BYTE_WORD_SWAPPED )
             {
-                switch( firstByte )
-                {
-                    case 0x37:
-                        // Byteswap if .v64 image
-                        for( int i = 0; i < byteCount; i += 2 )
-                        {
-                            byte temp = bytes[i];
-                            bytes[i] = bytes[i + 1];
-                            bytes[i + 1] = temp;
-                        }
-                        break;
-                    case 0x40:
-                        // Wordswap if .n64 image
-                        for( int i = 0; i < byteCount; i += 4 )
-                        {
-                            byte temp = bytes[i];
-                            bytes[i] = bytes[i + 3];
-                            bytes[i + 3] = temp;
-                            temp = bytes[i + 1];
-                            bytes[i + 1] = bytes[i + 2];
-                            bytes[i + 2] = temp;
-                        }
-                        break;
-                    default:
-                        // No swap otherwise
-                        break;
-                }
-                digester.update( bytes, 0, byteCount );
+                wrapped.clear();
+                wrapped.limit( byteCount );
+                updateSwapped( digest, wrapped, firstByte );
             }
-            return convertHashToString( digester.digest() );
+            else
+            {
+                // No swap otherwise
+                digest.update( bytes, 0, byteCount );
+            }
+        }
+        return digest.finish();
     }
-    
-    private static String convertHashToString( byte[] md5Bytes )
+
+    private static RomDigest getDigest( boolean md5Only ) throws NoSuchAlgorithmException
+    {
+        RomDigest digest = md5Only ? sMd5Digest.get() : sFullDigest.get();
+        if( digest == null )
+            throw new NoSuchAlgorithmException( "MD5 or SHA-1 is not available" );
+
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, so that every chunk except the last one
+     * is aligned to the 32-bit words being swapped.
+     */
+    private static int readFully( InputStream inputStream, byte[] buffer ) throws java.io.IOException
+    {
+        int total = 0;
+        int byteCount;
+        while( total < buffer.length && ( byteCount = inputStream.read( buffer, total, buffer.length - total ) ) > 0 )
+            total += byteCount;
+        return total;
+    }
+
+    /**
+     * Swaps the remaining bytes of the source into native byte order, eight bytes at a time, and
+     * feeds them to the digest.
+     *
+     * @param digest Digest to update
+     * @param source Data to swap, in big-endian order. Its position is advanced to its limit.
+     * @param firstByte First byte of the image, which identifies its byte order
+     */
+    private static void updateSwapped( RomDigest digest, ByteBuffer source, int firstByte )
     {
-        StringBuilder stringBuilder = new StringBuilder(100);
-        for( int aByte : md5Bytes )
+        ByteBuffer swapped = sSwapBuffer.get();
+
+        while( source.remaining() >= 8 )
         {
-            stringBuilder.append(Integer.toString( ( aByte & 0xff ) + 0x100, 16 ).substring( 1 ));
+            swapped.clear();
+            int longCount = Math.min( source.remaining(), swapped.capacity() ) / 8;
+
+            if( firstByte == FIRST_BYTE_BYTE_SWAPPED )
+            {
+                // Byteswap if .v64 image
+                for( int i = 0; i < longCount; ++i )
+                {
+                    long value = source.getLong();
+                    swapped.putLong( ( ( value & 0x00FF00FF00FF00FFL ) << 8 ) |
+                            ( ( value >>> 8 ) & 0x00FF00FF00FF00FFL ) );
+                }
+            }
+            else
+            {
+                // Wordswap if .n64 image
+                for( int i = 0; i < longCount; ++i )
+                {
+                    swapped.putLong( Long.rotateLeft( Long.reverseBytes( source.getLong() ), 32 ) );
+                }
+            }
+
+            swapped.flip();
+            digest.update( swapped );
+        }
+
+        // Swap whatever doesn't fill a whole long the same way as the rest of the image
+        int remaining = source.remaining();
+        if( remaining > 0 )
+        {
+            byte[] tail = new byte[remaining];
+            source.get( tail );
+
+            int step = firstByte == FIRST_BYTE_BYTE_SWAPPED ? 2 : 4;
+            for( int i = 0; i + step <= remaining; i += step )
+            {
+                for( int j = 0; j < step / 2; ++j )
+                {
+                    byte temp = tail[i + j];
+                    tail[i + j] = tail[i + step - 1 - j];
+                    tail[i + step - 1 - j] = temp;
+                }
+            }
+            digest.update( tail, 0, tail.length );
         }
-        return stringBuilder.toString().toUpperCase( Locale.US );
     }
 }
\ No newline at end of file
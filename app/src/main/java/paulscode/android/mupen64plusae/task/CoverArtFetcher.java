@@ -0,0 +1,462 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.util.FileUtil;
+
+/**
+ * Downloads cover art over a bounded number of parallel connections.
+ * <p>
+ * The ETag and Last-Modified validators of every download are remembered, so art that is already
+ * on disk is only revalidated with a conditional request once it gets old, and art the server
+ * doesn't have is not requested again on every scan. Downloads go to a temporary file that only
+ * replaces the existing art once it is complete and decodes as an image.
+ * <p>
+ * The fetcher only deals with URLs and checks images through an {@link ImageValidator}, so it can
+ * be pointed at a local HTTP server for testing.
+ */
+public class CoverArtFetcher
+{
+    private static final String TAG = "CoverArtFetcher";
+
+    /** Art on disk is revalidated with the server once it is this old */
+    private static final long REVALIDATE_AGE_MS = TimeUnit.DAYS.toMillis( 30 );
+
+    /** Art the server didn't have is requested again after this long */
+    private static final long MISSING_RETRY_AGE_MS = TimeUnit.DAYS.toMillis( 1 );
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long INITIAL_BACKOFF_MS = 500;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Response codes used for failures that don't come from the server */
+    private static final int RESPONSE_IO_ERROR = -1;
+    private static final int RESPONSE_INVALID_IMAGE = -2;
+
+    public interface FetchListener
+    {
+        /**
+         * Called from a download thread once a request has been handled, whether or not anything
+         * had to be downloaded.
+         *
+         * @param request The request
+         * @param success True if the art is now on disk
+         */
+        void onArtFetched( Request request, boolean success );
+    }
+
+    public interface ImageValidator
+    {
+        /**
+         * @param file Art on disk or just downloaded
+         * @return True if the file can be shown as cover art
+         */
+        boolean isValid( File file );
+    }
+
+    /** Accepts files that decode as a bitmap */
+    private static final ImageValidator BITMAP_VALIDATOR = new ImageValidator()
+    {
+        @Override
+        public boolean isValid( File file )
+        {
+            if( FileUtil.isFileImage( file ) )
+                return true;
+
+            Log.w( TAG, "Not a valid image: " + file.getName() );
+            return false;
+        }
+    };
+
+    /**
+     * Cover art to fetch.
+     */
+    public static class Request
+    {
+        public final String url;
+        public final String artPath;
+
+        public Request( String url, String artPath )
+        {
+            this.url = url;
+            this.artPath = artPath;
+        }
+    }
+
+    private final int mMaxConnections;
+    private final int mMaxConnectionsPerHost;
+    private final ConfigFile mValidators;
+    private final ImageValidator mImageValidator;
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();
+    private final Random mRandom = new Random();
+    private volatile boolean mCancelled = false;
+    private volatile ExecutorService mExecutor = null;
+
+    /**
+     * Constructor.
+     *
+     * @param maxConnections Maximum number of simultaneous downloads
+     * @param maxConnectionsPerHost Maximum number of simultaneous downloads from a single host
+     * @param validatorsPath File where the validators of downloaded art are kept
+     */
+    public CoverArtFetcher( int maxConnections, int maxConnectionsPerHost, String validatorsPath )
+    {
+        this( maxConnections, maxConnectionsPerHost, validatorsPath, BITMAP_VALIDATOR );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxConnections Maximum number of simultaneous downloads
+     * @param maxConnectionsPerHost Maximum number of simultaneous downloads from a single host
+     * @param validatorsPath File where the validators of downloaded art are kept
+     * @param imageValidator Checks art before it is kept
+     */
+    public CoverArtFetcher( int maxConnections, int maxConnectionsPerHost, String validatorsPath,
+            ImageValidator imageValidator )
+    {
+        mMaxConnections = maxConnections;
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        mValidators = new ConfigFile( validatorsPath );
+        mImageValidator = imageValidator;
+    }
+
+    /**
+     * Fetches cover art, blocking until every request has been handled or the fetch is cancelled.
+     * Validators are saved when done.
+     *
+     * @param requests Art to fetch
+     * @param listener Notified as each request is handled
+     */
+    public void fetch( List<Request> requests, final FetchListener listener )
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( mMaxConnections );
+        mExecutor = executor;
+
+        for( final Request request : requests )
+        {
+            if( mCancelled )
+                break;
+
+            executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if( mCancelled )
+                        return;
+
+                    boolean success = fetch( request );
+                    if( listener != null )
+                        listener.onArtFetched( request, success );
+                }
+            } );
+        }
+
+        executor.shutdown();
+        try
+        {
+            while( !executor.awaitTermination( 100, TimeUnit.MILLISECONDS ) )
+            {
+                // Keep waiting, cancel() stops the executor
+            }
+        }
+        catch( InterruptedException e )
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        mExecutor = null;
+        mValidators.save();
+    }
+
+    /**
+     * Stops all downloads as soon as possible.
+     */
+    public void cancel()
+    {
+        mCancelled = true;
+
+        ExecutorService executor = mExecutor;
+        if( executor != null )
+            executor.shutdownNow();
+    }
+
+    private boolean fetch( Request request )
+    {
+        File artFile = new File( request.artPath );
+        String key = artFile.getName();
+        long now = System.currentTimeMillis();
+
+        // Art that was checked recently doesn't need another request
+        long checkedTime = getTime( key, "checked" );
+        boolean missing = "True".equals( mValidators.get( key, "missing" ) );
+
+        if( artFile.exists() && checkedTime == 0 )
+        {
+            if( mImageValidator.isValid( artFile ) )
+            {
+                // Art from before validators were kept, start the clock now
+                mValidators.put( key, "checked", Long.toString( now ) );
+                return true;
+            }
+
+            // Don't let a conditional request keep a broken image around
+            if( !artFile.delete() )
+                Log.w( TAG, "Unable to delete " + artFile.getName() );
+        }
+
+        if( artFile.exists() )
+        {
+            if( now - checkedTime < REVALIDATE_AGE_MS )
+                return true;
+        }
+        else if( missing && now - checkedTime < MISSING_RETRY_AGE_MS )
+        {
+            return false;
+        }
+
+        return download( request, artFile, key );
+    }
+
+    private boolean download( Request request, File artFile, String key )
+    {
+        Semaphore permits = getHostPermits( request.url );
+        long backoff = INITIAL_BACKOFF_MS;
+
+        for( int attempt = 1; attempt <= MAX_ATTEMPTS && !mCancelled; ++attempt )
+        {
+            // The host is only held during a request, other art can use it while this one backs off
+            try
+            {
+                permits.acquire();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            int responseCode;
+            try
+            {
+                responseCode = downloadOnce( request, artFile, key );
+            }
+            catch( IOException e )
+            {
+                Log.w( TAG, "Attempt " + attempt + " to download " + request.url + " failed: " + e );
+                responseCode = RESPONSE_IO_ERROR;
+            }
+            finally
+            {
+                permits.release();
+            }
+
+            if( responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED )
+                return artFile.exists();
+
+            // The server doesn't have usable art, don't ask again for a while
+            if( responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE ||
+                    responseCode == RESPONSE_INVALID_IMAGE )
+            {
+                mValidators.put( key, "missing", "True" );
+                mValidators.put( key, "checked", Long.toString( System.currentTimeMillis() ) );
+                return artFile.exists();
+            }
+
+            // Only connection failures, throttling and server errors are worth retrying
+            if( responseCode != RESPONSE_IO_ERROR && responseCode != 429 && responseCode < 500 )
+                break;
+
+            try
+            {
+                Thread.sleep( backoff + mRandom.nextInt( (int) backoff ) );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff *= 2;
+        }
+
+        return artFile.exists();
+    }
+
+    /**
+     * Makes one request for a piece of art.
+     *
+     * @return The HTTP response code
+     */
+    private int downloadOnce( Request request, File artFile, String key ) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( request.url ).openConnection();
+        try
+        {
+            connection.setConnectTimeout( CONNECT_TIMEOUT_MS );
+            connection.setReadTimeout( READ_TIMEOUT_MS );
+            connection.setUseCaches( false );
+
+            // Revalidate art we already have instead of downloading it again
+            if( artFile.exists() )
+            {
+                String etag = mValidators.get( key, "etag" );
+                if( !StringUtils.isEmpty( etag ) )
+                    connection.setRequestProperty( "If-None-Match", etag );
+
+                long lastModified = getTime( key, "lastModified" );
+                connection.setIfModifiedSince( lastModified == 0 ? artFile.lastModified() : lastModified );
+            }
+
+            int responseCode = connection.getResponseCode();
+
+            if( responseCode == HttpURLConnection.HTTP_OK )
+            {
+                InputStream inStream = connection.getInputStream();
+                File tempFile = new File( artFile.getPath() + "." + Thread.currentThread().getId() + ".tmp" );
+                try
+                {
+                    writeFile( inStream, tempFile );
+
+                    if( !mImageValidator.isValid( tempFile ) )
+                        return RESPONSE_INVALID_IMAGE;
+
+                    // Only replace the art once the download is complete and valid
+                    if( !tempFile.renameTo( artFile ) )
+                    {
+                        Log.w( TAG, "Unable to move downloaded art to " + artFile.getPath() );
+                        return RESPONSE_IO_ERROR;
+                    }
+                }
+                finally
+                {
+                    if( tempFile.exists() && !tempFile.delete() )
+                        Log.w( TAG, "Unable to delete " + tempFile.getName() );
+                }
+
+                String etag = connection.getHeaderField( "ETag" );
+                mValidators.put( key, "etag", etag == null ? "" : etag );
+
+                // Without a Last-Modified header, the date of the file is used instead
+                long lastModified = connection.getLastModified();
+                mValidators.put( key, "lastModified", lastModified == 0 ? "" : Long.toString( lastModified ) );
+            }
+
+            if( responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED )
+            {
+                mValidators.put( key, "missing", "False" );
+                mValidators.put( key, "checked", Long.toString( System.currentTimeMillis() ) );
+            }
+
+            return responseCode;
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return A time kept in the validators file, or 0 if it is missing or unreadable
+     */
+    private long getTime( String key, String parameter )
+    {
+        String time = mValidators.get( key, parameter );
+        if( StringUtils.isEmpty( time ) )
+            return 0;
+
+        try
+        {
+            return Long.parseLong( time );
+        }
+        catch( NumberFormatException e )
+        {
+            Log.w( TAG, "Invalid " + parameter + " time for " + key + ": " + time );
+            return 0;
+        }
+    }
+
+    private static void writeFile( InputStream inStream, File destFile ) throws IOException
+    {
+        FileUtil.makeDirs( destFile.getParentFile().getPath() );
+
+        OutputStream outStream = new FileOutputStream( destFile );
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while( ( n = inStream.read( buffer ) ) >= 0 )
+            {
+                outStream.write( buffer, 0, n );
+            }
+        }
+        finally
+        {
+            outStream.close();
+            inStream.close();
+        }
+    }
+
+    private synchronized Semaphore getHostPermits( String url )
+    {
+        String host;
+        try
+        {
+            host = new URL( url ).getHost();
+        }
+        catch( IOException e )
+        {
+            host = "";
+        }
+
+        Semaphore permits = mHostPermits.get( host );
+        if( permits == null )
+        {
+            permits = new Semaphore( mMaxConnectionsPerHost );
+            mHostPermits.put( host, permits );
+        }
+        return permits;
+    }
+}
@@ -336,6 +336,15 @@ public class ExtractAssetsTask extends AsyncTask<Void, String, List<ExtractAsset
 
         return true;
     }
+
+    /**
+     * @param assetPath Path of an asset, e.g. "mupen64plus_data/mupen64plus.ini"
+     * @return Version of the asset bundled with this build, or 0 if the asset is unknown
+     */
+    public static int getAssetVersion(String assetPath) {
+        Integer version = mAssetVersions.get(assetPath);
+        return version == null ? 0 : version;
+    }
     
     private List<Failure> extractAssets( String srcPath, String dstPath )
     {
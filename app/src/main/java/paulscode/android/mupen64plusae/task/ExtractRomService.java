@@ -54,6 +54,7 @@ import paulscode.android.mupen64plusae.ActivityHelper;
 import paulscode.android.mupen64plusae.GalleryActivity;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog.OnCancelListener;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.RomHeader;
 import paulscode.android.mupen64plusae.util.SevenZInputStream;
@@ -62,6 +63,7 @@ public class ExtractRomService extends Service {
     private String mZipPath;
     private String mRomPath;
     private String mExtractZipPath;
+    private long mExtractCacheSize;
     private String mMd5;
 
     private int mStartId;
@@ -76,8 +78,8 @@ public class ExtractRomService extends Service {
     final static String NOTIFICATION_CHANNEL_ID_V2 = "ExtractRomServiceChannelV2";
 
     public interface ExtractRomsListener {
-        //This is called once the ROM scan is finished
-        void onExtractRomFinished();
+        //This is called once the ROM is extracted, with the ROM to play or null if there is none
+        void onExtractRomFinished(File romFile);
 
         //This is called when the service is destroyed
         void onExtractRomServiceDestroyed();
@@ -109,34 +111,40 @@ public class ExtractRomService extends Service {
             //Check for error conditions
             if (mZipPath == null) {
                 if (mListener != null) {
-                    mListener.onExtractRomFinished();
+                    mListener.onExtractRomFinished(null);
                 }
 
                 stopSelf(msg.arg1);
                 return;
             }
 
+            // ROMs extracted by a previous launch are played from the cache
+            final ExtractedRomCache romCache = new ExtractedRomCache(mExtractZipPath, mExtractCacheSize);
             File zipPathFile = new File(mZipPath);
 
-            if (!zipPathFile.exists()) {
-                if (mListener != null) {
-                    mListener.onExtractRomFinished();
-                }
+            File romFile = romCache.lookup(mMd5);
 
-                stopSelf(msg.arg1);
-                return;
-            }
+            if (romFile == null && zipPathFile.exists()) {
+                final RomHeader romHeader = new RomHeader(mZipPath);
+                final File romDirectory = ExtractedRomCache.getDirectory(mExtractZipPath, mMd5);
+                File extractedRomFile = null;
 
-            final RomHeader romHeader = new RomHeader(mZipPath);
+                if (romHeader.isZip) {
+                    extractedRomFile = ExtractZipFile(romDirectory, mRomPath, mZipPath);
+                } else if (romHeader.is7Zip) {
+                    extractedRomFile = ExtractSevenZFile(romDirectory, mRomPath, mZipPath);
+                }
 
-            if (romHeader.isZip) {
-                ExtractZipFileIfNeeded(mMd5, mRomPath, mZipPath);
-            } else if (romHeader.is7Zip) {
-                ExtractSevenZFileIfNeeded(mMd5, mRomPath, mZipPath);
+                // Only complete extractions are recorded, so the next launch can skip this one
+                if (extractedRomFile != null) {
+                    romCache.add(mMd5, extractedRomFile);
+                    romFile = extractedRomFile;
+                }
             }
 
+            // Anything else at the extracted path may be left over from an interrupted extraction
             if (mListener != null) {
-                mListener.onExtractRomFinished();
+                mListener.onExtractRomFinished(romFile);
             }
 
             // Stop the service using the startId, so that we don't stop
@@ -145,87 +153,70 @@ public class ExtractRomService extends Service {
         }
     }
 
-    private void ExtractZipFileIfNeeded(String md5, String romPath, String zipPath) {
-        final File romFile = new File(romPath);
-        String romFileName = romFile.getName();
-        final File extractedRomFile = new File(mExtractZipPath + "/" + romFileName);
-
-        if (!extractedRomFile.exists()) {
-            boolean lbFound = false;
+    private File ExtractZipFile(File destDir, String romPath, String zipPath) {
+        final String romFileName = new File(romPath).getName();
+        File extractedRomFile = null;
 
-            try {
-                final ZipFile zipFile = new ZipFile(zipPath);
-                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                while (entries.hasMoreElements() && !lbFound) {
-                    final ZipEntry zipEntry = entries.nextElement();
+        try {
+            final ZipFile zipFile = new ZipFile(zipPath);
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements() && extractedRomFile == null) {
+                final ZipEntry zipEntry = entries.nextElement();
+                final String entryName = new File(zipEntry.getName()).getName();
 
+                if (entryName.equals(romFileName)) {
                     try {
                         final InputStream zipStream = zipFile.getInputStream(zipEntry);
-
-                        final File destDir = new File(mExtractZipPath);
-                        final String entryName = new File(zipEntry.getName()).getName();
-
-                        lbFound = entryName.equals(romFileName);
-
-                        if(entryName.equals(romFileName)) {
-                            File tempRomPath = FileUtil.extractRomFile(destDir, zipEntry.getName(), zipStream);
-                            Log.i("ExtractRomService", "Extracted zip entry: " + tempRomPath);
-                        }
-
+                        extractedRomFile = FileUtil.extractRomFile(destDir, zipEntry.getName(), zipStream);
+                        Log.i("ExtractRomService", "Extracted zip entry: " + extractedRomFile);
                         zipStream.close();
                     } catch (final IOException e) {
                         Log.w("ExtractRomService", e);
                     }
                 }
-                zipFile.close();
-            } catch (final IOException | ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
-                Log.w("ExtractRomService", e);
             }
+            zipFile.close();
+        } catch (final IOException | ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            Log.w("ExtractRomService", e);
         }
+
+        return extractedRomFile;
     }
 
-    private void ExtractSevenZFileIfNeeded(String md5, String romPath, String zipPath) {
-        final File romFile = new File(romPath);
-        String romFileName = romFile.getName();
-        final File extractedRomFile = new File(mExtractZipPath + "/" + romFileName);
+    private File ExtractSevenZFile(File destDir, String romPath, String zipPath) {
+        final String romFileName = new File(romPath).getName();
+        File extractedRomFile = null;
 
-        if (!extractedRomFile.exists()) {
-            boolean lbFound = false;
+        try {
+            SevenZFile zipFile = new SevenZFile(new File(zipPath));
+            SevenZArchiveEntry zipEntry;
 
-            try {
-                SevenZFile zipFile = new SevenZFile(new File(zipPath));
-                SevenZArchiveEntry zipEntry;
+            while( extractedRomFile == null && (zipEntry = zipFile.getNextEntry()) != null)
+            {
+                final String entryName = new File(zipEntry.getName()).getName();
 
-                while( (zipEntry = zipFile.getNextEntry()) != null && !lbFound)
-                {
+                if (entryName.equals(romFileName)) {
                     try {
                         final InputStream zipStream = new BufferedInputStream(new SevenZInputStream(zipFile));
-
-                        final File destDir = new File(mExtractZipPath);
-                        final String entryName = new File(zipEntry.getName()).getName();
-
-                        lbFound = entryName.equals(romFileName);
-
-                        if (entryName.equals(romFileName)) {
-                            File tempRomPath = FileUtil.extractRomFile(destDir, zipEntry.getName(), zipStream);
-                            Log.i("ExtractRomService", "Extracted zip entry: " + tempRomPath);
-                        }
-
+                        extractedRomFile = FileUtil.extractRomFile(destDir, zipEntry.getName(), zipStream);
+                        Log.i("ExtractRomService", "Extracted zip entry: " + extractedRomFile);
                         zipStream.close();
                     } catch (final IOException e) {
                         Log.w("ExtractRomService", e);
                     }
                 }
-
-                zipFile.close();
-            } catch (final IOException | ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
-                Log.w("ExtractRomService", e);
-            }
-            catch (java.lang.OutOfMemoryError e)
-            {
-                Log.w( "CacheRomInfoService", "Out of memory while extracting 7zip entry: " + romFile.getPath() );
             }
+
+            zipFile.close();
+        } catch (final IOException | ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            Log.w("ExtractRomService", e);
+        }
+        catch (java.lang.OutOfMemoryError e)
+        {
+            Log.w( "CacheRomInfoService", "Out of memory while extracting 7zip entry: " + romPath );
         }
+
+        return extractedRomFile;
     }
 
 
@@ -281,6 +272,7 @@ public class ExtractRomService extends Service {
             Bundle extras = intent.getExtras();
             mZipPath = extras.getString(ActivityHelper.Keys.ZIP_PATH);
             mExtractZipPath = extras.getString(ActivityHelper.Keys.EXTRACT_ZIP_PATH);
+            mExtractCacheSize = extras.getLong(ActivityHelper.Keys.EXTRACT_CACHE_SIZE);
             mRomPath = extras.getString(ActivityHelper.Keys.ROM_PATH);
             mMd5 = extras.getString(ActivityHelper.Keys.ROM_MD5);
         }
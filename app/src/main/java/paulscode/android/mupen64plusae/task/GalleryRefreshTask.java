@@ -22,229 +22,253 @@ package paulscode.android.mupen64plusae.task;
 
 import android.content.Context;
 import android.os.AsyncTask;
-import androidx.annotation.NonNull;
 import android.text.TextUtils;
-import android.util.Log;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 
 import paulscode.android.mupen64plusae.GalleryItem;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.GallerySearchUpdater;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
-import paulscode.android.mupen64plusae.util.CountryCode;
-
+import paulscode.android.mupen64plusae.persistent.RomLibrary;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
+
+/**
+ * Loads a page of the gallery, either from the start or following the games already shown.
+ * <p>
+ * The library is read in the order the gallery shows it, so a page only reads its own games.
+ * Search results are found in the search index, then only the page of them shown is read.
+ */
 public class GalleryRefreshTask extends AsyncTask<Void, Void, String>
 {
+    /** Number of games loaded at a time */
+    public static final int PAGE_SIZE = 500;
+
+    /** Number of recently played games shown */
+    private static final int RECENT_LIMIT = 8;
+
+    /** How long games stay recently played, in seconds */
+    private static final int RECENT_TIME = 60 * 60 * 24 * 7;
+
     public interface GalleryRefreshFinishedListener
     {
-        void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> recentItems);
+        /**
+         * The gallery was loaded from the start.
+         *
+         * @param items Items shown in the gallery
+         * @param recentItems Recently played items, or null if they weren't loaded again
+         * @param searchResults MD5 of the games matching the search query that weren't loaded yet, or null if
+         *                      there is no query
+         * @param isComplete True if there are no more games to load
+         */
+        void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> recentItems,
+                                      List<String> searchResults, boolean isComplete);
+
+        /**
+         * The games following those shown were loaded.
+         *
+         * @param items Items to add to the gallery
+         * @param searchResults MD5 of the games matching the search query that weren't loaded yet, or null if
+         *                      there is no query
+         * @param isComplete True if there are no more games to load
+         */
+        void onGalleryPageLoaded(List<GalleryItem> items, List<String> searchResults, boolean isComplete);
     }
 
     private final GalleryRefreshFinishedListener mListener;
     private final GlobalPrefs mGlobalPrefs;
     private final WeakReference<Context> mContext;
-    private final String mSearchQuery;
+    private final GallerySearchUpdater mSearchUpdater;
+    private final RomLibrary mLibrary;
+    private final boolean mIsRefresh;
+    private final boolean mLoadRecents;
+    private final String mQuery;
+    private final GalleryItem mAfter;
+    private final int mLimit;
+    private List<String> mSearchResults;
     private List<GalleryItem> mItems = new ArrayList<>();
-    private List<GalleryItem> mRecentItems = new ArrayList<>();
-    private ConfigFile mConfig;
+    private List<GalleryItem> mRecentItems = null;
+    private boolean mIsComplete = false;
 
+    /**
+     * Loads the gallery from the start.
+     *
+     * @param query Search query, or an empty string to show the whole library
+     * @param loadRecents Whether to load the recently played games as well
+     * @param limit Maximum number of games to load
+     */
+    public GalleryRefreshTask(GalleryRefreshFinishedListener listener, Context context, GlobalPrefs globalPrefs,
+                              GallerySearchUpdater searchUpdater, RomLibrary library, String query,
+                              boolean loadRecents, int limit)
+    {
+        this(listener, context, globalPrefs, searchUpdater, library, true, loadRecents, query, null, null, limit);
+    }
+
+    /**
+     * Loads the games following those shown.
+     *
+     * @param after Last game shown, when showing the whole library
+     * @param searchResults MD5 of the search results that weren't loaded yet, or null when showing the whole library
+     * @param limit Maximum number of games to load
+     */
     public GalleryRefreshTask(GalleryRefreshFinishedListener listener, Context context, GlobalPrefs globalPrefs,
-                              String searchQuery, ConfigFile config)
+                              GallerySearchUpdater searchUpdater, RomLibrary library, GalleryItem after,
+                              List<String> searchResults, int limit)
+    {
+        this(listener, context, globalPrefs, searchUpdater, library, false, false, null, after, searchResults, limit);
+    }
+
+    private GalleryRefreshTask(GalleryRefreshFinishedListener listener, Context context, GlobalPrefs globalPrefs,
+                               GallerySearchUpdater searchUpdater, RomLibrary library, boolean isRefresh,
+                               boolean loadRecents, String query, GalleryItem after, List<String> searchResults,
+                               int limit)
     {
         mListener = listener;
         mContext = new WeakReference<>(context);
         mGlobalPrefs = globalPrefs;
-        mSearchQuery = searchQuery;
-        mConfig = config;
+        mSearchUpdater = searchUpdater;
+        mLibrary = library;
+        mIsRefresh = isRefresh;
+        mLoadRecents = loadRecents;
+        mQuery = query;
+        mAfter = after;
+        mSearchResults = searchResults;
+        mLimit = limit;
+    }
+
+    /**
+     * @return The name the gallery shows the games by.
+     */
+    public static RomLibrary.DisplayName getDisplayName(GlobalPrefs globalPrefs)
+    {
+        if (!globalPrefs.sortByRomName)
+            return RomLibrary.DisplayName.FILE_NAME;
+        return globalPrefs.isFullNameShown ? RomLibrary.DisplayName.GOOD_NAME : RomLibrary.DisplayName.SHORT_NAME;
     }
     
     @Override
     protected String doInBackground( Void... params )
     {
-        generateGridItemsAndSaveConfig(mItems, mRecentItems);
+        RomLibrary.DisplayName displayName = getDisplayName(mGlobalPrefs);
+
+        if (mIsRefresh) {
+            // Only built the first time, and when the name the games are shown by changes
+            mSearchUpdater.build(displayName);
+            if (!TextUtils.isEmpty(mQuery))
+                mSearchResults = mSearchUpdater.search(mQuery);
+        }
+
+        if (mLoadRecents)
+            loadRecentItems(displayName);
+
+        if (mSearchResults == null)
+            loadLibraryPage(displayName);
+        else
+            loadSearchResults(displayName);
         return "";
     }
     
     @Override
     protected void onPostExecute( String result )
     {
-        mListener.onGalleryRefreshFinished( mItems, mRecentItems );
+        if (mIsRefresh)
+            mListener.onGalleryRefreshFinished( mItems, mRecentItems, mSearchResults, mIsComplete );
+        else
+            mListener.onGalleryPageLoaded( mItems, mSearchResults, mIsComplete );
     }
 
-
     /**
-     * Returns true if the given file is present in the provided list of items
-     * @param items Item list to search
-     * @param romFile ROM File to search for
-     * @return True if it's present
+     * Loads the games played in the last week, at most 8 of them. Extracted ROMs are evicted
+     * separately, based on how much space they take.
      */
-    private boolean isRomPathInItemList(List<GalleryItem> items, File romFile)
+    private void loadRecentItems(RomLibrary.DisplayName displayName)
     {
-        for (GalleryItem item : items) {
-            if (item.romFile != null && item.romFile.getName().equals(romFile.getName())) {
-                return true;
-            }
+        mRecentItems = new ArrayList<>();
+        int since = (int) ( new Date().getTime() / 1000 ) - RECENT_TIME;
+        for (RomLibrary.Entry entry : mLibrary.getRecentEntries(displayName, mGlobalPrefs.getAllowedCountryCodes(),
+                since, RECENT_LIMIT)) {
+            GalleryItem item = createGalleryItem(entry, displayName.get(entry));
+            if (item != null)
+                mRecentItems.add(item);
         }
-        return false;
+
+        // Keep the ROMs extracted from archives within budget
+        new ExtractedRomCache(mGlobalPrefs.unzippedRomsDir, mGlobalPrefs.extractedRomCacheSize).trim();
     }
 
     /**
-     * Removes old items that shouldn't be in the recents list any more and limits the recent list to 8 items
-     * @param recentItems List of recent items to update
+     * Loads the games of the allowed countries that follow the last game shown, in the order of
+     * their names.
      */
-    private void deleteOldItems(List<GalleryItem> recentItems) {
-
-        if ( recentItems.size() != 0 ) {
-            Collections.sort( recentItems, new GalleryItem.RecentlyPlayedComparator() );
+    private void loadLibraryPage(RomLibrary.DisplayName displayName)
+    {
+        List<RomLibrary.Entry> entries = mLibrary.getGalleryPage(displayName, mGlobalPrefs.getAllowedCountryCodes(),
+                mAfter == null ? null : mAfter.displayName, mAfter == null ? null : mAfter.md5, mLimit);
 
-            //Limit list to 8 items
-            final int recentLimit = 8;
-            if (recentItems.size() > recentLimit) {
-                recentItems.subList(recentLimit, recentItems.size()).clear();
-            }
+        for (RomLibrary.Entry entry : entries) {
+            GalleryItem item = createGalleryItem(entry, displayName.get(entry));
+            if (item != null)
+                mItems.add(item);
         }
+        mIsComplete = entries.size() < mLimit;
+    }
 
-        // Delete extracted zip files not on this list
-        List<File> extractedFiles = new ArrayList<>();
-        File unzipRomsDir = new File(mGlobalPrefs.unzippedRomsDir);
-
-        File[] files = unzipRomsDir.listFiles();
-
-        if (files != null) {
-            Collections.addAll(extractedFiles, files);
-
-            for(File extractedFile : extractedFiles) {
-                if (!isRomPathInItemList(recentItems, extractedFile)) {
-                    if(!extractedFile.delete()) {
-                        Log.w("GalleryRefreshTask", "Unable to delete " + extractedFile.getPath());
-                    }
-                }
-            }
+    /**
+     * Loads the first search results that weren't loaded yet, whatever the country of the games,
+     * keeping the order of the results.
+     */
+    private void loadSearchResults(RomLibrary.DisplayName displayName)
+    {
+        List<String> md5s = mSearchResults.subList(0, Math.min(mLimit, mSearchResults.size()));
+
+        Map<String, RomLibrary.Entry> entries = new HashMap<>();
+        for (RomLibrary.Entry entry : mLibrary.getEntries(md5s))
+            entries.put(entry.md5, entry);
+
+        // Games removed since the search are skipped
+        for (String md5 : md5s) {
+            RomLibrary.Entry entry = entries.get(md5);
+            String name = entry == null ? null : displayName.get(entry);
+            GalleryItem item = name == null ? null : createGalleryItem(entry, name);
+            if (item != null)
+                mItems.add(item);
         }
+        mSearchResults = mSearchResults.subList(md5s.size(), mSearchResults.size());
+        mIsComplete = mSearchResults.isEmpty();
     }
 
     /**
-     * Create a GallaryItem using a config file, md5, and good name
-     * @param config Config file
-     * @param md5 MD5 in config
+     * Create a GallaryItem using a library entry
+     * @param entry ROM in the library
      * @param displayName Text to display for this ROM
      * @return A gallery item if one was created successfully.
      */
-    private GalleryItem createGalleryItem(final ConfigFile config, String md5, String displayName)
+    private GalleryItem createGalleryItem(final RomLibrary.Entry entry, String displayName)
     {
         GalleryItem item = null;
-        final String romPath = config.get( md5, "romPath" );
-        String zipPath = config.get( md5, "zipPath" );
-        final String artFullPath = config.get( md5, "artPath" );
-        final String goodName = config.get( md5, "goodName" );
 
         //We get the file name to support the old gallery format
-        String artPath = !TextUtils.isEmpty(artFullPath) ? new File(artFullPath).getName() : null;
+        String artPath = !TextUtils.isEmpty(entry.artPath) ? new File(entry.artPath).getName() : null;
 
         if(artPath != null)
             artPath = mGlobalPrefs.coverArtDir + "/" + artPath;
 
-        String crc = config.get( md5, "crc" );
-        String headerName = config.get( md5, "headerName" );
-        final String countryCodeString = config.get( md5, "countryCode" );
-        CountryCode countryCode = CountryCode.UNKNOWN;
-
-        if (countryCodeString != null)
-        {
-            countryCode = CountryCode.getCountryCode(Byte.parseByte(countryCodeString));
-        }
-        final String lastPlayedStr = config.get(md5, "lastPlayed");
-
-        int lastPlayed = 0;
-        if (lastPlayedStr != null)
-            lastPlayed = Integer.parseInt(lastPlayedStr);
-
         // Some BETA ROMs don't have headers
+        String headerName = entry.headerName;
         if (headerName == null)
-            headerName = goodName;
+            headerName = entry.goodName;
 
-        if (crc != null && countryCodeString != null)
+        if (entry.crc != null && entry.countryCode != null && entry.romPath != null)
         {
-            item = new GalleryItem(mContext.get(), md5, crc, headerName, countryCode, goodName, displayName, romPath,
-                    zipPath, artPath, lastPlayed, mGlobalPrefs.coverArtScale);
+            item = new GalleryItem(mContext.get(), entry.md5, entry.crc, headerName, entry.countryCode,
+                    entry.goodName, displayName, entry.romPath, entry.zipPath, artPath, entry.lastPlayed,
+                    mGlobalPrefs.coverArtScale);
         }
         return item;
     }
-
-    /**
-     * This will populate a list of Gallery items and recent items
-     * @param items Items will be populated here
-     * @param recentItems Recent items will be populated here.
-     */
-    public void generateGridItemsAndSaveConfig(List<GalleryItem> items, @NonNull List<GalleryItem> recentItems)
-    {
-        final String query = mSearchQuery.toLowerCase( Locale.US );
-        String[] searches = null;
-        if( query.length() > 0 )
-            searches = query.split( " " );
-
-        int currentTime = (int) ( new Date().getTime() / 1000 );
-
-        for ( final String md5 : mConfig.keySet() ) {
-            if ( !ConfigFile.SECTIONLESS_NAME.equals( md5 ) ) {
-                final ConfigFile.ConfigSection section = mConfig.get( md5 );
-
-                String romPath = section.get("romPath");
-
-                // We can't do much with an invalid Rom path
-                if (romPath != null) {
-
-                    String displayName;
-                    if (mGlobalPrefs.sortByRomName) {
-                        if( mGlobalPrefs.isFullNameShown || !section.keySet().contains( "baseName" ) )
-                            displayName = section.get( "goodName" );
-                        else
-                            displayName = section.get( "baseName" );
-                    } else {
-                        displayName = new File(section.get("romPath")).getName();
-                    }
-
-                    boolean matchesSearch = true;
-                    if ( searches != null && searches.length > 0 && displayName != null) {
-                        // Make sure the ROM name contains every token in the query
-                        final String lowerName = displayName.toLowerCase( Locale.US );
-                        for ( final String search : searches ) {
-                            if ( search.length() > 0 && !lowerName.contains( search ) ) {
-                                matchesSearch = false;
-                                break;
-                            }
-                        }
-                    }
-
-                    if ( matchesSearch && displayName != null) {
-                        GalleryItem item = createGalleryItem(mConfig, md5, displayName);
-
-                        if (item != null && (mGlobalPrefs.getAllowedCountryCodes().contains(item.countryCode) ||
-                                searches != null)) {
-                            items.add(item);
-                            boolean isNotOld = currentTime - item.lastPlayed <= 60 * 60 * 24 * 7; // 7 days
-                            if (isNotOld) {
-                                recentItems.add(item);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        Collections.sort( items, mGlobalPrefs.sortByRomName ?
-                new GalleryItem.NameComparator() : new GalleryItem.RomFileComparator() );
-
-        //Don't delete any items when srarching
-        if (searches == null) {
-            deleteOldItems(recentItems);
-        }
-    }
-
-}
\ No newline at end of file
+}
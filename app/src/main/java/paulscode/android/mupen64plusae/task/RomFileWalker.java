@@ -0,0 +1,178 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Depth-first walker that hands candidate ROM files to a listener as soon as they are found, so
+ * the rest of the scan can start before the walk is over.
+ * <p>
+ * Every directory is entered at most once, identified by device and inode where the platform
+ * allows it and by canonical path otherwise, so symlink loops can't make the walk run forever.
+ * Files that obviously aren't ROMs or archives, judging by their extension or size, are never
+ * handed to the listener.
+ */
+public class RomFileWalker
+{
+    public interface WalkListener
+    {
+        /**
+         * Called for each candidate file, on the walking thread.
+         */
+        void onFileFound( File file ) throws InterruptedException;
+
+        /**
+         * @return True to stop the walk
+         */
+        boolean isWalkCancelled();
+    }
+
+    /** Smallest file that can hold a ROM header or an archive. */
+    private static final long MIN_FILE_SIZE = 0x40;
+
+    /** Extensions of files commonly found next to ROMs that are never ROMs themselves. */
+    private static final Set<String> SKIPPED_EXTENSIONS = new HashSet<>( Arrays.asList(
+            // Text and documents
+            "txt", "nfo", "diz", "ini", "cfg", "xml", "htm", "html", "pdf", "doc", "md", "log", "dat",
+            // Images
+            "png", "jpg", "jpeg", "gif", "bmp", "webp",
+            // Audio and video
+            "mp3", "ogg", "wav", "flac", "mp4", "mkv", "avi",
+            // Save data and save states
+            "eep", "sra", "fla", "mpk", "srm", "sav", "st0", "st1", "st2", "st3", "st4", "st5", "st6",
+            "st7", "st8", "st9",
+            // Other platforms
+            "apk", "iso", "cue", "gba", "nds", "smc", "sfc", "nes" ) );
+
+    private final boolean mSearchSubdirectories;
+    private final int mMaxDepth;
+    private final WalkListener mListener;
+    private final Set<String> mVisitedDirectories = new HashSet<>();
+
+    /**
+     * Constructor.
+     *
+     * @param searchSubdirectories True to descend into subdirectories
+     * @param maxDepth Maximum number of directory levels below the starting directory to descend
+     * @param listener Receives every candidate file
+     */
+    public RomFileWalker( boolean searchSubdirectories, int maxDepth, WalkListener listener )
+    {
+        mSearchSubdirectories = searchSubdirectories;
+        mMaxDepth = maxDepth;
+        mListener = listener;
+    }
+
+    /**
+     * Walks a file or directory.
+     *
+     * @param start File or directory to walk
+     */
+    public void walk( File start ) throws InterruptedException
+    {
+        mVisitedDirectories.clear();
+
+        if( start.isDirectory() )
+            walk( start, 0 );
+        else
+            mListener.onFileFound( start );
+    }
+
+    /**
+     * @param directory Directory to list
+     * @param depth How many levels below the starting directory this directory is
+     */
+    private void walk( File directory, int depth ) throws InterruptedException
+    {
+        if( !mVisitedDirectories.add( getDirectoryKey( directory ) ) )
+            return;
+
+        File[] allFiles = directory.listFiles();
+        if( allFiles == null )
+            return;
+
+        for( File file : allFiles )
+        {
+            if( mListener.isWalkCancelled() )
+                return;
+
+            if( file.isDirectory() )
+            {
+                // Search subdirectories if option is enabled and we are not too deep
+                if( mSearchSubdirectories && depth < mMaxDepth )
+                    walk( file, depth + 1 );
+            }
+            else if( isCandidate( file ) )
+            {
+                mListener.onFileFound( file );
+            }
+        }
+    }
+
+    private static boolean isCandidate( File file )
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf( '.' );
+        if( dot != -1 && SKIPPED_EXTENSIONS.contains( name.substring( dot + 1 ).toLowerCase( Locale.US ) ) )
+            return false;
+
+        return file.length() >= MIN_FILE_SIZE;
+    }
+
+    /**
+     * Identifies a directory independently of the path used to reach it.
+     */
+    private static String getDirectoryKey( File directory )
+    {
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP )
+        {
+            try
+            {
+                StructStat stat = Os.stat( directory.getPath() );
+                return stat.st_dev + ":" + stat.st_ino;
+            }
+            catch( ErrnoException e )
+            {
+                // Fall back to the canonical path below
+            }
+        }
+
+        try
+        {
+            return directory.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return directory.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,784 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
+import paulscode.android.mupen64plusae.util.FileUtil;
+import paulscode.android.mupen64plusae.util.RomDigest;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex.FileStat;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex.Fingerprint;
+import paulscode.android.mupen64plusae.util.RomHeader;
+import paulscode.android.mupen64plusae.util.SevenZInputStream;
+
+/**
+ * Staged ROM scanner used by {@link CacheRomInfoService}.
+ * <p>
+ * Work flows through bounded queues between the following stages:
+ * <ol>
+ * <li>A walker thread that lists candidate files, see {@link RomFileWalker}.</li>
+ * <li>A header probe thread that skips files whose fingerprint is unchanged since the last scan, then
+ * reads the first bytes of each remaining file and discards non-ROMs.</li>
+ * <li>A pool of hashing threads, sized to the number of cores, that digest loose ROMs and the ROMs
+ * inside archives in a single read, see {@link RomDigest}.</li>
+ * <li>A single writer, the thread calling {@link #take()}, which owns the config file.</li>
+ * </ol>
+ * Every file found by the walker produces exactly one {@link ScanResult}, so the writer can drive
+ * the progress bar from the results it receives.
+ */
+public class RomScanPipeline
+{
+    private static final String TAG = "RomScanPipeline";
+
+    /** Maximum directory depth when searching subdirectories. */
+    private static final int MAX_SEARCH_DEPTH = 10;
+
+    /** Size of the N64 ROM header, smaller archive entries can't be ROMs. */
+    private static final int ROM_HEADER_SIZE = 0x40;
+
+    /** Bytes buffered while the header of an archive entry is read, before it is known to be a ROM. */
+    private static final int HEADER_BUFFER_SIZE = 512;
+
+    private static final int WALK_QUEUE_SIZE = 256;
+    private static final int RESULT_QUEUE_SIZE = 64;
+
+    /** Markers that tell the next stage that no more work is coming. */
+    private static final File END_OF_FILES = new File( "" );
+    private static final ScanTask END_OF_TASKS = new ScanTask( null, null, null );
+    private static final ScanResult END_OF_RESULTS = new ScanResult( null, Collections.<ScannedRom>emptyList() );
+
+    /**
+     * A ROM found by the scan, ready to be written to the config file.
+     */
+    public static class ScannedRom
+    {
+        /** Path of the ROM, or the path it will be extracted to if it is inside an archive. */
+        public final String romPath;
+        public final String md5;
+        public final String crc;
+        public final String headerName;
+        public final CountryCode countryCode;
+        /** SHA-1 of the ROM data, or null if it isn't known */
+        public final String sha1;
+        /** CRC32 of the ROM data, or null if it isn't known */
+        public final String crc32;
+        /** Whether the header CRC matches the ROM data, see {@link RomDigest#CHECKSUM_GOOD} */
+        public final String checksumStatus;
+        /** Archive containing the ROM, or null for loose ROMs. */
+        public final File zipFile;
+
+        ScannedRom( String romPath, RomDigest.Result digests, RomHeader header, File zipFile )
+        {
+            this( romPath, digests.md5, header.crc, header.name, header.countryCode, digests.sha1,
+                    digests.crc32, digests.getChecksumStatus( header.crc ), zipFile );
+        }
+
+        ScannedRom( String romPath, Fingerprint fingerprint, File zipFile )
+        {
+            this( romPath, fingerprint.md5, fingerprint.crc, fingerprint.headerName, fingerprint.countryCode,
+                    fingerprint.sha1, fingerprint.crc32, fingerprint.checksumStatus, zipFile );
+        }
+
+        ScannedRom( String romPath, String md5, String crc, String headerName, CountryCode countryCode,
+                    String sha1, String crc32, String checksumStatus, File zipFile )
+        {
+            this.romPath = romPath;
+            this.md5 = md5;
+            this.crc = crc;
+            this.headerName = headerName;
+            this.countryCode = countryCode;
+            this.sha1 = sha1;
+            this.crc32 = crc32;
+            this.checksumStatus = checksumStatus;
+            this.zipFile = zipFile;
+        }
+
+        Fingerprint toFingerprint()
+        {
+            return new Fingerprint( md5, crc, headerName, countryCode, sha1, crc32, checksumStatus );
+        }
+    }
+
+    /**
+     * Outcome of scanning one file found by the walker. A loose ROM produces one entry, an archive
+     * produces one entry per ROM inside it, and anything else produces none.
+     */
+    public static class ScanResult
+    {
+        public final File file;
+        public final List<ScannedRom> roms;
+
+        ScanResult( File file, List<ScannedRom> roms )
+        {
+            this.file = file;
+            this.roms = roms;
+        }
+    }
+
+    /**
+     * Throughput counters for one pipeline stage.
+     */
+    public static class StageCounter
+    {
+        private final String mName;
+        private final AtomicLong mItems = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mBusyNanos = new AtomicLong();
+
+        StageCounter( String name )
+        {
+            mName = name;
+        }
+
+        void add( long bytes, long busyNanos )
+        {
+            mItems.incrementAndGet();
+            mBytes.addAndGet( bytes );
+            mBusyNanos.addAndGet( busyNanos );
+        }
+
+        public long getItems()
+        {
+            return mItems.get();
+        }
+
+        public long getBytes()
+        {
+            return mBytes.get();
+        }
+
+        /**
+         * @param elapsedNanos Wall clock time the pipeline has been running
+         * @return Items processed per second of wall clock time
+         */
+        public float getItemsPerSecond( long elapsedNanos )
+        {
+            return elapsedNanos <= 0 ? 0 : mItems.get() * 1e9f / elapsedNanos;
+        }
+
+        String describe( long elapsedNanos )
+        {
+            return mName + ": " + mItems.get() + " files, " + ( mBytes.get() / 1024 ) + " KB, " +
+                    String.format( "%.1f", getItemsPerSecond( elapsedNanos ) ) + " files/s, busy " +
+                    ( mBusyNanos.get() / 1000000 ) + " ms";
+        }
+    }
+
+    /**
+     * A file that passed the header probe and needs to be hashed.
+     */
+    private static class ScanTask
+    {
+        final File file;
+        final RomHeader header;
+        final FileStat stat;
+
+        ScanTask( File file, RomHeader header, FileStat stat )
+        {
+            this.file = file;
+            this.header = header;
+            this.stat = stat;
+        }
+    }
+
+    private final File mSearchPath;
+    private final boolean mSearchSubdirectories;
+    private final boolean mSearchZips;
+    private final String mUnzipDir;
+    private final RomFingerprintIndex mFingerprints;
+    private final int mHashThreadCount;
+
+    private final BlockingQueue<File> mWalkQueue = new ArrayBlockingQueue<>( WALK_QUEUE_SIZE );
+    private final BlockingQueue<ScanTask> mHashQueue;
+    private final BlockingQueue<ScanResult> mResultQueue = new ArrayBlockingQueue<>( RESULT_QUEUE_SIZE );
+
+    private final List<Thread> mThreads = new ArrayList<>();
+    private final AtomicInteger mDiscoveredFiles = new AtomicInteger();
+    private volatile boolean mWalkFinished = false;
+    private volatile boolean mCancelled = false;
+    private int mFinishedHashThreads = 0;
+    private long mStartTime;
+
+    private final StageCounter mWalkCounter = new StageCounter( "walker" );
+    private final StageCounter mProbeCounter = new StageCounter( "header probe" );
+    private final StageCounter mFingerprintCounter = new StageCounter( "fingerprint hits" );
+    private final StageCounter mHashCounter = new StageCounter( "hashing" );
+    private final StageCounter mWriteCounter = new StageCounter( "writer" );
+
+    /**
+     * Constructor.
+     *
+     * @param searchPath File or directory to scan
+     * @param searchSubdirectories True to descend into subdirectories
+     * @param searchZips True to look for ROMs inside zip and 7zip archives
+     * @param unzipDir Directory where ROMs inside archives are extracted when played
+     * @param fingerprints Index of previously hashed files, or null to hash every file
+     */
+    public RomScanPipeline( File searchPath, boolean searchSubdirectories, boolean searchZips,
+                            String unzipDir, RomFingerprintIndex fingerprints )
+    {
+        mSearchPath = searchPath;
+        mSearchSubdirectories = searchSubdirectories;
+        mSearchZips = searchZips;
+        mUnzipDir = unzipDir;
+        mFingerprints = fingerprints;
+        mHashThreadCount = Math.max( 1, Runtime.getRuntime().availableProcessors() );
+        mHashQueue = new ArrayBlockingQueue<>( mHashThreadCount * 2 );
+    }
+
+    /**
+     * Starts all the pipeline stages except the writer.
+     */
+    public void start()
+    {
+        mStartTime = System.nanoTime();
+
+        mThreads.add( new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runWalker();
+            }
+        }, "RomScanWalker" ) );
+
+        mThreads.add( new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runHeaderProbe();
+            }
+        }, "RomScanProbe" ) );
+
+        for( int index = 0; index < mHashThreadCount; ++index )
+        {
+            mThreads.add( new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runHasher();
+                }
+            }, "RomScanHash" + index ) );
+        }
+
+        for( Thread thread : mThreads )
+            thread.start();
+    }
+
+    /**
+     * Waits for the next scan result. Must be called from a single writer thread.
+     *
+     * @return The next result, or null once every file has been processed or the scan was cancelled.
+     */
+    public ScanResult take()
+    {
+        try
+        {
+            while( !mCancelled && mFinishedHashThreads < mHashThreadCount )
+            {
+                ScanResult result = mResultQueue.poll( 100, TimeUnit.MILLISECONDS );
+
+                if( result == END_OF_RESULTS )
+                {
+                    ++mFinishedHashThreads;
+                }
+                else if( result != null )
+                {
+                    mWriteCounter.add( 0, 0 );
+                    return result;
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
+    /**
+     * Stops every stage as soon as possible. Pending results are discarded.
+     */
+    public void cancel()
+    {
+        mCancelled = true;
+
+        for( Thread thread : mThreads )
+            thread.interrupt();
+    }
+
+    public boolean isCancelled()
+    {
+        return mCancelled;
+    }
+
+    /**
+     * @return True once the walker has found every candidate file
+     */
+    public boolean isWalkFinished()
+    {
+        return mWalkFinished;
+    }
+
+    /**
+     * @return Number of candidate files found by the walker so far
+     */
+    public int getDiscoveredCount()
+    {
+        return mDiscoveredFiles.get();
+    }
+
+    public StageCounter getWalkCounter()
+    {
+        return mWalkCounter;
+    }
+
+    public StageCounter getProbeCounter()
+    {
+        return mProbeCounter;
+    }
+
+    public StageCounter getFingerprintCounter()
+    {
+        return mFingerprintCounter;
+    }
+
+    public StageCounter getHashCounter()
+    {
+        return mHashCounter;
+    }
+
+    public StageCounter getWriteCounter()
+    {
+        return mWriteCounter;
+    }
+
+    /**
+     * Logs the throughput of every stage.
+     */
+    public void logStatistics()
+    {
+        long elapsed = System.nanoTime() - mStartTime;
+        Log.i( TAG, "Scan took " + ( elapsed / 1000000 ) + " ms with " + mHashThreadCount + " hashing threads" );
+        Log.i( TAG, mWalkCounter.describe( elapsed ) );
+        Log.i( TAG, mFingerprintCounter.describe( elapsed ) );
+        Log.i( TAG, mProbeCounter.describe( elapsed ) );
+        Log.i( TAG, mHashCounter.describe( elapsed ) );
+        Log.i( TAG, mWriteCounter.describe( elapsed ) );
+    }
+
+    private void runWalker()
+    {
+        Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+        RomFileWalker walker = new RomFileWalker( mSearchSubdirectories, MAX_SEARCH_DEPTH,
+                new RomFileWalker.WalkListener()
+        {
+            @Override
+            public void onFileFound( File file ) throws InterruptedException
+            {
+                offer( file );
+            }
+
+            @Override
+            public boolean isWalkCancelled()
+            {
+                return mCancelled;
+            }
+        } );
+
+        try
+        {
+            walker.walk( mSearchPath );
+        }
+        catch( InterruptedException e )
+        {
+            return;
+        }
+        catch( RuntimeException e )
+        {
+            // Keep the files found so far
+            Log.e( TAG, "Unable to walk " + mSearchPath.getPath(), e );
+        }
+        finally
+        {
+            mWalkFinished = true;
+        }
+
+        putQuietly( mWalkQueue, END_OF_FILES, true );
+    }
+
+    private void offer( File file ) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        mDiscoveredFiles.incrementAndGet();
+        mWalkQueue.put( file );
+        mWalkCounter.add( 0, System.nanoTime() - start );
+    }
+
+    private void runHeaderProbe()
+    {
+        Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+        try
+        {
+            File file;
+            while( !mCancelled && ( file = mWalkQueue.take() ) != END_OF_FILES )
+            {
+                try
+                {
+                    probe( file );
+                }
+                catch( RuntimeException e )
+                {
+                    // Skip the file, the scan goes on with the next one
+                    Log.e( TAG, "Unable to probe " + file.getPath(), e );
+                    mResultQueue.put( new ScanResult( file, Collections.<ScannedRom>emptyList() ) );
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // The hashers wait for these, whatever stopped this thread
+            for( int index = 0; index < mHashThreadCount; ++index )
+                putQuietly( mHashQueue, END_OF_TASKS, false );
+        }
+    }
+
+    private void probe( File file ) throws InterruptedException
+    {
+        long start = System.nanoTime();
+
+        // Files that haven't changed since they were last hashed only need a stat call
+        FileStat stat = null;
+        if( mFingerprints != null )
+        {
+            stat = FileStat.of( file );
+            Fingerprint fingerprint = mFingerprints.lookup( file, stat );
+
+            if( fingerprint != null )
+            {
+                mFingerprintCounter.add( 0, System.nanoTime() - start );
+                mResultQueue.put( new ScanResult( file, Collections.singletonList(
+                        new ScannedRom( file.getAbsolutePath(), fingerprint, null ) ) ) );
+                return;
+            }
+        }
+
+        RomHeader header = new RomHeader( file );
+
+        if( header.isValid || ( mSearchZips && ( header.isZip || header.is7Zip ) ) )
+        {
+            mProbeCounter.add( ROM_HEADER_SIZE, System.nanoTime() - start );
+            mHashQueue.put( new ScanTask( file, header, stat ) );
+        }
+        else
+        {
+            mProbeCounter.add( ROM_HEADER_SIZE, System.nanoTime() - start );
+            mResultQueue.put( new ScanResult( file, Collections.<ScannedRom>emptyList() ) );
+        }
+    }
+
+    private void runHasher()
+    {
+        Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+        try
+        {
+            ScanTask task;
+            while( !mCancelled && ( task = mHashQueue.take() ) != END_OF_TASKS )
+            {
+                long start = System.nanoTime();
+                List<ScannedRom> roms;
+
+                try
+                {
+                    if( task.header.isValid )
+                        roms = hashRom( task.file, task.header, task.stat );
+                    else if( task.header.isZip )
+                        roms = hashZip( task.file );
+                    else
+                        roms = hash7Zip( task.file );
+                }
+                catch( RuntimeException e )
+                {
+                    // Skip the file, the scan goes on with the next one
+                    Log.e( TAG, "Unable to hash " + task.file.getPath(), e );
+                    roms = Collections.emptyList();
+                }
+
+                mHashCounter.add( task.file.length(), System.nanoTime() - start );
+                mResultQueue.put( new ScanResult( task.file, roms ) );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // The writer waits for this, whatever stopped this thread
+            putQuietly( mResultQueue, END_OF_RESULTS, false );
+        }
+    }
+
+    private static <T> void putQuietly( BlockingQueue<T> queue, T item, boolean ignoreCancel )
+    {
+        try
+        {
+            queue.put( item );
+        }
+        catch( InterruptedException e )
+        {
+            if( !ignoreCancel )
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<ScannedRom> hashRom( File file, RomHeader header, FileStat stat )
+    {
+        RomDigest.Result digests = ComputeMd5Task.computeDigests( file );
+
+        if( digests == null )
+        {
+            Log.w( TAG, "Unable to compute MD5 of " + file.getPath() );
+            return Collections.emptyList();
+        }
+
+        ScannedRom rom = new ScannedRom( file.getAbsolutePath(), digests, header, null );
+        checkDump( file.getName(), rom );
+
+        // Remember the ROM so the next scan can skip it if it doesn't change
+        if( mFingerprints != null )
+            mFingerprints.update( file, stat, rom.toFingerprint() );
+
+        return Collections.singletonList( rom );
+    }
+
+    private List<ScannedRom> hashZip( File file )
+    {
+        Log.i( TAG, "Found zip file " + file.getName() );
+        List<ScannedRom> roms = new ArrayList<>();
+        try
+        {
+            ZipFile zipFile = new ZipFile( file );
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while( entries.hasMoreElements() && !mCancelled )
+            {
+                try
+                {
+                    ZipEntry zipEntry = entries.nextElement();
+                    if( zipEntry.isDirectory() || ( zipEntry.getSize() != -1 && zipEntry.getSize() < ROM_HEADER_SIZE ) )
+                        continue;
+
+                    // The central directory has the CRC and size of every entry, so unchanged
+                    // entries don't have to be inflated at all
+                    String name = new File( zipEntry.getName() ).getName();
+                    if( addFromIndex( file, zipEntry.getName(), name, zipEntry.getCrc(), zipEntry.getSize(), roms ) )
+                        continue;
+
+                    // Only inflate the header of new entries until we know they are ROMs
+                    InputStream zipStream = new BufferedInputStream( zipFile.getInputStream( zipEntry ),
+                            HEADER_BUFFER_SIZE );
+                    RomHeader header = readHeader( zipStream );
+
+                    if( header != null )
+                    {
+                        hashFromInputStream( file, zipEntry.getName(), zipEntry.getCrc(), zipEntry.getSize(),
+                                header, zipStream, roms );
+                    }
+
+                    zipStream.close();
+                }
+                catch( IOException|NoSuchAlgorithmException|IllegalArgumentException e )
+                {
+                    Log.w( TAG, e );
+                }
+            }
+            zipFile.close();
+        }
+        catch( IOException|ArrayIndexOutOfBoundsException|java.lang.NullPointerException e )
+        {
+            Log.w( TAG, e );
+        }
+        return roms;
+    }
+
+    private List<ScannedRom> hash7Zip( File file )
+    {
+        Log.i( TAG, "Found 7zip file " + file.getName() );
+        List<ScannedRom> roms = new ArrayList<>();
+        try
+        {
+            SevenZFile zipFile = new SevenZFile( file );
+            SevenZArchiveEntry zipEntry;
+            while( (zipEntry = zipFile.getNextEntry()) != null && !mCancelled )
+            {
+                if( zipEntry.isDirectory() )
+                    continue;
+
+                // Entries that are never read don't have to be decompressed
+                String name = new File( zipEntry.getName() ).getName();
+                if( zipEntry.getHasCrc() && addFromIndex( file, zipEntry.getName(), name,
+                        zipEntry.getCrcValue(), zipEntry.getSize(), roms ) )
+                {
+                    continue;
+                }
+
+                try
+                {
+                    InputStream zipStream = new BufferedInputStream( new SevenZInputStream( zipFile ) );
+                    RomHeader header = readHeader( zipStream );
+
+                    if( header != null )
+                    {
+                        hashFromInputStream( file, zipEntry.getName(), zipEntry.getHasCrc() ? zipEntry.getCrcValue() : -1,
+                                zipEntry.getSize(), header, zipStream, roms );
+                    }
+
+                    zipStream.close();
+                }
+                catch( IOException|NoSuchAlgorithmException|IllegalArgumentException e )
+                {
+                    Log.w( TAG, e );
+                }
+            }
+            zipFile.close();
+        }
+        catch( IOException e )
+        {
+            Log.w( TAG, "IOException: " + e );
+        }
+        catch( java.lang.OutOfMemoryError e )
+        {
+            Log.w( TAG, "Out of memory while extracting 7zip entry: " + file.getPath() );
+        }
+        return roms;
+    }
+
+    /**
+     * Adds a ROM inside an archive from the fingerprint index, if it is there and unchanged.
+     *
+     * @return True if the ROM was found in the index
+     */
+    private boolean addFromIndex( File zipFile, String entryName, String name, long entryCrc, long size,
+                                  List<ScannedRom> roms )
+    {
+        if( mFingerprints == null )
+            return false;
+
+        long start = System.nanoTime();
+        Fingerprint fingerprint = mFingerprints.lookupEntry( zipFile, entryName, entryCrc, size );
+        if( fingerprint == null )
+            return false;
+
+        mFingerprintCounter.add( 0, System.nanoTime() - start );
+        roms.add( new ScannedRom( getExtractedPath( fingerprint.md5, name ), fingerprint, zipFile ) );
+        return true;
+    }
+
+    /**
+     * Reads the header at the start of a stream, then moves the stream back to its start.
+     *
+     * @return The header, or null if the stream isn't a ROM
+     */
+    private static RomHeader readHeader( InputStream inputStream ) throws IOException
+    {
+        inputStream.mark( HEADER_BUFFER_SIZE );
+        byte[] romHeader = FileUtil.extractRomHeader( inputStream );
+        inputStream.reset();
+
+        if( romHeader == null )
+            return null;
+
+        RomHeader header = new RomHeader( romHeader );
+        return header.isValid ? header : null;
+    }
+
+    /**
+     * Hashes a ROM inside an archive.
+     *
+     * @param entryCrc CRC32 of the entry from the archive directory, or -1 if there is none
+     * @param header Header of the ROM, already read from the stream
+     * @param inputStream Stream of the entry, at its start
+     */
+    private void hashFromInputStream( File zipFile, String entryName, long entryCrc, long size, RomHeader header,
+                                      InputStream inputStream, List<ScannedRom> roms )
+            throws IOException, NoSuchAlgorithmException
+    {
+        String name = new File( entryName ).getName();
+        Log.i( TAG, "Found ROM entry " + name );
+
+        RomDigest.Result digests = ComputeMd5Task.computeDigests( inputStream );
+
+        ScannedRom rom = new ScannedRom( getExtractedPath( digests.md5, name ), digests, header, zipFile );
+        checkDump( name, rom );
+        roms.add( rom );
+
+        if( mFingerprints != null && entryCrc != -1 )
+            mFingerprints.updateEntry( zipFile, entryName, entryCrc, size, rom.toFingerprint() );
+    }
+
+    /**
+     * @return Where the ROM is extracted to when it is played, see {@link ExtractedRomCache}
+     */
+    private String getExtractedPath( String md5, String name )
+    {
+        return new File( ExtractedRomCache.getDirectory( mUnzipDir, md5 ), name ).getPath();
+    }
+
+    private static void checkDump( String name, ScannedRom rom )
+    {
+        if( RomDigest.CHECKSUM_BAD.equals( rom.checksumStatus ) )
+            Log.w( TAG, "Header CRC of " + name + " doesn't match its data, this is probably a bad dump" );
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cache of the cover art shown in the gallery, scaled down to the width of the gallery cells.
+ * <p>
+ * Decoded art is kept in memory, up to a share of the heap, with the least recently used art
+ * evicted first. Art that isn't in memory is read from a thumbnail saved the first time it was
+ * decoded, and only decoded from the original image when there is no up to date thumbnail.
+ * Originals are subsampled while decoding, so a full resolution copy is never allocated.
+ * <p>
+ * Bitmaps evicted from memory are decoded into again instead of being garbage collected, once no
+ * view shows them anymore. Art returned by the cache is counted as shown until it is
+ * {@link #release released}.
+ */
+public class CoverArtCache
+{
+    private static final String TAG = "CoverArtCache";
+
+    /** Directory in the app cache where thumbnails are saved */
+    private static final String THUMBNAIL_DIR = "coverArtThumbnails";
+
+    /** Share of the heap the decoded art can take */
+    private static final int MEMORY_HEAP_DIVISOR = 8;
+
+    /** Thumbnails are deleted, oldest first, when they take more than this */
+    private static final long MAX_DISK_BYTES = 64 * 1024 * 1024;
+
+    /** Number of evicted bitmaps kept around to decode into */
+    private static final int MAX_REUSABLE_BITMAPS = 8;
+
+    private static CoverArtCache sInstance = null;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mThumbnailDir;
+
+    // Bitmaps in the memory cache
+    private final Set<Bitmap> mCachedBitmaps = Collections.newSetFromMap( new IdentityHashMap<Bitmap, Boolean>() );
+
+    // How many views show each bitmap from the cache
+    private final IdentityHashMap<Bitmap, Integer> mUseCounts = new IdentityHashMap<>();
+
+    // Bitmaps nothing refers to anymore, to decode into
+    private final List<Bitmap> mReusableBitmaps = new ArrayList<>();
+
+    // Size of the thumbnails on disk, or -1 until it is needed
+    private long mDiskBytes = -1;
+
+    public static synchronized CoverArtCache getInstance( Context context )
+    {
+        if( sInstance == null )
+            sInstance = new CoverArtCache( new File( context.getApplicationContext().getCacheDir(), THUMBNAIL_DIR ),
+                    (int) Math.min( Runtime.getRuntime().maxMemory() / MEMORY_HEAP_DIVISOR, Integer.MAX_VALUE ) );
+        return sInstance;
+    }
+
+    private CoverArtCache( File thumbnailDir, int maxMemoryBytes )
+    {
+        mThumbnailDir = thumbnailDir;
+        mMemoryCache = new LruCache<String, Bitmap>( maxMemoryBytes )
+        {
+            @Override
+            protected int sizeOf( String key, Bitmap value )
+            {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved( boolean evicted, String key, Bitmap oldValue, Bitmap newValue )
+            {
+                synchronized( CoverArtCache.this )
+                {
+                    mCachedBitmaps.remove( oldValue );
+                    recycle( oldValue );
+                }
+            }
+        };
+    }
+
+    /**
+     * Looks up art that is already decoded, doesn't touch the disk.
+     *
+     * @param artPath Path of the original art.
+     * @param width Width the art is shown at, in pixels.
+     *
+     * @return The art, to be released once it isn't shown anymore, or null if it has to be loaded.
+     */
+    public synchronized Bitmap acquireCached( String artPath, int width )
+    {
+        Bitmap art = mMemoryCache.get( getKey( artPath, width ) );
+        if( art != null )
+            acquire( art );
+        return art;
+    }
+
+    /**
+     * Checks if art is already decoded, and marks it as recently used if it is.
+     *
+     * @param artPath Path of the original art.
+     * @param width Width the art is shown at, in pixels.
+     */
+    public boolean isCached( String artPath, int width )
+    {
+        return mMemoryCache.get( getKey( artPath, width ) ) != null;
+    }
+
+    /**
+     * @return The most memory the decoded art can take, in bytes.
+     */
+    public int getMaxMemoryBytes()
+    {
+        return mMemoryCache.maxSize();
+    }
+
+    /**
+     * Frees memory when the system runs low.
+     *
+     * @param level Level passed to {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void trimMemory( int level )
+    {
+        if( level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND )
+            mMemoryCache.evictAll();
+        else if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW )
+            mMemoryCache.trimToSize( mMemoryCache.size() / 2 );
+
+        // Bitmaps kept to decode into aren't counted in the cache size
+        synchronized( this )
+        {
+            mReusableBitmaps.clear();
+        }
+    }
+
+    /**
+     * Loads art, from memory, its thumbnail or the original image. Must not be called from the UI
+     * thread.
+     *
+     * @param artPath Path of the original art.
+     * @param width Width the art is shown at, in pixels.
+     *
+     * @return The art scaled down to the width, to be released once it isn't shown anymore, or null
+     *         if there is no valid image.
+     */
+    public Bitmap acquire( String artPath, int width )
+    {
+        if( TextUtils.isEmpty( artPath ) || width <= 0 )
+            return null;
+
+        Bitmap art = acquireCached( artPath, width );
+        if( art != null )
+            return art;
+
+        File original = new File( artPath );
+        if( !original.isFile() )
+            return null;
+
+        File thumbnail = new File( mThumbnailDir, width + "/" + original.getName() );
+        if( thumbnail.lastModified() >= original.lastModified() )
+            art = decode( thumbnail.getPath(), readBounds( thumbnail.getPath() ), 1 );
+
+        if( art == null )
+        {
+            art = decodeOriginal( original.getPath(), width );
+            if( art == null )
+                return null;
+
+            saveThumbnail( art, thumbnail );
+        }
+
+        synchronized( this )
+        {
+            mCachedBitmaps.add( art );
+            acquire( art );
+        }
+        mMemoryCache.put( getKey( artPath, width ), art );
+        return art;
+    }
+
+    /**
+     * Records that art returned by the cache isn't shown anymore.
+     */
+    public synchronized void release( Bitmap art )
+    {
+        Integer count = mUseCounts.get( art );
+        if( count == null )
+            return;
+
+        if( count > 1 )
+        {
+            mUseCounts.put( art, count - 1 );
+        }
+        else
+        {
+            mUseCounts.remove( art );
+
+            // Evicted while it was shown
+            recycle( art );
+        }
+    }
+
+    /**
+     * Records that art already acquired is shown by one more view.
+     */
+    public synchronized void acquire( Bitmap art )
+    {
+        Integer count = mUseCounts.get( art );
+        mUseCounts.put( art, count == null ? 1 : count + 1 );
+    }
+
+    private synchronized void recycle( Bitmap art )
+    {
+        if( mUseCounts.containsKey( art ) || mCachedBitmaps.contains( art ) || !art.isMutable() ||
+                mReusableBitmaps.contains( art ) )
+            return;
+
+        if( mReusableBitmaps.size() >= MAX_REUSABLE_BITMAPS )
+            mReusableBitmaps.remove( 0 );
+        mReusableBitmaps.add( art );
+    }
+
+    /**
+     * @return The smallest evicted bitmap that can hold an image of this size, or null.
+     */
+    private synchronized Bitmap takeReusableBitmap( int width, int height )
+    {
+        long byteCount = (long) width * height * 4;
+        Bitmap best = null;
+        for( Bitmap candidate : mReusableBitmaps )
+        {
+            if( candidate.getAllocationByteCount() >= byteCount &&
+                    ( best == null || candidate.getAllocationByteCount() < best.getAllocationByteCount() ) )
+                best = candidate;
+        }
+
+        if( best != null )
+            mReusableBitmaps.remove( best );
+        return best;
+    }
+
+    private Bitmap decodeOriginal( String path, int width )
+    {
+        BitmapFactory.Options bounds = readBounds( path );
+        if( bounds == null )
+            return null;
+
+        // Largest power of two that keeps the art at least as wide as the cell
+        int sampleSize = 1;
+        while( bounds.outWidth / ( sampleSize * 2 ) >= width )
+            sampleSize *= 2;
+
+        Bitmap art = decode( path, bounds, sampleSize );
+        if( art == null || art.getWidth() <= width )
+            return art;
+
+        // Subsampling only divides by powers of two, scale the rest of the way
+        int height = Math.max( 1, Math.round( art.getHeight() * (float) width / art.getWidth() ) );
+        Bitmap scaled = Bitmap.createScaledBitmap( art, width, height, true );
+        if( scaled != art )
+            recycle( art );
+        return scaled;
+    }
+
+    /**
+     * @return The size of an image, or null if it isn't a valid image.
+     */
+    private static BitmapFactory.Options readBounds( String path )
+    {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile( path, bounds );
+        return bounds.outWidth > 0 && bounds.outHeight > 0 ? bounds : null;
+    }
+
+    private Bitmap decode( String path, BitmapFactory.Options bounds, int sampleSize )
+    {
+        if( bounds == null )
+            return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = takeReusableBitmap( ( bounds.outWidth + sampleSize - 1 ) / sampleSize,
+                ( bounds.outHeight + sampleSize - 1 ) / sampleSize );
+
+        try
+        {
+            return BitmapFactory.decodeFile( path, options );
+        }
+        catch( IllegalArgumentException e )
+        {
+            // The bitmap couldn't be reused after all
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile( path, options );
+        }
+    }
+
+    private void saveThumbnail( Bitmap art, File thumbnail )
+    {
+        File dir = thumbnail.getParentFile();
+        if( !dir.isDirectory() && !dir.mkdirs() )
+            return;
+
+        // Write next to the thumbnail and rename, so an interrupted write is never read back
+        File temp = new File( dir, thumbnail.getName() + ".tmp" );
+        try( OutputStream out = new FileOutputStream( temp ) )
+        {
+            art.compress( art.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out );
+        }
+        catch( IOException e )
+        {
+            Log.w( TAG, "Unable to save thumbnail " + thumbnail.getPath(), e );
+            temp.delete();
+            return;
+        }
+
+        if( !temp.renameTo( thumbnail ) )
+        {
+            temp.delete();
+            return;
+        }
+
+        trimDisk( thumbnail.length() );
+    }
+
+    private synchronized void trimDisk( long addedBytes )
+    {
+        // Only list the thumbnails when the budget may be exceeded
+        if( mDiskBytes >= 0 && mDiskBytes + addedBytes <= MAX_DISK_BYTES )
+        {
+            mDiskBytes += addedBytes;
+            return;
+        }
+
+        List<File> thumbnails = new ArrayList<>();
+        File[] widths = mThumbnailDir.listFiles();
+        for( File dir : widths == null ? new File[0] : widths )
+        {
+            File[] files = dir.listFiles();
+            if( files != null )
+                thumbnails.addAll( Arrays.asList( files ) );
+        }
+
+        final HashMap<File, Long> lastModified = new HashMap<>();
+        mDiskBytes = 0;
+        for( File file : thumbnails )
+        {
+            mDiskBytes += file.length();
+            lastModified.put( file, file.lastModified() );
+        }
+
+        if( mDiskBytes <= MAX_DISK_BYTES )
+            return;
+
+        Collections.sort( thumbnails, new Comparator<File>()
+        {
+            @Override
+            public int compare( File lhs, File rhs )
+            {
+                return lastModified.get( lhs ).compareTo( lastModified.get( rhs ) );
+            }
+        } );
+
+        for( int i = 0; i < thumbnails.size() && mDiskBytes > MAX_DISK_BYTES * 3 / 4; ++i )
+        {
+            File file = thumbnails.get( i );
+            long length = file.length();
+            if( file.delete() )
+                mDiskBytes -= length;
+        }
+    }
+
+    private static String getKey( String artPath, int width )
+    {
+        return width + ":" + artPath;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import es.jdbc.n64retroplus.R;
+
+/**
+ * Loads the cover art of the gallery grid through the {@link CoverArtCache}, on a small pool of
+ * background threads.
+ * <p>
+ * Pending loads are run closest to the visible part of the grid first, so the cells on screen
+ * don't wait behind cells that were scrolled past. Loading art into a view drops the load it was
+ * waiting for, and views waiting for the same art share a single load. Art can also be prefetched
+ * into the cache before any view shows it.
+ * <p>
+ * Every method must be called from the UI thread.
+ */
+public class CoverArtLoader
+{
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 4;
+
+    private static final int NO_POSITION = -1;
+
+    private static CoverArtLoader sInstance = null;
+
+    private final CoverArtCache mCache;
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+    private final ThreadPoolExecutor mExecutor;
+
+    // Pending loads, by art path and width
+    private final HashMap<String, Request> mRequests = new HashMap<>();
+
+    // Pending load of each view
+    private final HashMap<ImageView, Request> mRequestsByView = new HashMap<>();
+
+    // Positions of the grid on screen
+    private int mFirstVisible = 0;
+    private int mLastVisible = -1;
+
+    // Used to load art requested at the same distance in order
+    private long mSequence = 0;
+
+    private class Request implements Runnable, Comparable<Request>
+    {
+        final String key;
+        final String artPath;
+        final int width;
+        final long sequence;
+
+        // Views waiting for the art, and their position in the grid
+        final HashMap<ImageView, Integer> targets = new HashMap<>();
+
+        // Position the art was prefetched for, if any
+        int prefetchPosition = NO_POSITION;
+
+        // Only changed while the request isn't in the queue
+        int distance;
+
+        Request( String key, String artPath, int width )
+        {
+            this.key = key;
+            this.artPath = artPath;
+            this.width = width;
+            this.sequence = mSequence++;
+        }
+
+        int getDistance()
+        {
+            int distance = prefetchPosition == NO_POSITION ? Integer.MAX_VALUE :
+                    CoverArtLoader.this.getDistance( prefetchPosition );
+            for( int position : targets.values() )
+                distance = Math.min( distance, CoverArtLoader.this.getDistance( position ) );
+            return distance;
+        }
+
+        @Override
+        public void run()
+        {
+            final Bitmap art = mCache.acquire( artPath, width );
+            mHandler.post( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deliver( Request.this, art );
+                }
+            } );
+        }
+
+        @Override
+        public int compareTo( Request other )
+        {
+            if( distance != other.distance )
+                return distance < other.distance ? -1 : 1;
+            return sequence < other.sequence ? -1 : ( sequence == other.sequence ? 0 : 1 );
+        }
+    }
+
+    public static synchronized CoverArtLoader getInstance( Context context )
+    {
+        if( sInstance == null )
+            sInstance = new CoverArtLoader( CoverArtCache.getInstance( context ) );
+        return sInstance;
+    }
+
+    private CoverArtLoader( CoverArtCache cache )
+    {
+        mCache = cache;
+
+        int threads = Math.max( MIN_THREADS, Math.min( MAX_THREADS, Runtime.getRuntime().availableProcessors() / 2 ) );
+        mExecutor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread( final Runnable runnable )
+                    {
+                        Thread thread = new Thread( new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+                                runnable.run();
+                            }
+                        }, "CoverArtLoader" );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+    }
+
+    /**
+     * Shows cover art in a view, right away if it is already decoded, otherwise once it is loaded.
+     *
+     * @param artView View showing the art.
+     * @param artPath Path of the original art.
+     * @param width Width the art is shown at, in pixels.
+     * @param position Position of the view in the grid.
+     */
+    public void load( ImageView artView, String artPath, int width, int position )
+    {
+        cancelRequest( artView );
+
+        Bitmap art = TextUtils.isEmpty( artPath ) ? null : mCache.acquireCached( artPath, width );
+        show( artView, art );
+        if( art != null || TextUtils.isEmpty( artPath ) || width <= 0 )
+            return;
+
+        String key = width + ":" + artPath;
+        Request request = mRequests.get( key );
+        if( request == null )
+        {
+            request = new Request( key, artPath, width );
+            request.targets.put( artView, position );
+            request.distance = request.getDistance();
+            mRequests.put( key, request );
+            mExecutor.execute( request );
+        }
+        else
+        {
+            request.targets.put( artView, position );
+
+            // Move the load up if this view is closer to the screen
+            BlockingQueue<Runnable> queue = mExecutor.getQueue();
+            int distance = getDistance( position );
+            if( distance < request.distance && queue.remove( request ) )
+            {
+                request.distance = distance;
+                queue.add( request );
+            }
+        }
+        mRequestsByView.put( artView, request );
+    }
+
+    /**
+     * Loads cover art into the cache before a view shows it.
+     *
+     * @param artPath Path of the original art.
+     * @param width Width the art will be shown at, in pixels.
+     * @param position Position of the art in the grid.
+     */
+    public void prefetch( String artPath, int width, int position )
+    {
+        if( TextUtils.isEmpty( artPath ) || width <= 0 )
+            return;
+
+        String key = width + ":" + artPath;
+        Request request = mRequests.get( key );
+        if( request == null )
+        {
+            if( mCache.isCached( artPath, width ) )
+                return;
+
+            request = new Request( key, artPath, width );
+            request.prefetchPosition = position;
+            request.distance = request.getDistance();
+            mRequests.put( key, request );
+            mExecutor.execute( request );
+        }
+        else
+        {
+            request.prefetchPosition = position;
+
+            // Move the load to where the new position puts it
+            BlockingQueue<Runnable> queue = mExecutor.getQueue();
+            int distance = request.getDistance();
+            if( distance != request.distance && queue.remove( request ) )
+            {
+                request.distance = distance;
+                queue.add( request );
+            }
+        }
+    }
+
+    /**
+     * Drops the pending prefetches of art outside a range of positions.
+     *
+     * @param first First position to keep.
+     * @param last Last position to keep, before the first one to drop every prefetch.
+     */
+    public void cancelPrefetches( int first, int last )
+    {
+        Iterator<Request> iterator = mRequests.values().iterator();
+        while( iterator.hasNext() )
+        {
+            Request request = iterator.next();
+            if( request.prefetchPosition == NO_POSITION ||
+                    ( request.prefetchPosition >= first && request.prefetchPosition <= last ) )
+                continue;
+
+            request.prefetchPosition = NO_POSITION;
+            if( request.targets.isEmpty() && mExecutor.remove( request ) )
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Drops the pending load of a view and releases the art it shows.
+     */
+    public void cancel( ImageView artView )
+    {
+        cancelRequest( artView );
+        show( artView, null );
+    }
+
+    /**
+     * Sets the positions of the grid on screen, pending loads closest to them are run first.
+     */
+    public void setViewport( int first, int last )
+    {
+        if( first == mFirstVisible && last == mLastVisible )
+            return;
+
+        mFirstVisible = first;
+        mLastVisible = last;
+
+        BlockingQueue<Runnable> queue = mExecutor.getQueue();
+        List<Runnable> pending = new ArrayList<>();
+        queue.drainTo( pending );
+        for( Runnable runnable : pending )
+        {
+            Request request = (Request) runnable;
+            request.distance = request.getDistance();
+        }
+        queue.addAll( pending );
+    }
+
+    private void cancelRequest( ImageView artView )
+    {
+        Request request = mRequestsByView.remove( artView );
+        if( request == null )
+            return;
+
+        request.targets.remove( artView );
+
+        // A load that already started is left to finish, it may be requested again
+        if( request.targets.isEmpty() && mExecutor.remove( request ) )
+            mRequests.remove( request.key );
+    }
+
+    private void deliver( Request request, Bitmap art )
+    {
+        if( mRequests.get( request.key ) == request )
+            mRequests.remove( request.key );
+
+        // The art was acquired once by the request, acquire it again for every other view
+        boolean first = true;
+        for( ImageView artView : request.targets.keySet() )
+        {
+            mRequestsByView.remove( artView );
+            if( art != null && !first )
+                mCache.acquire( art );
+            first = false;
+            show( artView, art );
+        }
+
+        // Nothing waits for it anymore
+        if( art != null && first )
+            mCache.release( art );
+    }
+
+    private void show( ImageView artView, Bitmap art )
+    {
+        Object previous = artView.getTag();
+        artView.setTag( art );
+
+        if( art != null )
+            artView.setImageBitmap( art );
+        else
+            artView.setImageResource( R.drawable.default_coverart );
+
+        // Only released once the view doesn't draw it anymore
+        if( previous instanceof Bitmap )
+            mCache.release( (Bitmap) previous );
+
+        artView.setScaleType( ImageView.ScaleType.FIT_CENTER );
+    }
+
+    private int getDistance( int position )
+    {
+        if( position < mFirstVisible )
+            return mFirstVisible - position;
+        else if( position > mLastVisible )
+            return position - mLastVisible;
+        else
+            return 0;
+    }
+}
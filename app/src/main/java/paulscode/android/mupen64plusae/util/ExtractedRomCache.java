@@ -0,0 +1,334 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+
+/**
+ * Cache of ROMs extracted from archives so they can be played, keyed by the MD5 of the ROM.
+ * <p>
+ * Each ROM is extracted to its own directory named after its MD5, keeping its original file name.
+ * A ROM only counts as cached once it has been recorded after a complete extraction and its file
+ * still has the recorded size, so an interrupted extraction is never launched.
+ * <p>
+ * The total size of the cache is kept under a byte budget. When it is exceeded, the ROMs that
+ * haven't been played for the longest time are evicted first, with every past launch pushing a
+ * ROM back by a day so that favorites survive a few sessions with other games.
+ * <p>
+ * The index is shared by the gallery and the extraction service, so every operation reloads and
+ * saves it under a process wide lock.
+ */
+public class ExtractedRomCache
+{
+    private static final String TAG = "ExtractedRomCache";
+
+    /** Name of the index file, kept in the cache directory */
+    private static final String INDEX_NAME = "extractedRoms.cfg";
+
+    private static final String STATISTICS_SECTION = "Statistics";
+
+    /** How much later a ROM is evicted for each time it was launched */
+    private static final long FREQUENCY_BONUS_MS = TimeUnit.DAYS.toMillis( 1 );
+
+    /** Launches beyond this many don't delay eviction any further */
+    private static final int MAX_FREQUENCY_BONUS_USES = 7;
+
+    /** Files not in the index are only deleted once they are this old, they may still be extracting */
+    private static final long STALE_FILE_AGE_MS = TimeUnit.HOURS.toMillis( 1 );
+
+    private static final Object sLock = new Object();
+
+    /**
+     * Usage of the cache since it was created, logged whenever the cache is trimmed.
+     */
+    private static class Statistics
+    {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long evictedBytes;
+        public final int romCount;
+        public final long totalBytes;
+
+        Statistics( long hits, long misses, long evictions, long evictedBytes, int romCount, long totalBytes )
+        {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.evictedBytes = evictedBytes;
+            this.romCount = romCount;
+            this.totalBytes = totalBytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( Locale.US, "%d ROMs, %d bytes, %d hits, %d misses, %d evictions (%d bytes)",
+                    romCount, totalBytes, hits, misses, evictions, evictedBytes );
+        }
+    }
+
+    private static class Entry
+    {
+        final String md5;
+        final long size;
+        final long score;
+
+        Entry( String md5, long size, long score )
+        {
+            this.md5 = md5;
+            this.size = size;
+            this.score = score;
+        }
+    }
+
+    private final File mCacheDir;
+    private final String mIndexPath;
+    private final long mMaxBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param cacheDir Directory where ROMs are extracted
+     * @param maxBytes Total size the extracted ROMs should be kept under
+     */
+    public ExtractedRomCache( String cacheDir, long maxBytes )
+    {
+        mCacheDir = new File( cacheDir );
+        mIndexPath = new File( mCacheDir, INDEX_NAME ).getPath();
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param cacheDir Directory where ROMs are extracted
+     * @param md5 MD5 of the ROM
+     * @return The directory a ROM should be extracted to
+     */
+    public static File getDirectory( String cacheDir, String md5 )
+    {
+        return new File( cacheDir, md5 );
+    }
+
+    /**
+     * Looks up an extracted ROM and counts it as used if found.
+     *
+     * @param md5 MD5 of the ROM
+     * @return The extracted ROM, or null if it has to be extracted
+     */
+    public File lookup( String md5 )
+    {
+        synchronized( sLock )
+        {
+            ConfigFile index = new ConfigFile( mIndexPath );
+            File romFile = getCachedFile( index, md5 );
+
+            if( romFile == null )
+            {
+                increment( index, STATISTICS_SECTION, "misses" );
+            }
+            else
+            {
+                index.put( md5, "lastUsed", Long.toString( System.currentTimeMillis() ) );
+                increment( index, md5, "useCount" );
+                increment( index, STATISTICS_SECTION, "hits" );
+            }
+
+            index.save();
+            return romFile;
+        }
+    }
+
+    /**
+     * Records a ROM that has been completely extracted to {@link #getDirectory(String, String)}, then
+     * evicts other ROMs if the cache went over budget.
+     *
+     * @param md5 MD5 of the ROM
+     * @param romFile The extracted ROM
+     */
+    public void add( String md5, File romFile )
+    {
+        synchronized( sLock )
+        {
+            ConfigFile index = new ConfigFile( mIndexPath );
+            index.put( md5, "name", romFile.getName() );
+            index.put( md5, "size", Long.toString( romFile.length() ) );
+            index.put( md5, "lastUsed", Long.toString( System.currentTimeMillis() ) );
+            index.put( md5, "useCount", "1" );
+
+            trim( index, md5 );
+            index.save();
+        }
+    }
+
+    /**
+     * Evicts ROMs until the cache is within budget and deletes files that were never recorded,
+     * such as interrupted extractions or ROMs extracted before the cache existed.
+     */
+    public void trim()
+    {
+        synchronized( sLock )
+        {
+            ConfigFile index = new ConfigFile( mIndexPath );
+            trim( index, null );
+            index.save();
+        }
+    }
+
+    private void trim( ConfigFile index, String keepMd5 )
+    {
+        List<Entry> entries = new ArrayList<>();
+        long totalBytes = 0;
+
+        for( String md5 : new ArrayList<>( index.keySet() ) )
+        {
+            if( md5.equals( ConfigFile.SECTIONLESS_NAME ) || md5.equals( STATISTICS_SECTION ) )
+                continue;
+
+            if( getCachedFile( index, md5 ) == null )
+            {
+                // The file went away or was modified behind our back
+                index.remove( md5 );
+                if( getDirectory( mCacheDir.getPath(), md5 ).exists() )
+                    FileUtil.deleteFolder( getDirectory( mCacheDir.getPath(), md5 ) );
+                continue;
+            }
+
+            long size = getLong( index, md5, "size" );
+            int bonusUses = (int) Math.min( getLong( index, md5, "useCount" ) - 1, MAX_FREQUENCY_BONUS_USES );
+            long score = getLong( index, md5, "lastUsed" ) + Math.max( bonusUses, 0 ) * FREQUENCY_BONUS_MS;
+
+            totalBytes += size;
+            if( !md5.equals( keepMd5 ) )
+                entries.add( new Entry( md5, size, score ) );
+        }
+
+        Collections.sort( entries, new Comparator<Entry>()
+        {
+            @Override
+            public int compare( Entry lhs, Entry rhs )
+            {
+                return lhs.score < rhs.score ? -1 : ( lhs.score == rhs.score ? 0 : 1 );
+            }
+        } );
+
+        for( int i = 0; i < entries.size() && totalBytes > mMaxBytes; ++i )
+        {
+            Entry entry = entries.get( i );
+            Log.i( TAG, "Evicting " + index.get( entry.md5, "name" ) );
+
+            index.remove( entry.md5 );
+            FileUtil.deleteFolder( getDirectory( mCacheDir.getPath(), entry.md5 ) );
+            totalBytes -= entry.size;
+
+            increment( index, STATISTICS_SECTION, "evictions" );
+            index.put( STATISTICS_SECTION, "evictedBytes",
+                    Long.toString( getLong( index, STATISTICS_SECTION, "evictedBytes" ) + entry.size ) );
+        }
+
+        deleteUnrecordedFiles( index );
+
+        Log.i( TAG, getStatistics( index ).toString() );
+    }
+
+    private void deleteUnrecordedFiles( ConfigFile index )
+    {
+        File[] files = mCacheDir.listFiles();
+        if( files == null )
+            return;
+
+        long now = System.currentTimeMillis();
+        Set<String> recorded = new HashSet<>( index.keySet() );
+
+        for( File file : files )
+        {
+            if( file.getName().equals( INDEX_NAME ) || recorded.contains( file.getName() ) ||
+                    now - file.lastModified() < STALE_FILE_AGE_MS )
+                continue;
+
+            if( file.isDirectory() )
+                FileUtil.deleteFolder( file );
+            else if( !file.delete() )
+                Log.w( TAG, "Unable to delete " + file.getPath() );
+        }
+    }
+
+    private Statistics getStatistics( ConfigFile index )
+    {
+        int romCount = 0;
+        long totalBytes = 0;
+        for( String md5 : index.keySet() )
+        {
+            if( md5.equals( ConfigFile.SECTIONLESS_NAME ) || md5.equals( STATISTICS_SECTION ) )
+                continue;
+
+            romCount++;
+            totalBytes += getLong( index, md5, "size" );
+        }
+
+        return new Statistics( getLong( index, STATISTICS_SECTION, "hits" ),
+                getLong( index, STATISTICS_SECTION, "misses" ), getLong( index, STATISTICS_SECTION, "evictions" ),
+                getLong( index, STATISTICS_SECTION, "evictedBytes" ), romCount, totalBytes );
+    }
+
+    private File getCachedFile( ConfigFile index, String md5 )
+    {
+        String name = index.get( md5, "name" );
+        if( TextUtils.isEmpty( name ) )
+            return null;
+
+        File romFile = new File( getDirectory( mCacheDir.getPath(), md5 ), name );
+        return romFile.length() == getLong( index, md5, "size" ) && romFile.isFile() ? romFile : null;
+    }
+
+    private static void increment( ConfigFile index, String section, String parameter )
+    {
+        index.put( section, parameter, Long.toString( getLong( index, section, parameter ) + 1 ) );
+    }
+
+    private static long getLong( ConfigFile index, String section, String parameter )
+    {
+        String value = index.get( section, parameter );
+        if( TextUtils.isEmpty( value ) )
+            return 0;
+
+        try
+        {
+            return Long.parseLong( value );
+        }
+        catch( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+}
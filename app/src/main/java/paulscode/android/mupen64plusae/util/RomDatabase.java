@@ -19,15 +19,16 @@
  */
 package paulscode.android.mupen64plusae.util;
 
-import android.text.TextUtils;
+import android.os.FileObserver;
 import android.util.Log;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.task.ExtractAssetsTask;
 
 /**
  * This class wraps the <a href=https://github.com/mupen64plus/mupen64plus-core/tree/master/data>ROM
@@ -86,6 +87,10 @@ import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
  * </ul>
  * We wrap the database info in a java class, which we use to hold additional derived meta-info,
  * like URLs for the cover art and wiki entries.
+ * <p>
+ * The ini file is only read to compile a {@link RomDatabaseSnapshot} when it changes, lookups are
+ * made in the memory-mapped snapshot. Lookups are thread safe and don't lock, the snapshot in use
+ * is swapped atomically when the ini file is rewritten.
  * 
  * @see RomHeader
  * @see assets/mupen64plus_data/mupen64plus.ini
@@ -94,53 +99,130 @@ public class RomDatabase
 {
     private static final String ART_URL_TEMPLATE = "http://www.zurita.me/CoverArt/%s";
     private static final String WIKI_URL_TEMPLATE = "https://github.com/mupen64plus-ae/mupen64plus-ae-meta/wiki/%s";
+
+    /** Name of the database in the assets, used to find its version */
+    private static final String DATABASE_ASSET = "mupen64plus_data/mupen64plus.ini";
     
-    private ConfigFile mConfigFile = null;
-    private final HashMap<String, ArrayList<ConfigSection>> mCrcMap = new HashMap<>();
+    /** Events that mean the database was rewritten */
+    private static final int DATABASE_CHANGED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+
+    /**
+     * The loaded database. It is never modified, reloading publishes a new one, so readers only
+     * have to read the reference once per lookup.
+     */
+    private static final class Database
+    {
+        final RomDatabaseSnapshot snapshot;
+
+        /** Details of each entry of the snapshot, created on first lookup and shared afterwards */
+        final AtomicReferenceArray<RomDetail> details;
+
+        Database( RomDatabaseSnapshot snapshot )
+        {
+            this.snapshot = snapshot;
+            details = new AtomicReferenceArray<>( snapshot.getEntryCount() );
+        }
+    }
+
+    private final AtomicReference<Database> mDatabase = new AtomicReference<>();
+
+    /** Serializes loads, so the last one to run always sees the latest ini file */
+    private final Object mLoadLock = new Object();
+    private final AtomicBoolean mReloadPending = new AtomicBoolean( false );
+    private FileObserver mDatabaseObserver = null;
+    private volatile String mDatabasePath = null;
     
-    private static RomDatabase instance = null;
+    private static final RomDatabase instance = new RomDatabase();
     private RomDatabase() {
        // Do not allow creation
     }
     public static RomDatabase getInstance() {
-       if(instance == null) {
-          instance = new RomDatabase();
-       }
        return instance;
     }
     
-    public void setDatabaseFile( String mupen64plusIni )
+    /**
+     * Loads the database and keeps watching it, so the database is reloaded in the background
+     * whenever it is rewritten, e.g. when the assets are updated.
+     *
+     * @param mupen64plusIni Path of the database
+     */
+    public void setDatabaseFile( final String mupen64plusIni )
     {
-        mConfigFile = new ConfigFile( mupen64plusIni );
-        for( String key : mConfigFile.keySet() )
+        // Checked before taking the lock, so callers on the UI thread don't wait for a reload
+        // running in the background
+        if( mupen64plusIni.equals( mDatabasePath ) && mDatabase.get() != null )
+            return;
+
+        synchronized( mLoadLock )
         {
-            ConfigSection section = mConfigFile.get( key );
-            if( section != null )
+            if( mupen64plusIni.equals( mDatabasePath ) && mDatabase.get() != null )
+                return;
+
+            // The path is only published with the database loaded from it
+            load( mupen64plusIni );
+            mDatabasePath = mupen64plusIni;
+
+            if( mDatabaseObserver != null )
+                mDatabaseObserver.stopWatching();
+
+            final File iniFile = new File( mupen64plusIni );
+            mDatabaseObserver = new FileObserver( iniFile.getParent(), DATABASE_CHANGED_EVENTS )
             {
-                String crc = section.get( "CRC" );
-                if( crc != null )
+                @Override
+                public void onEvent( int event, String path )
                 {
-                    if( mCrcMap.get( crc ) == null )
-                        mCrcMap.put( crc, new ArrayList<ConfigSection>() );
-                    mCrcMap.get( crc ).add( section );
+                    if( iniFile.getName().equals( path ) )
+                        scheduleReload();
                 }
-            }
+            };
+            mDatabaseObserver.startWatching();
         }
     }
     
     public boolean hasDatabaseFile()
     {
-        return mConfigFile != null;
+        return mDatabase.get() != null;
+    }
+
+    /**
+     * Loads the database and publishes it. Must be called while holding the load lock.
+     */
+    private void load( String databasePath )
+    {
+        mDatabase.set( new Database( RomDatabaseSnapshot.load( databasePath,
+                ExtractAssetsTask.getAssetVersion( DATABASE_ASSET ) ) ) );
+    }
+
+    private void scheduleReload()
+    {
+        // A reload that hasn't started yet will see this change as well
+        if( !mReloadPending.compareAndSet( false, true ) )
+            return;
+
+        new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized( mLoadLock )
+                {
+                    mReloadPending.set( false );
+                    Log.i( "RomDatabase", "Reloading " + mDatabasePath );
+                    load( mDatabasePath );
+                }
+            }
+        }, "RomDatabaseReload" ).start();
     }
 
     public RomDetail lookupByMd5WithFallback( String md5, String filename, String crc, CountryCode countryCode )
     {
-        RomDetail detail = lookupByMd5( md5 );
+        Database database = mDatabase.get();
+        RomDetail detail = lookupByMd5( database, md5 );
 
         if( detail == null )
         {
             File tempFile = new File(filename);
-            ArrayList<RomDetail> details = lookupByCrc(filename, crc, countryCode );
+            ArrayList<RomDetail> details = lookupByCrc(database, filename, crc, countryCode );
 
             // Catch if none was found or we could not narrow things to only 1 entry
             if (details.size() != 1) {
@@ -152,15 +234,17 @@ public class RomDatabase
         return detail;
     }
 
-    private ArrayList<RomDetail> lookupByCrc(String fileName, String crc, CountryCode countryCode) {
+    private ArrayList<RomDetail> lookupByCrc(Database database, String fileName, String crc, CountryCode countryCode) {
 
         ArrayList<RomDetail> romDetails = new ArrayList<>();
 
         //First try to find a unique match
-        ArrayList<ConfigSection> sections = mCrcMap.get( crc );
-        if( sections != null ) {
-            for( int i = 0; i < sections.size(); i++ )
-                romDetails.add(new RomDetail( sections.get( i ) ));
+        RomDatabaseSnapshot snapshot = database.snapshot;
+        int first = snapshot.findCrc( crc );
+        if( first != -1 ) {
+            long value = snapshot.getCrcValue( first );
+            for( int row = first; row < snapshot.getCrcCount() && snapshot.getCrcValue( row ) == value; row++ )
+                romDetails.add(getDetail( database, snapshot.getCrcEntry( row ) ));
         }
 
         if (romDetails.size() > 1) {
@@ -203,12 +287,28 @@ public class RomDatabase
     }
 
     
-    private RomDetail lookupByMd5( String md5 )
+    private RomDetail lookupByMd5( Database database, String md5 )
     {
-        ConfigSection section = mConfigFile.get( md5 );
-        return section == null ? null : new RomDetail( section );
+        int entry = database.snapshot.findMd5( md5 );
+        return entry == -1 ? null : getDetail( database, entry );
+    }
+
+    private RomDetail getDetail( Database database, int entry )
+    {
+        RomDetail detail = database.details.get( entry );
+        if( detail == null )
+        {
+            // If two threads race here, both get the detail that was published first
+            database.details.compareAndSet( entry, null, new RomDetail( database.snapshot, entry ) );
+            detail = database.details.get( entry );
+        }
+        return detail;
     }
     
+    /**
+     * Details of a ROM. Details of ROMs in the database are shared by every lookup, so their
+     * derived fields are only computed once. They are immutable and safe to share between threads.
+     */
     public class RomDetail
     {
         public final String crc;
@@ -223,16 +323,16 @@ public class RomDatabase
         public final int players;
         public final boolean rumble;
         
-        private RomDetail( ConfigSection section )
+        private RomDetail( RomDatabaseSnapshot snapshot, int entry )
         {
-            crc = section.get( "CRC" );
-            md5 = section.name;
+            crc = snapshot.getCrc( entry );
+            md5 = snapshot.getMd5( entry );
             
             // Use an empty goodname (not null) for certain homebrew ROMs
             if( "00000000 00000000".equals( crc ) )
                 goodName = "";
             else
-                goodName = section.get( "GoodName" );
+                goodName = snapshot.getGoodName( entry );
             
             if( goodName != null )
             {
@@ -260,31 +360,11 @@ public class RomDatabase
                 wikiUrl = null;
             }
             
-            // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
-            // just references another entry.
-            String refMd5 = section.get( "RefMD5" );
-            if( !TextUtils.isEmpty( refMd5 ) )
-                section = mConfigFile.get( refMd5 );
-            
-            if( section != null )
-            {
-                saveType = section.get( "SaveType" );
-                String statusString = section.get( "Status" );
-                String playersString = section.get( "Players" );
-                String rumbleString = section.get( "Rumble" );
-                status = TextUtils.isEmpty( statusString ) ? 0 : Integer.parseInt( statusString );
-                players = TextUtils.isEmpty( playersString ) ? 4 : Integer.parseInt( playersString );
-                rumble = TextUtils.isEmpty( rumbleString ) || "Yes".equals( rumbleString );
-            }
-            else
-            {
-                Log.e( "RomDetail.ctor",
-                        "mupen64plus.ini appears to be corrupt.  RefMD5 field does not refer to a known ROM." );
-                saveType = null;
-                status = 0;
-                players = 4;
-                rumble = true;
-            }
+            // RefMD5 links were already followed when the snapshot was compiled
+            saveType = snapshot.getSaveType( entry );
+            status = snapshot.getStatus( entry );
+            players = snapshot.getPlayers( entry );
+            rumble = snapshot.getRumble( entry );
         }
         
         private RomDetail( String assumedCrc, String assumedGoodName )
@@ -0,0 +1,651 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+
+/**
+ * Binary image of the ROM database, compiled from mupen64plus.ini so that lookups never have to
+ * parse text.
+ * <p>
+ * The snapshot is kept next to the ini file and memory-mapped when loaded. It is made of a fixed
+ * size header, a table of entries sorted by MD5, a table of CRCs sorted by value pointing back
+ * into the entries, and a pool holding every distinct string once. Entries that use RefMD5 to
+ * share their data with another entry already have that data copied in.
+ * <p>
+ * Lookups don't search the mapped tables, they go through open-addressing hash tables of
+ * primitives built when the snapshot is loaded, keyed by the MD5 held in two longs and by the CRC
+ * pair packed in one long. Looking up a ROM allocates nothing.
+ * <p>
+ * The header records the format version, the asset version of the ini and the size and
+ * modification time of the ini it was compiled from. The snapshot is compiled again as soon as any
+ * of these don't match.
+ */
+class RomDatabaseSnapshot
+{
+    private static final String TAG = "RomDatabaseSnapshot";
+
+    private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+    private static final int MAGIC = 0x4D363444; // "M64D"
+    private static final int FORMAT_VERSION = 1;
+
+    // Header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_FORMAT_VERSION = 4;
+    private static final int HEADER_ASSET_VERSION = 8;
+    private static final int HEADER_INI_LENGTH = 12;
+    private static final int HEADER_INI_LAST_MODIFIED = 20;
+    private static final int HEADER_ENTRY_COUNT = 28;
+    private static final int HEADER_CRC_COUNT = 32;
+    private static final int HEADER_STRINGS_OFFSET = 36;
+    private static final int HEADER_SIZE = 40;
+
+    // Entry layout, entries are sorted by MD5 as an unsigned 128 bit number
+    private static final int ENTRY_MD5_HIGH = 0;
+    private static final int ENTRY_MD5_LOW = 8;
+    private static final int ENTRY_CRC = 16;
+    private static final int ENTRY_GOOD_NAME = 20;
+    private static final int ENTRY_SAVE_TYPE = 24;
+    private static final int ENTRY_STATUS = 28;
+    private static final int ENTRY_PLAYERS = 32;
+    private static final int ENTRY_RUMBLE = 36;
+    private static final int ENTRY_SIZE = 40;
+
+    // CRC layout, sorted by CRC and then by position in the ini file
+    private static final int CRC_VALUE = 0;
+    private static final int CRC_ENTRY = 8;
+    private static final int CRC_SIZE = 12;
+
+    /** String offset used for missing values */
+    private static final int NO_STRING = -1;
+
+    /** Marks a free slot in the hash tables */
+    private static final int EMPTY_SLOT = -1;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private final ByteBuffer mBuffer;
+    private final int mEntryCount;
+    private final int mCrcOffset;
+    private final int mCrcCount;
+    private final int mStringsOffset;
+
+    // MD5 hash table, each slot maps an MD5 to its entry
+    private final long[] mMd5Highs;
+    private final long[] mMd5Lows;
+    private final int[] mMd5Entries;
+
+    // CRC hash table, each slot maps a CRC to the first row of the CRC table with that value
+    private final long[] mCrcValues;
+    private final int[] mCrcRows;
+
+    private RomDatabaseSnapshot( ByteBuffer buffer )
+    {
+        mBuffer = buffer;
+        mEntryCount = buffer.getInt( HEADER_ENTRY_COUNT );
+        mCrcOffset = HEADER_SIZE + mEntryCount * ENTRY_SIZE;
+        mCrcCount = buffer.getInt( HEADER_CRC_COUNT );
+        mStringsOffset = buffer.getInt( HEADER_STRINGS_OFFSET );
+
+        int md5Capacity = getTableCapacity( mEntryCount );
+        mMd5Highs = new long[md5Capacity];
+        mMd5Lows = new long[md5Capacity];
+        mMd5Entries = new int[md5Capacity];
+        Arrays.fill( mMd5Entries, EMPTY_SLOT );
+
+        for( int entry = 0; entry < mEntryCount; ++entry )
+        {
+            int offset = HEADER_SIZE + entry * ENTRY_SIZE;
+            long high = buffer.getLong( offset + ENTRY_MD5_HIGH );
+            long low = buffer.getLong( offset + ENTRY_MD5_LOW );
+
+            int slot = findMd5Slot( high, low );
+            mMd5Highs[slot] = high;
+            mMd5Lows[slot] = low;
+            mMd5Entries[slot] = entry;
+        }
+
+        int crcCapacity = getTableCapacity( mCrcCount );
+        mCrcValues = new long[crcCapacity];
+        mCrcRows = new int[crcCapacity];
+        Arrays.fill( mCrcRows, EMPTY_SLOT );
+
+        for( int row = 0; row < mCrcCount; ++row )
+        {
+            long value = getCrcValue( row );
+            int slot = findCrcSlot( value );
+            if( mCrcRows[slot] == EMPTY_SLOT )
+            {
+                mCrcValues[slot] = value;
+                mCrcRows[slot] = row;
+            }
+        }
+    }
+
+    /**
+     * Loads the snapshot of a ROM database, compiling it first if it is missing or out of date.
+     *
+     * @param mupen64plusIni Path of the ROM database
+     * @param assetVersion Asset version of the ROM database
+     * @return The snapshot
+     */
+    static RomDatabaseSnapshot load( String mupen64plusIni, int assetVersion )
+    {
+        File iniFile = new File( mupen64plusIni );
+        File snapshotFile = new File( mupen64plusIni + SNAPSHOT_EXTENSION );
+
+        ByteBuffer buffer = map( snapshotFile );
+        if( buffer != null && isCurrent( buffer, iniFile, assetVersion ) )
+            return new RomDatabaseSnapshot( buffer );
+
+        long start = System.currentTimeMillis();
+        byte[] data = compile( iniFile, assetVersion );
+        write( data, snapshotFile );
+        Log.i( TAG, "Compiled " + snapshotFile.getName() + " in " + ( System.currentTimeMillis() - start ) + " ms" );
+
+        return new RomDatabaseSnapshot( ByteBuffer.wrap( data ) );
+    }
+
+    /**
+     * @return Number of entries in the snapshot, entries are numbered from 0
+     */
+    int getEntryCount()
+    {
+        return mEntryCount;
+    }
+
+    /**
+     * @param md5 MD5 of a ROM
+     * @return Index of the entry of the ROM, or -1 if the ROM is unknown
+     */
+    int findMd5( String md5 )
+    {
+        if( md5 == null || md5.length() != 32 || !isHex( md5, 0, 32 ) )
+            return -1;
+
+        return mMd5Entries[findMd5Slot( parseHex( md5, 0, 16 ), parseHex( md5, 16, 32 ) )];
+    }
+
+    /**
+     * Finds the entries with a CRC. They are the rows of the CRC table starting at the returned
+     * row, for as long as {@link #getCrcValue(int)} matches {@link #packCrc(String)}, in the order
+     * the entries appear in the ini file.
+     *
+     * @param crc CRC of a ROM, as found in the ROM header
+     * @return First row of the CRC table with this CRC, or -1 if no entry has it
+     */
+    int findCrc( String crc )
+    {
+        long value = packCrc( crc );
+        return value == -1 ? -1 : mCrcRows[findCrcSlot( value )];
+    }
+
+    int getCrcCount()
+    {
+        return mCrcCount;
+    }
+
+    long getCrcValue( int row )
+    {
+        return mBuffer.getLong( mCrcOffset + row * CRC_SIZE + CRC_VALUE );
+    }
+
+    int getCrcEntry( int row )
+    {
+        return mBuffer.getInt( mCrcOffset + row * CRC_SIZE + CRC_ENTRY );
+    }
+
+    /**
+     * @return The slot holding an MD5, or the free slot where it belongs
+     */
+    private int findMd5Slot( long high, long low )
+    {
+        int mask = mMd5Entries.length - 1;
+        int slot = mix( high ^ low ) & mask;
+        while( mMd5Entries[slot] != EMPTY_SLOT && ( mMd5Highs[slot] != high || mMd5Lows[slot] != low ) )
+            slot = ( slot + 1 ) & mask;
+        return slot;
+    }
+
+    /**
+     * @return The slot holding a CRC, or the free slot where it belongs
+     */
+    private int findCrcSlot( long value )
+    {
+        int mask = mCrcRows.length - 1;
+        int slot = mix( value ) & mask;
+        while( mCrcRows[slot] != EMPTY_SLOT && mCrcValues[slot] != value )
+            slot = ( slot + 1 ) & mask;
+        return slot;
+    }
+
+    /**
+     * @return A power of two keeping the table at most half full
+     */
+    private static int getTableCapacity( int count )
+    {
+        int capacity = 2;
+        while( capacity < count * 2 )
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static int mix( long key )
+    {
+        // MD5s are already random, CRC pairs are mostly random, but spread the bits anyway
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) ( key ^ ( key >>> 32 ) );
+    }
+
+    String getMd5( int entry )
+    {
+        int offset = HEADER_SIZE + entry * ENTRY_SIZE;
+        return String.format( "%016X%016X", mBuffer.getLong( offset + ENTRY_MD5_HIGH ),
+                mBuffer.getLong( offset + ENTRY_MD5_LOW ) );
+    }
+
+    String getCrc( int entry )
+    {
+        return getEntryString( entry, ENTRY_CRC );
+    }
+
+    String getGoodName( int entry )
+    {
+        return getEntryString( entry, ENTRY_GOOD_NAME );
+    }
+
+    String getSaveType( int entry )
+    {
+        return getEntryString( entry, ENTRY_SAVE_TYPE );
+    }
+
+    int getStatus( int entry )
+    {
+        return mBuffer.getInt( HEADER_SIZE + entry * ENTRY_SIZE + ENTRY_STATUS );
+    }
+
+    int getPlayers( int entry )
+    {
+        return mBuffer.getInt( HEADER_SIZE + entry * ENTRY_SIZE + ENTRY_PLAYERS );
+    }
+
+    boolean getRumble( int entry )
+    {
+        return mBuffer.getInt( HEADER_SIZE + entry * ENTRY_SIZE + ENTRY_RUMBLE ) != 0;
+    }
+
+    private String getEntryString( int entry, int field )
+    {
+        int stringOffset = mBuffer.getInt( HEADER_SIZE + entry * ENTRY_SIZE + field );
+        if( stringOffset == NO_STRING )
+            return null;
+
+        // Absolute gets only, the buffer is shared between threads
+        int position = mStringsOffset + stringOffset;
+        int length = mBuffer.getShort( position ) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for( int i = 0; i < length; ++i )
+            bytes[i] = mBuffer.get( position + 2 + i );
+        return new String( bytes, UTF_8 );
+    }
+
+    private static ByteBuffer map( File snapshotFile )
+    {
+        if( !snapshotFile.isFile() )
+            return null;
+
+        try( RandomAccessFile file = new RandomAccessFile( snapshotFile, "r" ) )
+        {
+            // The mapping stays valid once the file is closed
+            FileChannel channel = file.getChannel();
+            return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        catch( IOException e )
+        {
+            Log.w( TAG, "Unable to map " + snapshotFile.getName() + ": " + e );
+            return null;
+        }
+    }
+
+    private static boolean isCurrent( ByteBuffer buffer, File iniFile, int assetVersion )
+    {
+        if( buffer.capacity() < HEADER_SIZE || buffer.getInt( HEADER_MAGIC ) != MAGIC ||
+                buffer.getInt( HEADER_FORMAT_VERSION ) != FORMAT_VERSION ||
+                buffer.getInt( HEADER_ASSET_VERSION ) != assetVersion ||
+                buffer.getLong( HEADER_INI_LENGTH ) != iniFile.length() ||
+                buffer.getLong( HEADER_INI_LAST_MODIFIED ) != iniFile.lastModified() )
+        {
+            return false;
+        }
+
+        // Guard against a truncated file
+        long entryCount = buffer.getInt( HEADER_ENTRY_COUNT );
+        long crcCount = buffer.getInt( HEADER_CRC_COUNT );
+        long stringsOffset = buffer.getInt( HEADER_STRINGS_OFFSET );
+        return entryCount >= 0 && crcCount >= 0 &&
+                stringsOffset == HEADER_SIZE + entryCount * ENTRY_SIZE + crcCount * CRC_SIZE &&
+                stringsOffset <= buffer.capacity();
+    }
+
+    /**
+     * Entry of the database while the snapshot is compiled.
+     */
+    private static class Entry
+    {
+        final long md5High;
+        final long md5Low;
+        final long crc;
+        final int position;
+        final int crcString;
+        final int goodName;
+        final int saveType;
+        final int status;
+        final int players;
+        final boolean rumble;
+        int index;
+
+        Entry( long md5High, long md5Low, long crc, int position, int crcString, int goodName, int saveType,
+               int status, int players, boolean rumble )
+        {
+            this.md5High = md5High;
+            this.md5Low = md5Low;
+            this.crc = crc;
+            this.position = position;
+            this.crcString = crcString;
+            this.goodName = goodName;
+            this.saveType = saveType;
+            this.status = status;
+            this.players = players;
+            this.rumble = rumble;
+        }
+    }
+
+    /**
+     * Interns strings into the string pool of the snapshot.
+     */
+    private static class StringPool
+    {
+        private final HashMap<String, Integer> mOffsets = new HashMap<>();
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+        int add( String value )
+        {
+            if( value == null )
+                return NO_STRING;
+
+            Integer offset = mOffsets.get( value );
+            if( offset == null )
+            {
+                byte[] bytes = value.getBytes( UTF_8 );
+                int length = Math.min( bytes.length, 0xFFFF );
+                offset = mBytes.size();
+                mBytes.write( length >> 8 );
+                mBytes.write( length & 0xFF );
+                mBytes.write( bytes, 0, length );
+                mOffsets.put( value, offset );
+            }
+            return offset;
+        }
+
+        byte[] toByteArray()
+        {
+            return mBytes.toByteArray();
+        }
+    }
+
+    private static byte[] compile( File iniFile, int assetVersion )
+    {
+        ConfigFile configFile = new ConfigFile( iniFile.getPath() );
+        StringPool strings = new StringPool();
+        List<Entry> entries = new ArrayList<>();
+        int position = 0;
+
+        for( String md5 : configFile.keySet() )
+        {
+            ConfigSection section = configFile.get( md5 );
+            if( section == null || md5.equals( ConfigFile.SECTIONLESS_NAME ) )
+                continue;
+
+            if( md5.length() != 32 || !isHex( md5, 0, 32 ) )
+            {
+                Log.w( TAG, "Skipping ROM database entry with invalid MD5 " + md5 );
+                continue;
+            }
+            long md5High = parseHex( md5, 0, 16 );
+            long md5Low = parseHex( md5, 16, 32 );
+
+            String crc = section.get( "CRC" );
+            String goodName = section.get( "GoodName" );
+
+            // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
+            // just references another entry.
+            String refMd5 = section.get( "RefMD5" );
+            if( !TextUtils.isEmpty( refMd5 ) )
+            {
+                section = configFile.get( refMd5 );
+                if( section == null )
+                    Log.e( TAG, "RefMD5 of " + md5 + " does not refer to a known ROM" );
+            }
+
+            String saveType = null;
+            int status = 0;
+            int players = 4;
+            boolean rumble = true;
+            if( section != null )
+            {
+                String rumbleString = section.get( "Rumble" );
+                saveType = section.get( "SaveType" );
+                status = parseInt( section.get( "Status" ), 0 );
+                players = parseInt( section.get( "Players" ), 4 );
+                rumble = TextUtils.isEmpty( rumbleString ) || "Yes".equals( rumbleString );
+            }
+
+            entries.add( new Entry( md5High, md5Low, packCrc( crc ), position++, strings.add( crc ),
+                    strings.add( goodName ), strings.add( saveType ), status, players, rumble ) );
+        }
+
+        Collections.sort( entries, new Comparator<Entry>()
+        {
+            @Override
+            public int compare( Entry lhs, Entry rhs )
+            {
+                return compareUnsigned( lhs.md5High, lhs.md5Low, rhs.md5High, rhs.md5Low );
+            }
+        } );
+
+        List<Entry> crcs = new ArrayList<>();
+        for( int i = 0; i < entries.size(); ++i )
+        {
+            Entry entry = entries.get( i );
+            entry.index = i;
+            if( entry.crc != -1 )
+                crcs.add( entry );
+        }
+
+        Collections.sort( crcs, new Comparator<Entry>()
+        {
+            @Override
+            public int compare( Entry lhs, Entry rhs )
+            {
+                if( lhs.crc != rhs.crc )
+                    return lhs.crc < rhs.crc ? -1 : 1;
+                return lhs.position - rhs.position;
+            }
+        } );
+
+        byte[] stringBytes = strings.toByteArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( HEADER_SIZE + entries.size() * ENTRY_SIZE +
+                crcs.size() * CRC_SIZE + stringBytes.length );
+
+        try( DataOutputStream out = new DataOutputStream( bytes ) )
+        {
+            out.writeInt( MAGIC );
+            out.writeInt( FORMAT_VERSION );
+            out.writeInt( assetVersion );
+            out.writeLong( iniFile.length() );
+            out.writeLong( iniFile.lastModified() );
+            out.writeInt( entries.size() );
+            out.writeInt( crcs.size() );
+            out.writeInt( HEADER_SIZE + entries.size() * ENTRY_SIZE + crcs.size() * CRC_SIZE );
+
+            for( Entry entry : entries )
+            {
+                out.writeLong( entry.md5High );
+                out.writeLong( entry.md5Low );
+                out.writeInt( entry.crcString );
+                out.writeInt( entry.goodName );
+                out.writeInt( entry.saveType );
+                out.writeInt( entry.status );
+                out.writeInt( entry.players );
+                out.writeInt( entry.rumble ? 1 : 0 );
+            }
+
+            for( Entry entry : crcs )
+            {
+                out.writeLong( entry.crc );
+                out.writeInt( entry.index );
+            }
+
+            out.write( stringBytes );
+        }
+        catch( IOException e )
+        {
+            // Can't happen when writing to memory
+            throw new IllegalStateException( e );
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a compiled snapshot. Other processes may be loading the snapshot at the same time, so
+     * it is written to a temporary file that replaces the old snapshot once complete.
+     */
+    private static void write( byte[] data, File snapshotFile )
+    {
+        File tempFile = null;
+        try
+        {
+            tempFile = File.createTempFile( snapshotFile.getName(), ".tmp", snapshotFile.getParentFile() );
+            try( FileOutputStream out = new FileOutputStream( tempFile ) )
+            {
+                out.write( data );
+                out.getFD().sync();
+            }
+
+            if( !tempFile.renameTo( snapshotFile ) )
+                Log.w( TAG, "Unable to replace " + snapshotFile.getName() );
+        }
+        catch( IOException e )
+        {
+            // The compiled snapshot is still used from memory
+            Log.w( TAG, "Unable to write " + snapshotFile.getName() + ": " + e );
+        }
+        finally
+        {
+            if( tempFile != null && tempFile.exists() && !tempFile.delete() )
+                Log.w( TAG, "Unable to delete " + tempFile.getName() );
+        }
+    }
+
+    /**
+     * Packs a CRC in the "XXXXXXXX XXXXXXXX" format used by the database into a single number.
+     *
+     * @return The packed CRC, or -1 if the CRC is malformed. The all ones CRC can't be told apart
+     *         and is never matched, no ROM in the database has it.
+     */
+    static long packCrc( String crc )
+    {
+        if( crc == null || crc.length() != 17 || crc.charAt( 8 ) != ' ' || !isHex( crc, 0, 8 ) ||
+                !isHex( crc, 9, 17 ) )
+        {
+            return -1;
+        }
+
+        return ( parseHex( crc, 0, 8 ) << 32 ) | parseHex( crc, 9, 17 );
+    }
+
+    private static boolean isHex( String text, int start, int end )
+    {
+        for( int i = start; i < end; ++i )
+        {
+            if( Character.digit( text.charAt( i ), 16 ) < 0 )
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses up to 16 hex digits, already checked with {@link #isHex}, without allocating.
+     */
+    private static long parseHex( String text, int start, int end )
+    {
+        long value = 0;
+        for( int i = start; i < end; ++i )
+            value = ( value << 4 ) | Character.digit( text.charAt( i ), 16 );
+        return value;
+    }
+
+    private static int parseInt( String text, int defaultValue )
+    {
+        if( TextUtils.isEmpty( text ) )
+            return defaultValue;
+
+        try
+        {
+            return Integer.parseInt( text );
+        }
+        catch( NumberFormatException e )
+        {
+            return defaultValue;
+        }
+    }
+
+    private static int compareUnsigned( long lhsHigh, long lhsLow, long rhsHigh, long rhsLow )
+    {
+        if( lhsHigh != rhsHigh )
+            return ( lhsHigh ^ Long.MIN_VALUE ) < ( rhsHigh ^ Long.MIN_VALUE ) ? -1 : 1;
+        if( lhsLow != rhsLow )
+            return ( lhsLow ^ Long.MIN_VALUE ) < ( rhsLow ^ Long.MIN_VALUE ) ? -1 : 1;
+        return 0;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Computes every digest of a ROM image in a single pass over its data: MD5 (used as the key of the
+ * ROM database), CRC32 and SHA-1 (used by No-Intro style DAT files) and the checksum the N64 boot
+ * code verifies, which should match CRC1/CRC2 in the header of a good dump.
+ * <p>
+ * Data must be fed in native big-endian (.z64) byte order. An instance can be reused after
+ * {@link #finish()}.
+ */
+public final class RomDigest
+{
+    public static final String CHECKSUM_GOOD = "good";
+    public static final String CHECKSUM_BAD = "bad";
+    public static final String CHECKSUM_UNKNOWN = "unknown";
+
+    private static final int BOOT_CODE_START = 0x40;
+    private static final int CHECKSUM_START = 0x1000;
+    private static final int CHECKSUM_END = 0x101000;
+
+    private static final int CIC_6101 = 6101;
+    private static final int CIC_6102 = 6102;
+    private static final int CIC_6103 = 6103;
+    private static final int CIC_6105 = 6105;
+    private static final int CIC_6106 = 6106;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Digests of a ROM image.
+     */
+    public static class Result
+    {
+        public final String md5;
+        /** SHA-1, or null if only the MD5 was computed */
+        public final String sha1;
+        /** CRC32, or null if only the MD5 was computed */
+        public final String crc32;
+        /** CIC chip the boot code was written for, or 0 if unknown */
+        public final int cic;
+        /** Checksum computed from the ROM data in the same format as {@link RomHeader#crc}, or null */
+        public final String checksum;
+
+        Result( String md5, String sha1, String crc32, int cic, String checksum )
+        {
+            this.md5 = md5;
+            this.sha1 = sha1;
+            this.crc32 = crc32;
+            this.cic = cic;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Compares the checksum computed from the ROM data against the one in its header.
+         *
+         * @param headerCrc The CRC pair from the ROM header, see {@link RomHeader#crc}
+         * @return One of {@link #CHECKSUM_GOOD}, {@link #CHECKSUM_BAD} or {@link #CHECKSUM_UNKNOWN}
+         */
+        public String getChecksumStatus( String headerCrc )
+        {
+            if( checksum == null || headerCrc == null )
+                return CHECKSUM_UNKNOWN;
+
+            return checksum.equals( headerCrc ) ? CHECKSUM_GOOD : CHECKSUM_BAD;
+        }
+    }
+
+    private final boolean mMd5Only;
+    private final MessageDigest mMd5;
+    private final MessageDigest mSha1;
+    private final CRC32 mCrc32;
+    private final byte[] mBootCode = new byte[CHECKSUM_START];
+    private final byte[] mCopyBuffer;
+
+    private long mPosition;
+    private int mWord;
+    private int mCic;
+    private int mT1, mT2, mT3, mT4, mT5, mT6;
+
+    /**
+     * Constructor.
+     *
+     * @param md5Only True to only compute the MD5, which is all that is needed to identify a ROM
+     */
+    public RomDigest( boolean md5Only ) throws NoSuchAlgorithmException
+    {
+        mMd5Only = md5Only;
+        mMd5 = MessageDigest.getInstance( "MD5" );
+        mSha1 = md5Only ? null : MessageDigest.getInstance( "SHA-1" );
+        mCrc32 = md5Only ? null : new CRC32();
+        mCopyBuffer = md5Only ? null : new byte[64 * 1024];
+        reset();
+    }
+
+    /**
+     * Discards any data fed so far.
+     */
+    public void reset()
+    {
+        mMd5.reset();
+        if( !mMd5Only )
+        {
+            mSha1.reset();
+            mCrc32.reset();
+        }
+        mPosition = 0;
+        mWord = 0;
+        mCic = 0;
+    }
+
+    /**
+     * Feeds the remaining bytes of a buffer. The position of the buffer is advanced to its limit.
+     */
+    public void update( ByteBuffer data )
+    {
+        if( mMd5Only )
+        {
+            // The update consumes the buffer
+            mPosition += data.remaining();
+            mMd5.update( data );
+            return;
+        }
+
+        // CRC32 only accepts arrays on older versions of Android
+        while( data.hasRemaining() )
+        {
+            int length = Math.min( data.remaining(), mCopyBuffer.length );
+            data.get( mCopyBuffer, 0, length );
+            update( mCopyBuffer, 0, length );
+        }
+    }
+
+    public void update( byte[] data, int offset, int length )
+    {
+        mMd5.update( data, offset, length );
+
+        if( !mMd5Only )
+        {
+            mSha1.update( data, offset, length );
+            mCrc32.update( data, offset, length );
+            updateChecksum( data, offset, length );
+        }
+
+        mPosition += length;
+    }
+
+    /**
+     * Completes the digests and resets this instance.
+     */
+    public Result finish()
+    {
+        Result result;
+        if( mMd5Only )
+        {
+            result = new Result( toHex( mMd5.digest() ), null, null, 0, null );
+        }
+        else
+        {
+            String checksum = null;
+            if( mPosition >= CHECKSUM_END && mCic != 0 )
+                checksum = String.format( "%08X %08X", getChecksum1(), getChecksum2() );
+
+            result = new Result( toHex( mMd5.digest() ), toHex( mSha1.digest() ),
+                    String.format( "%08X", mCrc32.getValue() ), mCic, checksum );
+        }
+
+        reset();
+        return result;
+    }
+
+    private void updateChecksum( byte[] data, int offset, int length )
+    {
+        // The boot code selects the CIC chip, keep it around until the checksummed area starts
+        if( mPosition < CHECKSUM_START )
+        {
+            int count = (int) Math.min( length, CHECKSUM_START - mPosition );
+            System.arraycopy( data, offset, mBootCode, (int) mPosition, count );
+        }
+
+        long start = Math.max( mPosition, CHECKSUM_START );
+        long end = Math.min( mPosition + length, CHECKSUM_END );
+
+        for( long address = start; address < end; ++address )
+        {
+            mWord = ( mWord << 8 ) | ( data[offset + (int) ( address - mPosition )] & 0xFF );
+
+            if( ( address & 3 ) == 3 )
+            {
+                if( address == CHECKSUM_START + 3 )
+                    startChecksum();
+
+                if( mCic != 0 )
+                    checksumWord( mWord, (int) ( address - 3 ) );
+            }
+        }
+    }
+
+    /**
+     * Identifies the CIC chip from the boot code and seeds the checksum.
+     */
+    private void startChecksum()
+    {
+        CRC32 bootCrc = new CRC32();
+        bootCrc.update( mBootCode, BOOT_CODE_START, CHECKSUM_START - BOOT_CODE_START );
+
+        int seed;
+        switch( (int) bootCrc.getValue() )
+        {
+            case 0x6170A4A1:
+            case 0x009E9EA3:
+                mCic = CIC_6101;
+                seed = 0xF8CA4DDC;
+                break;
+            case 0x90BB6CB5:
+                mCic = CIC_6102;
+                seed = 0xF8CA4DDC;
+                break;
+            case 0x0B050EE0:
+                mCic = CIC_6103;
+                seed = 0xA3886759;
+                break;
+            case 0x98BC2C86:
+                mCic = CIC_6105;
+                seed = 0xDF26F436;
+                break;
+            case 0xACC8580A:
+                mCic = CIC_6106;
+                seed = 0x1FEA617A;
+                break;
+            default:
+                mCic = 0;
+                return;
+        }
+
+        mT1 = mT2 = mT3 = mT4 = mT5 = mT6 = seed;
+    }
+
+    private void checksumWord( int d, int address )
+    {
+        // Unsigned overflow of t6 + d
+        if( ( mT6 & 0xFFFFFFFFL ) + ( d & 0xFFFFFFFFL ) > 0xFFFFFFFFL )
+            mT4++;
+
+        mT6 += d;
+        mT3 ^= d;
+
+        int r = Integer.rotateLeft( d, d & 0x1F );
+        mT5 += r;
+
+        if( ( mT2 & 0xFFFFFFFFL ) > ( d & 0xFFFFFFFFL ) )
+            mT2 ^= r;
+        else
+            mT2 ^= mT6 ^ d;
+
+        if( mCic == CIC_6105 )
+            mT1 += readInt( mBootCode, 0x0750 + ( address & 0xFF ) ) ^ d;
+        else
+            mT1 += mT5 ^ d;
+    }
+
+    private int getChecksum1()
+    {
+        switch( mCic )
+        {
+            case CIC_6103:
+                return ( mT6 ^ mT4 ) + mT3;
+            case CIC_6106:
+                return ( mT6 * mT4 ) + mT3;
+            default:
+                return mT6 ^ mT4 ^ mT3;
+        }
+    }
+
+    private int getChecksum2()
+    {
+        switch( mCic )
+        {
+            case CIC_6103:
+                return ( mT5 ^ mT2 ) + mT1;
+            case CIC_6106:
+                return ( mT5 * mT2 ) + mT1;
+            default:
+                return mT5 ^ mT2 ^ mT1;
+        }
+    }
+
+    private static int readInt( byte[] buffer, int start )
+    {
+        // @formatter:off
+        return  (buffer[start + 3] & 0xFF)       |
+                (buffer[start + 2] & 0xFF) << 8  |
+                (buffer[start + 1] & 0xFF) << 16 |
+                (buffer[start + 0] & 0xFF) << 24;
+        // @formatter:on
+    }
+
+    /**
+     * @return The bytes as uppercase hex digits
+     */
+    static String toHex( byte[] hash )
+    {
+        char[] digits = new char[hash.length * 2];
+        for( int i = 0; i < hash.length; ++i )
+        {
+            digits[i * 2] = HEX_DIGITS[( hash[i] >> 4 ) & 0xF];
+            digits[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String( digits );
+    }
+}
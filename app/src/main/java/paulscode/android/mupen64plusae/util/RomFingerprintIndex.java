@@ -0,0 +1,309 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+
+/**
+ * Persistent index of the ROM files seen by previous scans, so that unchanged files don't have to
+ * be read and hashed again.
+ * <p>
+ * Each entry is keyed by the absolute path of the file and remembers the size, modification time
+ * and inode (when available) the file had when it was hashed. A file is considered unchanged when
+ * all of these still match. ROM file names often contain brackets, so sections are titled with a
+ * hash of the path and the path itself is stored as a parameter.
+ * <p>
+ * ROMs inside archives are keyed by the archive path and entry name instead, and are considered
+ * unchanged when the CRC32 and uncompressed size recorded in the archive directory still match.
+ */
+public class RomFingerprintIndex
+{
+    /**
+     * Result of a single stat call on a file.
+     */
+    public static class FileStat
+    {
+        public final long size;
+        public final long lastModified;
+        /** Inode number, or 0 when it is not available on this platform. */
+        public final long inode;
+
+        FileStat( long size, long lastModified, long inode )
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+        }
+
+        /**
+         * Stats a file, using a single system call when the platform allows it.
+         *
+         * @param file File to stat
+         * @return The file attributes, or null if the file doesn't exist
+         */
+        public static FileStat of( File file )
+        {
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP )
+            {
+                try
+                {
+                    StructStat stat = Os.stat( file.getPath() );
+                    return new FileStat( stat.st_size, stat.st_mtime, stat.st_ino );
+                }
+                catch( ErrnoException e )
+                {
+                    return null;
+                }
+            }
+
+            long lastModified = file.lastModified();
+            return lastModified == 0 ? null : new FileStat( file.length(), lastModified / 1000, 0 );
+        }
+    }
+
+    /**
+     * Hash and header information remembered for a file.
+     */
+    public static class Fingerprint
+    {
+        public final String md5;
+        public final String crc;
+        public final String headerName;
+        public final CountryCode countryCode;
+        /** SHA-1, CRC32 and checksum status, null if recorded before they were computed */
+        public final String sha1;
+        public final String crc32;
+        public final String checksumStatus;
+
+        public Fingerprint( String md5, String crc, String headerName, CountryCode countryCode,
+                            String sha1, String crc32, String checksumStatus )
+        {
+            this.md5 = md5;
+            this.crc = crc;
+            this.headerName = headerName;
+            this.countryCode = countryCode;
+            this.sha1 = sha1;
+            this.crc32 = crc32;
+            this.checksumStatus = checksumStatus;
+        }
+    }
+
+    private final ConfigFile mIndex;
+
+    /**
+     * Constructor.
+     *
+     * @param filename File where the index is persisted
+     */
+    public RomFingerprintIndex( String filename )
+    {
+        mIndex = new ConfigFile( filename );
+    }
+
+    /**
+     * Looks up a file in the index.
+     *
+     * @param file The file to look up
+     * @param stat The current attributes of the file
+     * @return The fingerprint recorded for the file, or null if the file is unknown or has changed
+     */
+    public synchronized Fingerprint lookup( File file, FileStat stat )
+    {
+        if( stat == null )
+            return null;
+
+        String path = file.getAbsolutePath();
+        ConfigFile.ConfigSection section = mIndex.get( getSectionName( path ) );
+        if( section == null || !path.equals( section.get( "path" ) ) ||
+                !Long.toString( stat.size ).equals( section.get( "size" ) ) ||
+                !Long.toString( stat.lastModified ).equals( section.get( "lastModified" ) ) ||
+                !Long.toString( stat.inode ).equals( section.get( "inode" ) ) )
+        {
+            return null;
+        }
+
+        return readFingerprint( section );
+    }
+
+    /**
+     * Looks up a ROM inside an archive in the index.
+     *
+     * @param archive The archive containing the ROM
+     * @param entryName Name of the entry in the archive
+     * @param entryCrc CRC32 of the entry, as recorded in the archive directory
+     * @param size Uncompressed size of the entry
+     * @return The fingerprint recorded for the entry, or null if the entry is unknown or has changed
+     */
+    public synchronized Fingerprint lookupEntry( File archive, String entryName, long entryCrc, long size )
+    {
+        String path = archive.getAbsolutePath();
+        ConfigFile.ConfigSection section = mIndex.get( getSectionName( getEntryKey( path, entryName ) ) );
+        if( section == null || !path.equals( section.get( "path" ) ) ||
+                !entryName.equals( section.get( "entry" ) ) ||
+                !Long.toHexString( entryCrc ).equals( section.get( "entryCrc" ) ) ||
+                !Long.toString( size ).equals( section.get( "size" ) ) )
+        {
+            return null;
+        }
+
+        return readFingerprint( section );
+    }
+
+    /**
+     * Records the fingerprint of a file that was just hashed.
+     *
+     * @param file The file that was hashed
+     * @param stat The attributes of the file when it was hashed
+     * @param fingerprint The hash and header information of the file
+     */
+    public synchronized void update( File file, FileStat stat, Fingerprint fingerprint )
+    {
+        if( stat == null )
+            return;
+
+        String path = file.getAbsolutePath();
+        String key = getSectionName( path );
+        mIndex.put( key, "path", path );
+        mIndex.put( key, "size", Long.toString( stat.size ) );
+        mIndex.put( key, "lastModified", Long.toString( stat.lastModified ) );
+        mIndex.put( key, "inode", Long.toString( stat.inode ) );
+        writeFingerprint( key, fingerprint );
+    }
+
+    /**
+     * Records the fingerprint of a ROM inside an archive that was just hashed.
+     *
+     * @param archive The archive containing the ROM
+     * @param entryName Name of the entry in the archive
+     * @param entryCrc CRC32 of the entry, as recorded in the archive directory
+     * @param size Uncompressed size of the entry
+     * @param fingerprint The hash and header information of the ROM
+     */
+    public synchronized void updateEntry( File archive, String entryName, long entryCrc, long size,
+                                          Fingerprint fingerprint )
+    {
+        String path = archive.getAbsolutePath();
+        String key = getSectionName( getEntryKey( path, entryName ) );
+        mIndex.put( key, "path", path );
+        mIndex.put( key, "entry", entryName );
+        mIndex.put( key, "entryCrc", Long.toHexString( entryCrc ) );
+        mIndex.put( key, "size", Long.toString( size ) );
+        writeFingerprint( key, fingerprint );
+    }
+
+    private Fingerprint readFingerprint( ConfigFile.ConfigSection section )
+    {
+        String md5 = section.get( "md5" );
+        String crc = section.get( "crc" );
+        String countryCode = section.get( "countryCode" );
+
+        if( TextUtils.isEmpty( md5 ) || TextUtils.isEmpty( crc ) || TextUtils.isEmpty( countryCode ) )
+            return null;
+
+        // A corrupted entry is hashed again
+        byte countryValue;
+        try
+        {
+            countryValue = Byte.parseByte( countryCode );
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+
+        String headerName = section.get( "headerName" );
+        return new Fingerprint( md5, crc, headerName == null ? "" : headerName,
+                CountryCode.getCountryCode( countryValue ), section.get( "sha1" ),
+                section.get( "crc32" ), section.get( "checksumStatus" ) );
+    }
+
+    private void writeFingerprint( String key, Fingerprint fingerprint )
+    {
+        mIndex.put( key, "md5", fingerprint.md5 );
+        mIndex.put( key, "crc", fingerprint.crc );
+        mIndex.put( key, "headerName", fingerprint.headerName );
+        mIndex.put( key, "countryCode", Byte.toString( fingerprint.countryCode.getValue() ) );
+        if( fingerprint.sha1 != null )
+        {
+            mIndex.put( key, "sha1", fingerprint.sha1 );
+            mIndex.put( key, "crc32", fingerprint.crc32 );
+            mIndex.put( key, "checksumStatus", fingerprint.checksumStatus );
+        }
+    }
+
+    /**
+     * Writes the index to disk, if it changed since it was last written.
+     */
+    public synchronized void save()
+    {
+        mIndex.save();
+    }
+
+    /**
+     * Drops the entries of files and archives that no longer exist. This stats every file in the
+     * index, so it is only done once a scan is over.
+     */
+    public synchronized void removeMissing()
+    {
+        List<String> missing = new ArrayList<>();
+        for( String key : mIndex.keySet() )
+        {
+            String path = mIndex.get( key, "path" );
+            if( !ConfigFile.SECTIONLESS_NAME.equals( key ) && ( path == null || !new File( path ).exists() ) )
+                missing.add( key );
+        }
+
+        for( String key : missing )
+            mIndex.remove( key );
+    }
+
+    private static String getEntryKey( String archivePath, String entryName )
+    {
+        // Neither paths nor entry names can contain a NUL character
+        return archivePath + '\0' + entryName;
+    }
+
+    private static String getSectionName( String path )
+    {
+        try
+        {
+            MessageDigest digester = MessageDigest.getInstance( "MD5" );
+            return RomDigest.toHex( digester.digest( path.getBytes( "UTF-8" ) ) );
+        }
+        catch( NoSuchAlgorithmException|UnsupportedEncodingException e )
+        {
+            return Integer.toHexString( path.hashCode() );
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GallerySearchIndexTest
+{
+    @Test
+    public void findsGamesHavingEveryWord()
+    {
+        GallerySearchIndex index = index( game( "1", "Super Mario 64" ), game( "2", "Mario Kart 64" ),
+                game( "3", "Mario Party" ), game( "4", "Zelda" ) );
+
+        assertEquals( Arrays.asList( "2", "1" ), index.search( "64 MARIO" ) );
+        assertEquals( Arrays.asList( "4" ), index.search( "elda" ) );
+        assertTrue( index.search( "mario zelda" ).isEmpty() );
+        assertTrue( index.search( "yoshi" ).isEmpty() );
+    }
+
+    @Test
+    public void findsGamesByTheirOtherNames()
+    {
+        GallerySearchIndex index = index( new GallerySearchIndex.Document( "1", GallerySearchIndex.getSearchText(
+                "Super Mario 64 (U) [!]", "Super Mario 64", "sm64.z64", "SUPER MARIO 64" ), "Super Mario 64" ),
+                game( "2", "Zelda" ) );
+
+        assertEquals( Arrays.asList( "1" ), index.search( "sm64" ) );
+        assertEquals( Arrays.asList( "1" ), index.search( "(u)" ) );
+    }
+
+    @Test
+    public void checksShortWordsAgainstEveryGame()
+    {
+        GallerySearchIndex index = index( game( "1", "Mario" ), game( "2", "Zelda" ), game( "3", "F-Zero X" ) );
+
+        assertEquals( Arrays.asList( "2", "3" ), index.search( "z" ) );
+        assertEquals( Arrays.asList( "3" ), index.search( "x z" ) );
+    }
+
+    @Test
+    public void narrowingDownGivesTheSameResultsAsSearchingAgain()
+    {
+        List<GallerySearchIndex.Document> games = Arrays.asList( game( "1", "Super Mario 64" ),
+                game( "2", "Mario Kart 64" ), game( "3", "Mario Party" ), game( "4", "Mario Golf" ),
+                game( "5", "Dr. Mario 64" ), game( "6", "Paper Mario" ), game( "7", "Kirby 64" ) );
+        GallerySearchIndex typing = index( games );
+
+        for( String query : new String[]{ "m", "ma", "mar", "mari", "mario", "mario ", "mario k", "mario ka",
+                "mario", "mari", "p", "pa", "pap" } )
+        {
+            assertEquals( query, index( games ).search( query ), typing.search( query ) );
+        }
+    }
+
+    @Test
+    public void updatingStopsNarrowingDown()
+    {
+        GallerySearchIndex index = index( game( "1", "Mario Kart 64" ) );
+        assertEquals( Arrays.asList( "1" ), index.search( "mario" ) );
+
+        index.update( Arrays.asList( game( "2", "Mario Golf" ) ), Collections.<String>emptyList() );
+
+        assertEquals( Arrays.asList( "2" ), index.search( "mario g" ) );
+    }
+
+    @Test
+    public void ranksMatchesByWhereTheyAppear()
+    {
+        GallerySearchIndex index = index( new GallerySearchIndex.Document( "1", GallerySearchIndex.getSearchText(
+                "Racing", null, "kart.z64", null ), "Racing" ), game( "2", "Superkart" ), game( "3", "Mario Kart 64" ),
+                game( "4", "Kart Racer" ) );
+
+        assertEquals( Arrays.asList( "4", "3", "2", "1" ), index.search( "kart" ) );
+    }
+
+    @Test
+    public void sortsEqualMatchesByDisplayName()
+    {
+        GallerySearchIndex index = index( game( "1", "Mario Party" ), game( "2", "mario kart 64" ),
+                game( "3", "Mario Golf" ), game( "4", "Mario Golf" ) );
+
+        assertEquals( Arrays.asList( "3", "4", "2", "1" ), index.search( "mario" ) );
+
+        // Only the display name changed
+        index.update( Arrays.asList( new GallerySearchIndex.Document( "2", GallerySearchIndex.getSearchText(
+                "mario kart 64", null, null, null ), "Mario Kart 64 (U)" ) ), Collections.<String>emptyList() );
+        assertEquals( Arrays.asList( "3", "4", "2", "1" ), index.search( "mario" ) );
+
+        index.update( Arrays.asList( new GallerySearchIndex.Document( "2", GallerySearchIndex.getSearchText(
+                "mario kart 64", null, null, null ), "Mario Aaa Kart 64" ) ), Collections.<String>emptyList() );
+        assertEquals( Arrays.asList( "2", "3", "4", "1" ), index.search( "mario" ) );
+    }
+
+    @Test
+    public void findsRenamedGamesByTheirNewNameOnly()
+    {
+        GallerySearchIndex index = index( game( "1", "Mario Kart 64" ), game( "2", "Zelda" ) );
+
+        index.update( Arrays.asList( game( "1", "Kart Racer" ) ), Collections.<String>emptyList() );
+
+        assertTrue( index.search( "mario" ).isEmpty() );
+        assertEquals( Arrays.asList( "1" ), index.search( "kart" ) );
+    }
+
+    @Test
+    public void removesGames()
+    {
+        GallerySearchIndex index = index( game( "1", "Mario Kart 64" ), game( "2", "Mario Golf" ) );
+
+        index.update( Collections.<GallerySearchIndex.Document>emptyList(), Arrays.asList( "1", "unknown" ) );
+        assertEquals( Arrays.asList( "2" ), index.search( "mario" ) );
+
+        index.replace( Arrays.asList( game( "3", "Mario Party" ) ) );
+        assertEquals( Arrays.asList( "3" ), index.search( "mario" ) );
+
+        // A game can come back after being removed
+        index.update( Arrays.asList( game( "1", "Mario Kart 64" ) ), Collections.<String>emptyList() );
+        assertEquals( Arrays.asList( "1", "3" ), index.search( "mario" ) );
+    }
+
+    @Test
+    public void compactsOnceMostGamesAreRemoved()
+    {
+        List<GallerySearchIndex.Document> games = new ArrayList<>();
+        for( int i = 0; i < 200; ++i )
+            games.add( game( String.format( "%03d", i ), String.format( "Game %03d", i ) ) );
+        GallerySearchIndex index = index( games );
+
+        // A few removals are only skipped when searching
+        List<GallerySearchIndex.Document> kept = new ArrayList<>( games.subList( 10, 200 ) );
+        index.replace( kept );
+        assertEquals( 200, index.getDocumentCount() );
+        assertEquals( Arrays.asList( "055", "155" ), index.search( "55" ) );
+        assertFalse( index.search( "5" ).contains( "005" ) );
+
+        // The index is rebuilt without the removed games once they are the majority
+        kept = new ArrayList<>( games.subList( 150, 200 ) );
+        index.replace( kept );
+        assertEquals( 50, index.getDocumentCount() );
+
+        assertEquals( Arrays.asList( "150" ), index.search( "game 150" ) );
+        assertTrue( index.search( "game 149" ).isEmpty() );
+        assertEquals( keys( kept ), index.search( "game" ) );
+
+        // Games added after compacting are found with the others
+        kept.add( game( "added", "Game 999" ) );
+        index.update( kept.subList( kept.size() - 1, kept.size() ), Collections.<String>emptyList() );
+        assertEquals( Arrays.asList( "added" ), index.search( "game 999" ) );
+        assertEquals( keys( kept ), index.search( "game" ) );
+    }
+
+    private static GallerySearchIndex index( GallerySearchIndex.Document... games )
+    {
+        return index( Arrays.asList( games ) );
+    }
+
+    private static GallerySearchIndex index( List<GallerySearchIndex.Document> games )
+    {
+        GallerySearchIndex index = new GallerySearchIndex();
+        index.replace( games );
+        return index;
+    }
+
+    /**
+     * Creates a game searched by its name only.
+     */
+    private static GallerySearchIndex.Document game( String key, String name )
+    {
+        return new GallerySearchIndex.Document( key, GallerySearchIndex.getSearchText( name, null, null, null ), name );
+    }
+
+    private static List<String> keys( List<GallerySearchIndex.Document> games )
+    {
+        List<String> keys = new ArrayList<>();
+        for( GallerySearchIndex.Document game : games )
+            keys.add( game.key );
+        return keys;
+    }
+}
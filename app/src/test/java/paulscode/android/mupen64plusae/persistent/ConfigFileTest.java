@@ -0,0 +1,247 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigFileTest
+{
+    /** Where the config files bundled with the app are, relative to the module. */
+    static final File ASSETS_DIR = new File( "src/main/assets/mupen64plus_data" );
+
+    private File mTempDir;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mTempDir = Files.createTempDirectory( "ConfigFileTest" ).toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = mTempDir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+                file.delete();
+        }
+        mTempDir.delete();
+    }
+
+    @Test
+    public void readsEveryBundledFileLikeTheReferenceParser() throws IOException
+    {
+        for( File asset : getBundledFiles() )
+        {
+            byte[] data = Files.readAllBytes( asset.toPath() );
+            ReferenceConfig expected = new ReferenceConfig( data );
+
+            for( boolean lazy : new boolean[]{ false, true } )
+            {
+                String message = asset.getName() + ( lazy ? " lazy" : " eager" );
+                ConfigFile config = new ConfigFile( copy( asset, data ).getPath(), lazy );
+
+                assertEquals( message, new ArrayList<>( expected.sections.keySet() ),
+                        new ArrayList<>( config.keySet() ) );
+                for( String title : config.keySet() )
+                {
+                    for( Map.Entry<String, String> parameter : expected.getParameters( title ).entrySet() )
+                        assertEquals( message, parameter.getValue(), config.get( title, parameter.getKey() ) );
+                }
+                assertArrayEquals( message, expected.toBytes(), toBytes( config ) );
+                assertFalse( message, config.isDirty() );
+            }
+        }
+    }
+
+    @Test
+    public void savesEveryBundledFileWithEditsLikeTheReferenceParser() throws IOException
+    {
+        for( File asset : getBundledFiles() )
+        {
+            byte[] data = Files.readAllBytes( asset.toPath() );
+
+            for( boolean lazy : new boolean[]{ false, true } )
+            {
+                String message = asset.getName() + ( lazy ? " lazy" : " eager" );
+                File file = copy( asset, data );
+                ConfigFile config = new ConfigFile( file.getPath(), lazy );
+                ReferenceConfig expected = new ReferenceConfig( data );
+
+                edit( config, expected );
+                assertTrue( message, config.isDirty() );
+                assertTrue( message, config.save() );
+                assertArrayEquals( message, expected.toBytes(), Files.readAllBytes( file.toPath() ) );
+
+                // Loading the saved file again gives it back unchanged
+                ConfigFile saved = new ConfigFile( file.getPath(), lazy );
+                assertEquals( message, "Zoé 日本", saved.get( "Test Section é", "Name" ) );
+                assertArrayEquals( message, expected.toBytes(), toBytes( saved ) );
+            }
+        }
+    }
+
+    @Test
+    public void readsAndWritesUtf8() throws IOException
+    {
+        String text = "# Café\n[Pokémon Snap (E)]\nGoodName=ポケモンスナップ\n; ünïcödé comment\nPlayers=1\n";
+        File file = write( "utf8.ini", text );
+
+        for( boolean lazy : new boolean[]{ false, true } )
+        {
+            ConfigFile config = new ConfigFile( file.getPath(), lazy );
+
+            assertEquals( Arrays.asList( ConfigFile.SECTIONLESS_NAME, "Pokémon Snap (E)" ),
+                    new ArrayList<>( config.keySet() ) );
+            assertEquals( "ポケモンスナップ", config.get( "Pokémon Snap (E)", "GoodName" ) );
+            assertArrayEquals( text.getBytes( StandardCharsets.UTF_8 ), toBytes( config ) );
+        }
+    }
+
+    @Test
+    public void normalizesLinesLikeTheReferenceParser() throws IOException
+    {
+        String text = "# preamble\r\n[First]\r\n  Key = value  \r\nEmpty=\r\nkey=other\rDup=1\nDup=2\n\n" +
+                "  [ Second ]  \n; comment  \n\tTabbed=\tyes\t\n[Third\nnot=read\n";
+        File file = write( "lines.ini", text );
+        ReferenceConfig expected = new ReferenceConfig( text.getBytes( StandardCharsets.UTF_8 ) );
+
+        for( boolean lazy : new boolean[]{ false, true } )
+        {
+            ConfigFile config = new ConfigFile( file.getPath(), lazy );
+
+            assertEquals( "value", config.get( "First", "Key" ) );
+            assertEquals( "2", config.get( "First", "Dup" ) );
+            assertNull( config.get( "First", "Empty" ) );
+            assertEquals( "yes", config.get( "Second", "Tabbed" ) );
+            assertNull( config.get( "Third" ) );
+            assertArrayEquals( expected.toBytes(), toBytes( config ) );
+        }
+    }
+
+    /**
+     * Lists the config files bundled with the app.
+     */
+    static List<File> getBundledFiles()
+    {
+        List<File> files = new ArrayList<>();
+        addConfigFiles( ASSETS_DIR, files );
+        assertFalse( "No config files in " + ASSETS_DIR.getAbsolutePath(), files.isEmpty() );
+        return files;
+    }
+
+    private static void addConfigFiles( File dir, List<File> files )
+    {
+        File[] children = dir.listFiles();
+        if( children == null )
+            return;
+
+        Arrays.sort( children );
+        for( File child : children )
+        {
+            if( child.isDirectory() )
+                addConfigFiles( child, files );
+            else if( child.getName().endsWith( ".ini" ) || child.getName().endsWith( ".cfg" ) )
+                files.add( child );
+        }
+    }
+
+    /**
+     * Changes, removes and adds parameters in every few sections, and adds a section, the same
+     * way in both configs.
+     */
+    private static void edit( ConfigFile config, ReferenceConfig expected )
+    {
+        int count = 0;
+        for( String title : new ArrayList<>( expected.sections.keySet() ) )
+        {
+            if( count++ % 5 != 0 )
+                continue;
+
+            List<String> parameters = new ArrayList<>( expected.getParameters( title ).keySet() );
+            if( parameters.size() > 0 )
+            {
+                String changed = expected.getParameters( title ).get( parameters.get( 0 ) ) + " é";
+                config.put( title, parameters.get( 0 ), changed );
+                expected.put( title, parameters.get( 0 ), changed );
+            }
+            if( parameters.size() > 1 )
+            {
+                config.put( title, parameters.get( 1 ), null );
+                expected.put( title, parameters.get( 1 ), null );
+            }
+            config.put( title, "AddedKey", "日本" );
+            expected.put( title, "AddedKey", "日本" );
+        }
+
+        config.put( "Test Section é", "Name", "Zoé 日本" );
+        expected.put( "Test Section é", "Name", "Zoé 日本" );
+    }
+
+    private File copy( File asset, byte[] data ) throws IOException
+    {
+        File file = new File( mTempDir, asset.getName() );
+        Files.write( file.toPath(), data );
+        new File( file.getPath() + ".index" ).delete();
+        return file;
+    }
+
+    private File write( String name, String text ) throws IOException
+    {
+        File file = new File( mTempDir, name );
+        Files.write( file.toPath(), text.getBytes( StandardCharsets.UTF_8 ) );
+        return file;
+    }
+
+    /**
+     * Writes every section the way {@link ConfigFile#save()} does, without touching the file.
+     */
+    private static byte[] toBytes( ConfigFile config ) throws IOException
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter( stream, StandardCharsets.UTF_8 );
+        for( String title : config.keySet() )
+            config.get( title ).save( writer );
+        writer.flush();
+        return stream.toByteArray();
+    }
+}
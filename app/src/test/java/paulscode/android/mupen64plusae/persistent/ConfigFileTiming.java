@@ -0,0 +1,87 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Times parsing the bundled mupen64plus.ini with the reference parser and with {@link ConfigFile},
+ * eagerly and lazily. This isn't a unit test, run it by hand from the app module.
+ */
+public class ConfigFileTiming
+{
+    private static final int RUNS = 50;
+
+    public static void main( String[] args ) throws Exception
+    {
+        File source = new File( ConfigFileTest.ASSETS_DIR, "mupen64plus.ini" );
+        byte[] data = Files.readAllBytes( source.toPath() );
+        File file = File.createTempFile( "mupen64plus", ".ini" );
+        File indexFile = new File( file.getPath() + ".index" );
+        Files.write( file.toPath(), data );
+
+        try
+        {
+            // The first runs warm up the JIT and the page cache
+            for( int i = 0; i < RUNS; ++i )
+            {
+                new ReferenceConfig( data );
+                new ConfigFile( file.getPath() );
+            }
+
+            long start = System.nanoTime();
+            for( int i = 0; i < RUNS; ++i )
+                new ReferenceConfig( data );
+            print( "reference", start );
+
+            start = System.nanoTime();
+            for( int i = 0; i < RUNS; ++i )
+                new ConfigFile( file.getPath() );
+            print( "eager", start );
+
+            start = System.nanoTime();
+            for( int i = 0; i < RUNS; ++i )
+            {
+                indexFile.delete();
+                new ConfigFile( file.getPath(), true );
+            }
+            print( "lazy, scanning", start );
+
+            start = System.nanoTime();
+            for( int i = 0; i < RUNS; ++i )
+                new ConfigFile( file.getPath(), true );
+            print( "lazy, indexed", start );
+        }
+        finally
+        {
+            file.delete();
+            indexFile.delete();
+        }
+    }
+
+    private static void print( String name, long start )
+    {
+        System.out.println( String.format( Locale.US, "%-16s %6.2f ms", name,
+                ( System.nanoTime() - start ) / 1e6 / RUNS ) );
+    }
+}
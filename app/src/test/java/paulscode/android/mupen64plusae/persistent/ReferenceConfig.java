@@ -0,0 +1,188 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The line by line parser {@link ConfigFile} used before it parsed files in a single pass, kept
+ * as a reference for what a config file must look like once it is saved again.
+ */
+class ReferenceConfig
+{
+    /** Sections by title, each holding its lines in file order. */
+    final LinkedHashMap<String, List<Line>> sections = new LinkedHashMap<>();
+
+    static class Line
+    {
+        /** The whole line, or everything up to the equal sign of a parameter. */
+        final String text;
+        final String parameter;
+        String value;
+
+        Line( String text, String parameter, String value )
+        {
+            this.text = text;
+            this.parameter = parameter;
+            this.value = value;
+        }
+    }
+
+    ReferenceConfig( byte[] data ) throws IOException
+    {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( data ),
+                StandardCharsets.UTF_8 ) );
+
+        String name = ConfigFile.SECTIONLESS_NAME;
+        while( name != null )
+        {
+            List<Line> lines = new ArrayList<>();
+            if( !name.equals( ConfigFile.SECTIONLESS_NAME ) )
+                lines.add( new Line( "[" + name + "]", null, null ) );
+            sections.put( name, lines );
+
+            name = readSection( reader, lines );
+        }
+    }
+
+    /**
+     * Reads parameters until the next section title.
+     *
+     * @return The title of the next section, or null if the file ended or has bad syntax.
+     */
+    private static String readSection( BufferedReader reader, List<Line> lines ) throws IOException
+    {
+        String fullLine;
+        while( ( fullLine = reader.readLine() ) != null )
+        {
+            String line = fullLine.trim();
+            if( line.isEmpty() || line.startsWith( "#" ) || line.startsWith( ";" ) || line.startsWith( "//" ) )
+            {
+                lines.add( new Line( fullLine, null, null ) );
+            }
+            else if( line.contains( "=" ) )
+            {
+                int x = line.indexOf( '=' );
+                if( x < 1 )
+                    return null;
+
+                String parameter = line.substring( 0, x ).trim();
+                String value = line.substring( x + 1 ).trim();
+                if( value.isEmpty() )
+                    continue;
+
+                Line existing = find( lines, parameter );
+                if( existing != null )
+                    existing.value = value;
+                else
+                    lines.add( new Line( fullLine.substring( 0, fullLine.indexOf( '=' ) + 1 ), parameter, value ) );
+            }
+            else if( line.contains( "[" ) )
+            {
+                int x = line.indexOf( '[' );
+                int y = line.indexOf( ']' );
+                if( y <= x + 1 )
+                    return null;
+
+                String name = line.substring( x + 1, y ).trim();
+                return name.isEmpty() ? null : name;
+            }
+            else
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static Line find( List<Line> lines, String parameter )
+    {
+        for( Line line : lines )
+        {
+            if( parameter.equals( line.parameter ) )
+                return line;
+        }
+        return null;
+    }
+
+    /**
+     * Replaces every instance of a parameter, whatever its case, with a new line at the end of
+     * its section.
+     */
+    void put( String sectionTitle, String parameter, String value )
+    {
+        List<Line> lines = sections.get( sectionTitle );
+        if( lines == null )
+        {
+            lines = new ArrayList<>();
+            lines.add( new Line( "[" + sectionTitle + "]", null, null ) );
+            sections.put( sectionTitle, lines );
+        }
+
+        for( Iterator<Line> iterator = lines.iterator(); iterator.hasNext(); )
+        {
+            if( parameter.equalsIgnoreCase( iterator.next().parameter ) )
+                iterator.remove();
+        }
+
+        if( value != null && !value.isEmpty() )
+            lines.add( new Line( parameter + "=", parameter, value ) );
+    }
+
+    /**
+     * @return The parameters of a section with their values, in file order.
+     */
+    Map<String, String> getParameters( String sectionTitle )
+    {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for( Line line : sections.get( sectionTitle ) )
+        {
+            if( line.parameter != null )
+                parameters.put( line.parameter, line.value );
+        }
+        return parameters;
+    }
+
+    byte[] toBytes()
+    {
+        StringBuilder builder = new StringBuilder();
+        for( List<Line> lines : sections.values() )
+        {
+            for( Line line : lines )
+            {
+                builder.append( line.text );
+                if( line.parameter != null )
+                    builder.append( line.value );
+                builder.append( '\n' );
+            }
+        }
+        return builder.toString().getBytes( StandardCharsets.UTF_8 );
+    }
+}
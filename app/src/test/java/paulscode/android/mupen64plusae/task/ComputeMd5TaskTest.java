@@ -0,0 +1,213 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.task;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Random;
+
+import paulscode.android.mupen64plusae.util.RomDigest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ComputeMd5TaskTest
+{
+    private static final int MB = 1024 * 1024;
+
+    // Sizes around the 1 MB swap buffer and the 8 MB mapped window, including tails that don't
+    // fill a whole long or a whole word
+    private static final int[] SIZES = { 7, 64, MB - 2, MB, MB + 6, 8 * MB - 4, 8 * MB, 8 * MB + 1, 8 * MB + 8,
+            9 * MB + 2, 16 * MB + 3 };
+
+    @Test
+    public void fileAndStreamGiveTheSameMd5InEveryByteOrder() throws Exception
+    {
+        for( int size : SIZES )
+        {
+            byte[] rom = createRom( size );
+            String expected = md5( rom );
+
+            for( RomFormat format : RomFormat.values() )
+            {
+                File file = writeRom( format.encode( rom ) );
+                try
+                {
+                    String message = format + " " + size;
+                    assertEquals( message, expected, ComputeMd5Task.computeMd5( file ) );
+                    assertEquals( message, expected, computeMd5FromStream( file ) );
+                }
+                finally
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fileAndStreamGiveTheSameDigests() throws Exception
+    {
+        for( int size : new int[]{ MB + 6, 8 * MB + 2 } )
+        {
+            byte[] rom = createRom( size );
+            String expected = md5( rom );
+
+            for( RomFormat format : RomFormat.values() )
+            {
+                File file = writeRom( format.encode( rom ) );
+                try
+                {
+                    String message = format + " " + size;
+                    RomDigest.Result fromFile = ComputeMd5Task.computeDigests( file );
+                    RomDigest.Result fromStream = computeDigestsFromStream( file );
+
+                    assertNotNull( message, fromFile );
+                    assertEquals( message, expected, fromFile.md5 );
+                    assertEquals( message, fromFile.md5, fromStream.md5 );
+                    assertEquals( message, fromFile.sha1, fromStream.sha1 );
+                    assertEquals( message, fromFile.crc32, fromStream.crc32 );
+                    assertEquals( message, fromFile.cic, fromStream.cic );
+                    assertEquals( message, fromFile.checksum, fromStream.checksum );
+                }
+                finally
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The ways a ROM image is stored on disk, identified by its first byte.
+     */
+    enum RomFormat
+    {
+        /** Native big-endian order */
+        Z64( 1 ),
+        /** Every 16-bit half word swapped */
+        V64( 2 ),
+        /** Every 32-bit word swapped */
+        N64( 4 );
+
+        private final int mStep;
+
+        RomFormat( int step )
+        {
+            mStep = step;
+        }
+
+        /**
+         * Converts an image in native byte order to this format. Bytes that don't fill a whole unit at
+         * the end are left as they are.
+         */
+        byte[] encode( byte[] rom )
+        {
+            byte[] encoded = rom.clone();
+            for( int i = 0; i + mStep <= encoded.length; i += mStep )
+            {
+                for( int j = 0; j < mStep / 2; ++j )
+                {
+                    byte temp = encoded[i + j];
+                    encoded[i + j] = encoded[i + mStep - 1 - j];
+                    encoded[i + mStep - 1 - j] = temp;
+                }
+            }
+            return encoded;
+        }
+    }
+
+    static String computeMd5FromStream( File file ) throws IOException, NoSuchAlgorithmException
+    {
+        InputStream inputStream = new BufferedInputStream( new FileInputStream( file ) );
+        try
+        {
+            return ComputeMd5Task.computeMd5( inputStream );
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    private static RomDigest.Result computeDigestsFromStream( File file ) throws IOException, NoSuchAlgorithmException
+    {
+        InputStream inputStream = new BufferedInputStream( new FileInputStream( file ) );
+        try
+        {
+            return ComputeMd5Task.computeDigests( inputStream );
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Builds a pseudo-random image in native byte order, starting with the big-endian magic so
+     * only the encoded copies are detected as swapped.
+     */
+    static byte[] createRom( int size )
+    {
+        byte[] rom = new byte[size];
+        new Random( size ).nextBytes( rom );
+        rom[0] = (byte) 0x80;
+        if( size > 3 )
+        {
+            rom[1] = 0x37;
+            rom[2] = 0x12;
+            rom[3] = 0x40;
+        }
+        return rom;
+    }
+
+    static File writeRom( byte[] rom ) throws IOException
+    {
+        File file = File.createTempFile( "rom", ".n64" );
+        FileOutputStream outputStream = new FileOutputStream( file );
+        try
+        {
+            outputStream.write( rom );
+        }
+        finally
+        {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private static String md5( byte[] data ) throws NoSuchAlgorithmException
+    {
+        StringBuilder builder = new StringBuilder();
+        for( byte b : MessageDigest.getInstance( "MD5" ).digest( data ) )
+            builder.append( String.format( Locale.US, "%02X", b ) );
+        return builder.toString();
+    }
+}
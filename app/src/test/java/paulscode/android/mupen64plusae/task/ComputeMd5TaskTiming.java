@@ -0,0 +1,75 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Times the MD5 of ROM images read from a file and from a stream. This isn't a unit test, run it
+ * by hand with the sizes to time in MB as arguments, e.g. {@code ComputeMd5TaskTiming 8 32 64}.
+ */
+public class ComputeMd5TaskTiming
+{
+    private static final int RUNS = 5;
+
+    public static void main( String[] args ) throws Exception
+    {
+        if( args.length == 0 )
+            args = new String[]{ "8", "32", "64" };
+
+        for( String arg : args )
+        {
+            byte[] rom = ComputeMd5TaskTest.createRom( Integer.parseInt( arg ) * 1024 * 1024 );
+
+            for( ComputeMd5TaskTest.RomFormat format : ComputeMd5TaskTest.RomFormat.values() )
+            {
+                File file = ComputeMd5TaskTest.writeRom( format.encode( rom ) );
+                try
+                {
+                    // The first run warms up the JIT and the page cache
+                    ComputeMd5Task.computeMd5( file );
+                    ComputeMd5TaskTest.computeMd5FromStream( file );
+
+                    long fileTime = 0;
+                    long streamTime = 0;
+                    for( int i = 0; i < RUNS; ++i )
+                    {
+                        long start = System.nanoTime();
+                        ComputeMd5Task.computeMd5( file );
+                        fileTime += System.nanoTime() - start;
+
+                        start = System.nanoTime();
+                        ComputeMd5TaskTest.computeMd5FromStream( file );
+                        streamTime += System.nanoTime() - start;
+                    }
+
+                    System.out.println( String.format( Locale.US, "%s %4s MB: file %7.1f ms, stream %7.1f ms",
+                            format, arg, fileTime / 1e6 / RUNS, streamTime / 1e6 / RUNS ) );
+                }
+                finally
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
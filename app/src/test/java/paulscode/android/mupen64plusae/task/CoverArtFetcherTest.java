@@ -0,0 +1,335 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.task;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoverArtFetcherTest
+{
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Sat, 01 Jan 2022 00:00:00 GMT";
+
+    /** Stands in for BitmapFactory, which is only a stub in local unit tests */
+    private static final CoverArtFetcher.ImageValidator IMAGE_VALIDATOR = new CoverArtFetcher.ImageValidator()
+    {
+        @Override
+        public boolean isValid( File file )
+        {
+            try
+            {
+                return new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 ).startsWith( "IMAGE" );
+            }
+            catch( IOException e )
+            {
+                return false;
+            }
+        }
+    };
+
+    private HttpServer mServer;
+    private File mDir;
+    private File mValidatorsFile;
+
+    /** Requests received by the server, by path */
+    private final Map<String, List<HttpExchange>> mRequests = Collections.synchronizedMap(
+            new HashMap<String, List<HttpExchange>>() );
+
+    /** Order in which the server answered requests */
+    private final List<String> mAnswered = Collections.synchronizedList( new ArrayList<String>() );
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDir = Files.createTempDirectory( "CoverArtFetcherTest" ).toFile();
+        mValidatorsFile = new File( mDir, "validators.cfg" );
+        mServer = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+        mServer.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        mServer.stop( 0 );
+
+        File[] files = mDir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+                file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void revalidatesOldArtWithConditionalRequests() throws IOException
+    {
+        final AtomicInteger served = new AtomicInteger();
+        serve( "/art.png", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                if( ETAG.equals( exchange.getRequestHeaders().getFirst( "If-None-Match" ) ) &&
+                        LAST_MODIFIED.equals( exchange.getRequestHeaders().getFirst( "If-Modified-Since" ) ) )
+                {
+                    respond( exchange, 304, null );
+                    return;
+                }
+
+                exchange.getResponseHeaders().add( "ETag", ETAG );
+                exchange.getResponseHeaders().add( "Last-Modified", LAST_MODIFIED );
+                respond( exchange, 200, "IMAGE " + served.incrementAndGet() );
+            }
+        } );
+        CoverArtFetcher.Request request = request( "/art.png", "art.png" );
+
+        assertTrue( fetch( request ) );
+        assertEquals( "IMAGE 1", read( request.artPath ) );
+
+        // Recently checked art is not requested again
+        assertTrue( fetch( request ) );
+        assertEquals( 1, getRequests( "/art.png" ).size() );
+
+        // Old art is revalidated with the validators of the first download, and kept
+        age( "art.png" );
+        assertTrue( fetch( request ) );
+        assertEquals( 2, getRequests( "/art.png" ).size() );
+        assertNull( getRequests( "/art.png" ).get( 0 ).getRequestHeaders().getFirst( "If-None-Match" ) );
+        assertEquals( "IMAGE 1", read( request.artPath ) );
+        assertEquals( 1, served.get() );
+
+        // Revalidating counts as a check
+        assertTrue( fetch( request ) );
+        assertEquals( 2, getRequests( "/art.png" ).size() );
+    }
+
+    @Test
+    public void backsOffWithoutHoldingTheHost() throws IOException
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+        serve( "/busy.png", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                switch( attempts.incrementAndGet() )
+                {
+                    case 1:
+                        respond( exchange, 429, "Slow down" );
+                        break;
+                    case 2:
+                        respond( exchange, 503, "Unavailable" );
+                        break;
+                    default:
+                        respond( exchange, 200, "IMAGE busy" );
+                        break;
+                }
+            }
+        } );
+        serve( "/other.png", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                respond( exchange, 200, "IMAGE other" );
+            }
+        } );
+
+        // Both downloads share a single connection to the host
+        CoverArtFetcher fetcher = new CoverArtFetcher( 2, 1, mValidatorsFile.getPath(), IMAGE_VALIDATOR );
+        CoverArtFetcher.Request busy = request( "/busy.png", "busy.png" );
+        CoverArtFetcher.Request other = request( "/other.png", "other.png" );
+        final Map<String, Boolean> results = Collections.synchronizedMap( new HashMap<String, Boolean>() );
+        fetcher.fetch( Arrays.asList( busy, other ), new CoverArtFetcher.FetchListener()
+        {
+            @Override
+            public void onArtFetched( CoverArtFetcher.Request request, boolean success )
+            {
+                results.put( request.artPath, success );
+            }
+        } );
+
+        assertEquals( Boolean.TRUE, results.get( busy.artPath ) );
+        assertEquals( Boolean.TRUE, results.get( other.artPath ) );
+        assertEquals( 3, attempts.get() );
+        assertEquals( "IMAGE busy", read( busy.artPath ) );
+
+        // The other art didn't wait for the retries of the busy one
+        assertTrue( mAnswered.toString(), mAnswered.indexOf( "/other.png" ) < mAnswered.lastIndexOf( "/busy.png" ) );
+    }
+
+    @Test
+    public void keepsOldArtWhenTheDownloadIsNotAnImage() throws IOException
+    {
+        serve( "/art.png", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                respond( exchange, 200, "<html>Not found</html>" );
+            }
+        } );
+        CoverArtFetcher.Request request = request( "/art.png", "art.png" );
+        Files.write( new File( request.artPath ).toPath(), "IMAGE old".getBytes( StandardCharsets.UTF_8 ) );
+        age( "art.png" );
+
+        assertTrue( fetch( request ) );
+        assertEquals( "IMAGE old", read( request.artPath ) );
+        assertEquals( Arrays.asList( "art.png", "validators.cfg" ), list( mDir ) );
+
+        // The server is not asked again for a while
+        assertTrue( fetch( request ) );
+        assertEquals( 1, getRequests( "/art.png" ).size() );
+    }
+
+    @Test
+    public void doesNotKeepAnInvalidImageWhenThereIsNoArt() throws IOException
+    {
+        serve( "/art.png", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                respond( exchange, 200, "<html>Not found</html>" );
+            }
+        } );
+        CoverArtFetcher.Request request = request( "/art.png", "art.png" );
+
+        assertFalse( fetch( request ) );
+        assertEquals( Arrays.asList( "validators.cfg" ), list( mDir ) );
+
+        // The server is not asked again for a while
+        assertFalse( fetch( request ) );
+        assertEquals( 1, getRequests( "/art.png" ).size() );
+    }
+
+    private void serve( final String path, final HttpHandler handler )
+    {
+        mServer.createContext( path, new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                getRequests( path ).add( exchange );
+                handler.handle( exchange );
+                mAnswered.add( path );
+            }
+        } );
+    }
+
+    private List<HttpExchange> getRequests( String path )
+    {
+        synchronized( mRequests )
+        {
+            List<HttpExchange> requests = mRequests.get( path );
+            if( requests == null )
+            {
+                requests = Collections.synchronizedList( new ArrayList<HttpExchange>() );
+                mRequests.put( path, requests );
+            }
+            return requests;
+        }
+    }
+
+    private static void respond( HttpExchange exchange, int code, String body ) throws IOException
+    {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes( StandardCharsets.UTF_8 );
+        exchange.sendResponseHeaders( code, bytes.length == 0 ? -1 : bytes.length );
+        OutputStream stream = exchange.getResponseBody();
+        stream.write( bytes );
+        stream.close();
+    }
+
+    private CoverArtFetcher.Request request( String path, String artName )
+    {
+        return new CoverArtFetcher.Request( "http://127.0.0.1:" + mServer.getAddress().getPort() + path,
+                new File( mDir, artName ).getPath() );
+    }
+
+    /**
+     * Fetches a single piece of art with a new fetcher, which reads the validators saved by the
+     * previous one.
+     */
+    private boolean fetch( CoverArtFetcher.Request request )
+    {
+        final boolean[] result = new boolean[1];
+        new CoverArtFetcher( 1, 1, mValidatorsFile.getPath(), IMAGE_VALIDATOR ).fetch(
+                Collections.singletonList( request ), new CoverArtFetcher.FetchListener()
+                {
+                    @Override
+                    public void onArtFetched( CoverArtFetcher.Request request, boolean success )
+                    {
+                        result[0] = success;
+                    }
+                } );
+        return result[0];
+    }
+
+    /**
+     * Makes art look like it was last checked long ago.
+     */
+    private void age( String artName )
+    {
+        ConfigFile validators = new ConfigFile( mValidatorsFile.getPath() );
+        validators.put( artName, "checked", "1" );
+        validators.save();
+    }
+
+    private static String read( String path ) throws IOException
+    {
+        return new String( Files.readAllBytes( new File( path ).toPath() ), StandardCharsets.UTF_8 );
+    }
+
+    private static List<String> list( File dir )
+    {
+        String[] names = dir.list();
+        Arrays.sort( names );
+        return Arrays.asList( names );
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ *
+ * Copyright (C) 2013 Paul Lamb
+ *
+ * This file is part of Mupen64PlusAE.
+ *
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors:
+ */
+package paulscode.android.mupen64plusae.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class RomDigestTest
+{
+    private static final int BOOT_CODE_START = 0x40;
+    private static final int CHECKSUM_START = 0x1000;
+    private static final int CHECKSUM_END = 0x101000;
+
+    // CRC32 of the boot code of each CIC chip
+    private static final int BOOT_CRC_6101 = 0x6170A4A1;
+    private static final int BOOT_CRC_7102 = 0x009E9EA3;
+    private static final int BOOT_CRC_6102 = 0x90BB6CB5;
+    private static final int BOOT_CRC_6103 = 0x0B050EE0;
+    private static final int BOOT_CRC_6105 = 0x98BC2C86;
+    private static final int BOOT_CRC_6106 = 0xACC8580A;
+
+    @Test
+    public void digestsSmallData() throws NoSuchAlgorithmException
+    {
+        RomDigest.Result result = digest( "abc".getBytes( StandardCharsets.US_ASCII ), false );
+
+        assertEquals( "900150983CD24FB0D6963F7D28E17F72", result.md5 );
+        assertEquals( "A9993E364706816ABA3E25717850C26C9CD0D89D", result.sha1 );
+        assertEquals( "352441C2", result.crc32 );
+        assertEquals( 0, result.cic );
+        assertNull( result.checksum );
+    }
+
+    @Test
+    public void onlyComputesMd5WhenAsked() throws NoSuchAlgorithmException
+    {
+        RomDigest.Result result = digest( createRom( 0, BOOT_CRC_6102, CHECKSUM_END ), true );
+
+        assertEquals( "D98C987FA0C1DF3FF8B0C6B21086967E", result.md5 );
+        assertNull( result.sha1 );
+        assertNull( result.crc32 );
+        assertEquals( 0, result.cic );
+        assertNull( result.checksum );
+    }
+
+    @Test
+    public void detectsCicFromBootCode() throws NoSuchAlgorithmException
+    {
+        assertEquals( 6101, digest( createRom( 0, BOOT_CRC_6101, CHECKSUM_END ), false ).cic );
+        assertEquals( 6101, digest( createRom( 1, BOOT_CRC_7102, CHECKSUM_END ), false ).cic );
+        assertEquals( 6102, digest( createRom( 0, BOOT_CRC_6102, CHECKSUM_END ), false ).cic );
+        assertEquals( 6103, digest( createRom( 0, BOOT_CRC_6103, CHECKSUM_END ), false ).cic );
+        assertEquals( 6105, digest( createRom( 0, BOOT_CRC_6105, CHECKSUM_END ), false ).cic );
+        assertEquals( 6106, digest( createRom( 0, BOOT_CRC_6106, CHECKSUM_END ), false ).cic );
+    }
+
+    @Test
+    public void computesChecksumWithSeedOfEachCic() throws NoSuchAlgorithmException
+    {
+        assertEquals( "466B7A33 6A1E10FE", digest( createRom( 0, BOOT_CRC_6101, CHECKSUM_END ), false ).checksum );
+        assertEquals( "466B7A33 6A1E10FE", digest( createRom( 1, BOOT_CRC_7102, CHECKSUM_END ), false ).checksum );
+        assertEquals( "466B7A33 6A1E10FE", digest( createRom( 0, BOOT_CRC_6102, CHECKSUM_END ), false ).checksum );
+        assertEquals( "362959CF 72578A12", digest( createRom( 0, BOOT_CRC_6103, CHECKSUM_END ), false ).checksum );
+        assertEquals( "6CC7A6CD E0F8D4E9", digest( createRom( 0, BOOT_CRC_6105, CHECKSUM_END ), false ).checksum );
+        assertEquals( "C42B537A 7DB76F32", digest( createRom( 0, BOOT_CRC_6106, CHECKSUM_END ), false ).checksum );
+    }
+
+    @Test
+    public void checksumOf6105DependsOnBootCode() throws NoSuchAlgorithmException
+    {
+        // Other chips only checksum the data after the boot code
+        assertEquals( digest( createRom( 0, BOOT_CRC_6102, CHECKSUM_END ), false ).checksum,
+                digest( createRom( 1, BOOT_CRC_6102, CHECKSUM_END ), false ).checksum );
+
+        // The 6105 mixes words of the boot code into the data
+        String checksum = digest( createRom( 1, BOOT_CRC_6105, CHECKSUM_END ), false ).checksum;
+        assertEquals( "6CC7A6CD 9578D4E9", checksum );
+        assertNotEquals( digest( createRom( 0, BOOT_CRC_6105, CHECKSUM_END ), false ).checksum, checksum );
+    }
+
+    @Test
+    public void unknownBootCodeHasNoChecksum() throws NoSuchAlgorithmException
+    {
+        byte[] rom = createRom( 0, BOOT_CRC_6102, CHECKSUM_END );
+        rom[CHECKSUM_START - 1] ^= 1;
+        RomDigest.Result result = digest( rom, false );
+
+        assertEquals( 0, result.cic );
+        assertNull( result.checksum );
+        assertEquals( RomDigest.CHECKSUM_UNKNOWN, result.getChecksumStatus( "466B7A33 6A1E10FE" ) );
+    }
+
+    @Test
+    public void truncatedRomHasNoChecksum() throws NoSuchAlgorithmException
+    {
+        RomDigest.Result result = digest( createRom( 0, BOOT_CRC_6102, CHECKSUM_END - 4 ), false );
+
+        assertEquals( 6102, result.cic );
+        assertNull( result.checksum );
+    }
+
+    @Test
+    public void comparesChecksumWithHeader() throws NoSuchAlgorithmException
+    {
+        RomDigest.Result result = digest( createRom( 0, BOOT_CRC_6102, CHECKSUM_END ), false );
+
+        assertEquals( RomDigest.CHECKSUM_GOOD, result.getChecksumStatus( "466B7A33 6A1E10FE" ) );
+        assertEquals( RomDigest.CHECKSUM_BAD, result.getChecksumStatus( "466B7A33 6A1E10FF" ) );
+        assertEquals( RomDigest.CHECKSUM_UNKNOWN, result.getChecksumStatus( null ) );
+    }
+
+    @Test
+    public void resultDoesNotDependOnHowDataIsFed() throws NoSuchAlgorithmException
+    {
+        byte[] rom = createRom( 0, BOOT_CRC_6105, CHECKSUM_END + 1000 );
+        RomDigest.Result expected = digest( rom, false );
+
+        // Chunks that split words, the boot code and the end of the checksummed area
+        int[] chunkSizes = { 1, 3, 4093, 65543 };
+        RomDigest digest = new RomDigest( false );
+        for( int offset = 0, chunk = 0; offset < rom.length; ++chunk )
+        {
+            int length = Math.min( chunkSizes[chunk % chunkSizes.length], rom.length - offset );
+            if( chunk % 2 == 0 )
+                digest.update( rom, offset, length );
+            else
+                digest.update( ByteBuffer.wrap( rom, offset, length ) );
+            offset += length;
+        }
+        assertResultEquals( expected, digest.finish() );
+
+        // The digest is reset by finish and can be reused
+        digest.update( rom, 0, rom.length );
+        assertResultEquals( expected, digest.finish() );
+    }
+
+    private static RomDigest.Result digest( byte[] data, boolean md5Only ) throws NoSuchAlgorithmException
+    {
+        RomDigest digest = new RomDigest( md5Only );
+        digest.update( data, 0, data.length );
+        return digest.finish();
+    }
+
+    private static void assertResultEquals( RomDigest.Result expected, RomDigest.Result actual )
+    {
+        assertEquals( expected.md5, actual.md5 );
+        assertEquals( expected.sha1, actual.sha1 );
+        assertEquals( expected.crc32, actual.crc32 );
+        assertEquals( expected.cic, actual.cic );
+        assertEquals( expected.checksum, actual.checksum );
+    }
+
+    /**
+     * Builds a ROM image in native byte order whose boot code has the given CRC32, so it is
+     * detected as the CIC chip with that boot code.
+     *
+     * @param variant Changes the boot code, but not its CRC32
+     */
+    private static byte[] createRom( int variant, int bootCrc, int size )
+    {
+        byte[] rom = new byte[size];
+        rom[0] = (byte) 0x80;
+        rom[1] = 0x37;
+        rom[2] = 0x12;
+        rom[3] = 0x40;
+
+        for( int i = BOOT_CODE_START; i < CHECKSUM_START; ++i )
+            rom[i] = (byte) ( i * 7 + variant );
+
+        // Pseudo-random data, so every branch of the checksum is taken
+        int seed = 1;
+        for( int i = CHECKSUM_START; i < size; ++i )
+        {
+            seed = seed * 1103515245 + 12345;
+            rom[i] = (byte) ( seed >>> 16 );
+        }
+
+        forgeBootCrc( rom, bootCrc );
+        return rom;
+    }
+
+    /**
+     * Rewrites the last word of the boot code so the CRC32 of the boot code has the given value.
+     * The CRC32 of the boot code is affine in the bits of that word, so this solves the linear
+     * system over GF(2) that gives the bits to set.
+     */
+    private static void forgeBootCrc( byte[] rom, int bootCrc )
+    {
+        int base = bootCrc( rom, 0 );
+        int[] basis = new int[32];
+        int[] basisWords = new int[32];
+
+        for( int bit = 0; bit < 32; ++bit )
+        {
+            int value = bootCrc( rom, 1 << bit ) ^ base;
+            int word = 1 << bit;
+            for( int top = 31; top >= 0 && value != 0; --top )
+            {
+                if( ( value >>> top & 1 ) == 0 )
+                    continue;
+
+                if( basis[top] == 0 )
+                {
+                    basis[top] = value;
+                    basisWords[top] = word;
+                    break;
+                }
+                value ^= basis[top];
+                word ^= basisWords[top];
+            }
+        }
+
+        int remaining = bootCrc ^ base;
+        int word = 0;
+        for( int top = 31; top >= 0; --top )
+        {
+            if( ( remaining >>> top & 1 ) != 0 )
+            {
+                remaining ^= basis[top];
+                word ^= basisWords[top];
+            }
+        }
+
+        setLastWord( rom, word );
+        assertEquals( bootCrc, bootCrc( rom, word ) );
+    }
+
+    private static int bootCrc( byte[] rom, int lastWord )
+    {
+        setLastWord( rom, lastWord );
+        CRC32 crc = new CRC32();
+        crc.update( rom, BOOT_CODE_START, CHECKSUM_START - BOOT_CODE_START );
+        return (int) crc.getValue();
+    }
+
+    private static void setLastWord( byte[] rom, int word )
+    {
+        rom[CHECKSUM_START - 4] = (byte) ( word >>> 24 );
+        rom[CHECKSUM_START - 3] = (byte) ( word >>> 16 );
+        rom[CHECKSUM_START - 2] = (byte) ( word >>> 8 );
+        rom[CHECKSUM_START - 1] = (byte) word;
+    }
+}